@@ -0,0 +1,106 @@
+package athena.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import athena.Query;
+import athena.Store;
+
+import static athena.Query.and;
+import static athena.Query.or;
+
+/**
+ * A more realistic workload than FindBenchmark: ads tagged with a location, a
+ * category and whether they are adult, searched with the kinds of query an ad
+ * server would make
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AdNetworkBenchmark {
+
+	@Param({ "5000", "100000" })
+	public int adCount;
+
+	@Param({ "100" })
+	public int locationCount;
+
+	@Param({ "10" })
+	public int categoryCount;
+
+	@Param({ "0", "4", "16" })
+	public int maxShortcuts;
+
+	private Store<Object> store;
+
+	private List<Query> queries;
+
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final Random random = new Random(Workload.SEED);
+		store = new Store<Object>(maxShortcuts);
+		final Object ad = new Object();
+		for (int x = 0; x < adCount; x++) {
+			final Set<String> tags = new HashSet<String>();
+			tags.add("loc:" + random.nextInt(locationCount));
+			tags.add("cat:" + random.nextInt(categoryCount));
+			tags.add("adult:" + random.nextBoolean());
+			store.add(tags, ad);
+		}
+		queries = new ArrayList<Query>();
+		for (int x = 0; x < 1000; x++) {
+			queries.add(query(random));
+		}
+	}
+
+	private Query query(final Random random) {
+		switch (random.nextInt(3)) {
+		case 0:
+			return and("loc:" + random.nextInt(locationCount),
+					and("cat:" + random.nextInt(categoryCount), "adult:" + random.nextBoolean()));
+		case 1:
+			return and(or("loc:" + random.nextInt(locationCount), "loc:" + random.nextInt(locationCount)),
+					and("cat:" + random.nextInt(categoryCount), "adult:" + random.nextBoolean()));
+		default:
+			return and(
+					or("loc:" + random.nextInt(locationCount), "loc:" + random.nextInt(locationCount)),
+					or(and("cat:" + random.nextInt(categoryCount), "adult:" + random.nextBoolean()),
+							and("cat:" + random.nextInt(categoryCount), "adult:" + random.nextBoolean())));
+		}
+	}
+
+	@Benchmark
+	public void find(final Blackhole bh) {
+		final Query q = queries.get(next);
+		next = (next + 1) % queries.size();
+		for (final Object o : store.find(q)) {
+			bh.consume(o);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package athena.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import athena.Store;
+
+/**
+ * Insert throughput of add(), with and without the optional index and blocks
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AddBenchmark {
+
+	@Param({ "50" })
+	public int tagCount;
+
+	@Param({ "3", "15" })
+	public int tagsPerValue;
+
+	/**
+	 * Options passed to the Store constructor, 0 for none, 1 for INDEXED, 2
+	 * for BLOCKED
+	 */
+	@Param({ "0", "1", "2" })
+	public int options;
+
+	private List<Set<String>> tagSets;
+
+	private final Object value = new Object();
+
+	private Store<Object> store;
+
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		tagSets = Workload.tagSets(new Random(Workload.SEED), 100000, tagCount, tagsPerValue);
+	}
+
+	/**
+	 * Start each iteration with an empty store, so that it doesn't grow
+	 * without bound
+	 */
+	@Setup(Level.Iteration)
+	public void newStore() {
+		store = new Store<Object>(8, options);
+	}
+
+	@Benchmark
+	public int add() {
+		final Set<String> tags = tagSets.get(next);
+		next = (next + 1) % tagSets.size();
+		return store.add(tags, value);
+	}
+}
@@ -0,0 +1,82 @@
+package athena.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import athena.Query;
+import athena.Store;
+
+/**
+ * Several threads searching one warm store at once, each working through the
+ * queries in a different order. Compare with FindBenchmark.warm() to see how
+ * well searches scale across cores; run with -t to vary the thread count.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+public class ConcurrentFindBenchmark {
+
+	@Param({ "100000" })
+	public int values;
+
+	@Param({ "8" })
+	public int maxShortcuts;
+
+	private Store<Object> store;
+
+	private List<Query> queries;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final Random r = new Random(Workload.SEED);
+		store = Workload.store(Workload.tagSets(r, values, 50, 10), new Object(), maxShortcuts);
+		queries = Workload.queries(r, 100, 4, 50);
+		for (final Query q : queries) {
+			for (final Object o : store.find(q)) {
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Reader {
+		private Random random;
+
+		@Setup(Level.Trial)
+		public void setUp(final ThreadParams threads) {
+			// Seeded differently for each thread, but by its index rather than
+			// its id, so every run and fork sees the same query orders
+			random = new Random(Workload.SEED + threads.getThreadIndex());
+		}
+	}
+
+	@Benchmark
+	public void find(final Reader reader, final Blackhole bh) {
+		for (final Object o : store.find(queries.get(reader.random.nextInt(queries.size())))) {
+			bh.consume(o);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package athena.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import athena.Query;
+import athena.Store;
+
+/**
+ * Single-threaded find(), both cold (every shortcut discarded before each
+ * search, so it is a full scan) and warm (the queries have all been searched
+ * for before), across shortcut budgets, query depths and selectivities.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FindBenchmark {
+
+	@Param({ "100000" })
+	public int values;
+
+	@Param({ "50" })
+	public int tagCount;
+
+	/**
+	 * More tags per value means each tag matches more values, so queries are
+	 * less selective
+	 */
+	@Param({ "3", "15" })
+	public int tagsPerValue;
+
+	@Param({ "2", "5" })
+	public int depth;
+
+	@Param({ "1", "8", "64" })
+	public int maxShortcuts;
+
+	private Store<Object> store;
+
+	private List<Query> queries;
+
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final Random r = new Random(Workload.SEED);
+		final List<Set<String>> tagSets = Workload.tagSets(r, values, tagCount, tagsPerValue);
+		store = Workload.store(tagSets, new Object(), maxShortcuts);
+		queries = Workload.queries(r, 100, depth, tagCount);
+		// Learn shortcuts for every query, twice so that those from the
+		// first pass that were evicted by later queries get a second chance
+		for (int pass = 0; pass < 2; pass++) {
+			for (final Query q : queries) {
+				for (final Object o : store.find(q)) {
+				}
+			}
+		}
+	}
+
+	private Query nextQuery() {
+		final Query ret = queries.get(next);
+		next = (next + 1) % queries.size();
+		return ret;
+	}
+
+	@Benchmark
+	public void warm(final Blackhole bh) {
+		for (final Object o : store.find(nextQuery())) {
+			bh.consume(o);
+		}
+	}
+
+	/**
+	 * The state for cold(), separate so that only cold() discards shortcuts
+	 * before every invocation. It shares the store and queries built for
+	 * warm(), which never runs in the same trial.
+	 */
+	@State(Scope.Benchmark)
+	public static class Cold {
+		Store<Object> store;
+
+		List<Query> queries;
+
+		int next = 0;
+
+		@Setup(Level.Trial)
+		public void setUp(final FindBenchmark parent) {
+			store = parent.store;
+			queries = parent.queries;
+		}
+
+		/**
+		 * Excluded from the measured time, but slow, so expect cold() trials
+		 * to take a while
+		 */
+		@Setup(Level.Invocation)
+		public void forget() {
+			store.resetShortcuts();
+		}
+	}
+
+	@Benchmark
+	public void cold(final Cold cold, final Blackhole bh) {
+		final Query q = cold.queries.get(cold.next);
+		cold.next = (cold.next + 1) % cold.queries.size();
+		for (final Object o : cold.store.find(q)) {
+			bh.consume(o);
+		}
+	}
+}
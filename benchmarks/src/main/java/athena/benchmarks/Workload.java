@@ -0,0 +1,78 @@
+package athena.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import athena.Query;
+import athena.Store;
+
+/**
+ * Generates the tag sets and queries the benchmarks use. Everything is drawn
+ * from a Random with a fixed seed, so every run, and every fork of every run,
+ * measures exactly the same data.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+final class Workload {
+
+	static final long SEED = 42;
+
+	private Workload() {
+	}
+
+	/**
+	 * @param tagCount
+	 *            The number of distinct tags, "0" to tagCount - 1
+	 * @param tagsPerValue
+	 *            The number of tags drawn for each value. Together with
+	 *            tagCount this sets how selective queries are: the more tags
+	 *            each value has, the more values a Contains matches.
+	 */
+	static List<Set<String>> tagSets(final Random r, final int count, final int tagCount, final int tagsPerValue) {
+		final List<Set<String>> ret = new ArrayList<Set<String>>(count);
+		for (int x = 0; x < count; x++) {
+			final Set<String> tags = new HashSet<String>();
+			for (int y = 0; y < tagsPerValue; y++) {
+				tags.add(Integer.toString(r.nextInt(tagCount)));
+			}
+			ret.add(tags);
+		}
+		return ret;
+	}
+
+	/**
+	 * A random query whose leaves are all at the given depth, mostly Ands as
+	 * in typical filtering queries, with some Ors and Nots
+	 */
+	static Query query(final Random r, final int depth, final int tagCount) {
+		if (depth <= 1)
+			return Query.tag(Integer.toString(r.nextInt(tagCount)));
+		final int sel = r.nextInt(8);
+		if (sel < 5)
+			return Query.and(query(r, depth - 1, tagCount), query(r, depth - 1, tagCount));
+		else if (sel < 7)
+			return Query.or(query(r, depth - 1, tagCount), query(r, depth - 1, tagCount));
+		else
+			return Query.not(query(r, depth - 1, tagCount));
+	}
+
+	static List<Query> queries(final Random r, final int count, final int depth, final int tagCount) {
+		final List<Query> ret = new ArrayList<Query>(count);
+		for (int x = 0; x < count; x++) {
+			ret.add(query(r, depth, tagCount));
+		}
+		return ret;
+	}
+
+	static <V> Store<V> store(final List<Set<String>> tagSets, final V value, final int maxShortcuts) {
+		final Store<V> store = new Store<V>(maxShortcuts);
+		for (final Set<String> tags : tagSets) {
+			store.add(tags, value);
+		}
+		return store;
+	}
+}
@@ -0,0 +1,168 @@
+package athena;
+
+import java.util.ArrayList;
+
+/**
+ * Returns the values matching a query by evaluating it against TagBlocks, 64
+ * values at a time, rather than testing values one by one like StoreIterator.
+ *
+ * As each block is evaluated we also evaluate every query the search query
+ * implies (its trueIfTrue() set, exactly the queries a StoreIterator would
+ * learn shortcuts for), and add shortcuts from each of their matches to the
+ * next. Later searches, for this query or any other that can use those
+ * shortcuts, can then skip using a StoreIterator as usual.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ */
+class BlockIterator<V> extends SearchIterator<V> {
+
+	private final TagBlocks blocks;
+
+	/**
+	 * The queries we learn shortcuts for. The first is the search query.
+	 */
+	private final Query[] learning;
+
+	/**
+	 * The position of the last match of each learning query, from which the
+	 * next shortcut for it will be added
+	 */
+	private final int[] previousMatch;
+
+	/**
+	 * The matches of each learning query in the block being evaluated
+	 */
+	private final long[] blockMatches;
+
+	private final Store.StoreIterable<V> iterable;
+
+	/**
+	 * The next block to evaluate
+	 */
+	private int block = 0;
+
+	/**
+	 * The matches of the search query in the last block evaluated that we
+	 * have yet to return
+	 */
+	private long pending = 0;
+
+	private int counter = 0;
+
+	/**
+	 * Work done since we last reported to StoreMetrics
+	 */
+	private int flushedCounter = 0, created = 0, evicted = 0;
+
+	BlockIterator(final Store.StoreIterable<V> iterable, final ValueColumns<V> values, final TagBlocks blocks,
+			final Query query) {
+		super(query, values, 0);
+		this.iterable = iterable;
+		iterable.counter = 0;
+		this.blocks = blocks;
+		final ArrayList<Query> queries = new ArrayList<Query>(query.trueIfTrue());
+		queries.remove(query);
+		queries.add(0, query);
+		learning = queries.toArray(new Query[queries.size()]);
+		previousMatch = new int[learning.length];
+		blockMatches = new long[learning.length];
+	}
+
+	@Override
+	protected V computeNext() {
+		while (true) {
+			while (pending != 0) {
+				final int position = ((block - 1) << 6) | Long.numberOfTrailingZeros(pending);
+				pending &= pending - 1;
+				if (!removed(position)) {
+					iterable.counter = counter;
+					flush();
+					return found(position);
+				}
+			}
+			if (block == blockCount()) {
+				break;
+			}
+			evaluateBlock();
+		}
+		// We've run out of values, add a shortcut from the last match of every
+		// learning query to the end of the store
+		finish();
+		iterable.counter = counter;
+		return endOfData();
+	}
+
+	/**
+	 * Every block before the next one to evaluate has been evaluated, and
+	 * shortcuts added between all of the matches in it, so the last match of
+	 * each learning query can have a shortcut to the start of the next block
+	 */
+	@Override
+	public void finish() {
+		final int next = Math.min(block << 6, size);
+		for (int q = 0; q < learning.length; q++) {
+			if (next > previousMatch[q] + 1) {
+				addShortcut(previousMatch[q], learning[q].id(), next);
+			}
+		}
+		flush();
+	}
+
+	private void addShortcut(final int from, final int queryId, final int target) {
+		// A query the registry had no room for can't have shortcuts
+		if (queryId == -1)
+			return;
+		created++;
+		final ShortcutTable shortcuts = values.shortcutsToUpdate(from);
+		if (shortcuts.put(queryId, target)) {
+			evicted++;
+			iterable.metrics().evicted(shortcuts);
+		}
+	}
+
+	private void flush() {
+		iterable.metrics().record(counter - flushedCounter, 0, 0, created, evicted);
+		flushedCounter = counter;
+		created = evicted = 0;
+	}
+
+	/**
+	 * @return The number of blocks covering the values there were when we
+	 *         started, the blocks may cover more by now
+	 */
+	private int blockCount() {
+		return (size + 63) >>> 6;
+	}
+
+	private void evaluateBlock() {
+		long valid = (size & 63) != 0 && block == (size - 1) >>> 6 ? (1L << size) - 1 : -1L;
+		// add() updates the blocks while holding their lock
+		synchronized (blocks) {
+			valid &= blocks.valid(block);
+			for (int q = 0; q < learning.length; q++) {
+				blockMatches[q] = learning[q].match(blocks, block) & valid;
+			}
+		}
+		counter += Long.bitCount(valid);
+		for (int q = 0; q < learning.length; q++) {
+			long matches = blockMatches[q];
+			if (q == 0) {
+				pending = matches;
+			}
+			final int id = learning[q].id();
+			while (matches != 0) {
+				final int position = (block << 6) | Long.numberOfTrailingZeros(matches);
+				matches &= matches - 1;
+				// No point in a shortcut that only takes us to the following
+				// value
+				if (position > previousMatch[q] + 1) {
+					addShortcut(previousMatch[q], id, position);
+				}
+				previousMatch[q] = position;
+			}
+		}
+		block++;
+	}
+}
@@ -0,0 +1,81 @@
+package athena;
+
+import java.util.Arrays;
+
+/**
+ * Returns the values matching a query using a ResultCache. The cached
+ * positions are returned first, skipping any value removed since, and then
+ * the values added since the entry was cached are searched by source, a
+ * StoreIterator starting from the last position the entry covers. When the
+ * query isn't cached at all, source is whichever iterator
+ * Store.StoreIterable would otherwise have chosen.
+ *
+ * Either way, once source runs out the cache is updated with everything
+ * found, so the next search for the query will start from here.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ */
+class CachedIterator<V> extends SearchIterator<V> {
+
+	private final ResultCache cache;
+
+	/**
+	 * The cached positions, every match before source's range
+	 */
+	private final int[] cached;
+
+	private int next = 0;
+
+	private final SearchIterator<V> source;
+
+	/**
+	 * The positions source has found so far
+	 */
+	private int[] found = new int[16];
+
+	private int foundCount = 0;
+
+	/**
+	 * @param cached
+	 *            The cached positions, followed by those source finds, are
+	 *            every match before the end of values
+	 */
+	CachedIterator(final ValueColumns<V> values, final ResultCache cache, final Query query,
+			final int[] cached, final SearchIterator<V> source) {
+		super(query, values, 0, source.removals);
+		this.cache = cache;
+		this.cached = cached;
+		this.source = source;
+	}
+
+	@Override
+	protected V computeNext() {
+		while (next < cached.length) {
+			final int current = cached[next++];
+			if (!removed(current))
+				return found(current);
+		}
+		if (source.hasNext()) {
+			source.next();
+			final int current = source.current();
+			if (foundCount == found.length) {
+				found = Arrays.copyOf(found, foundCount * 2);
+			}
+			found[foundCount++] = current;
+			return found(current);
+		}
+		final int[] positions = Arrays.copyOf(cached, cached.length + foundCount);
+		System.arraycopy(found, 0, positions, cached.length, foundCount);
+		// source never looks beyond the values there were when it started,
+		// even if more have been added since
+		cache.put(query, new ResultCache.Entry(values, positions, source.size));
+		return endOfData();
+	}
+
+	@Override
+	public void finish() {
+		source.finish();
+	}
+}
@@ -0,0 +1,87 @@
+package athena;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Chooses the order Store.recluster() puts values in, so that values with
+ * similar tags are adjacent. A query then tends to match runs of neighbouring
+ * values and to miss long stretches between them, so each shortcut it learns
+ * skips further and it needs fewer of them.
+ *
+ * Tags are ranked from the most frequent to the least, and each value's tags
+ * are listed by rank. Values are sorted by these lists, comparing them the
+ * way words are sorted in a dictionary, except that a list comes after any
+ * list it is a prefix of, so that values with more of the frequent tags come
+ * first. Every value with the most frequent tag therefore comes first, and
+ * within those every value that also has the second most frequent, and so on,
+ * so the values with any one of the frequent tags, which are the ones most
+ * queries mention, form a few long runs. Values with the same tags stay in
+ * the order they were in.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+final class ClusterOrder {
+
+	private ClusterOrder() {
+	}
+
+	/**
+	 * @param size
+	 *            The values.size() to order the positions before
+	 * @param removals
+	 *            The values.removals() taken with size, removals made since
+	 *            being ignored
+	 * @return The positions of every value in values except the seed value
+	 *         and removed values, in the order they should be put in
+	 */
+	static int[] order(final ValueColumns<?> values, final int size, final int removals, final TagStats stats) {
+		final int tagCount = values.dictionary.size();
+		final long[] byFrequency = new long[tagCount];
+		for (int tag = 0; tag < tagCount; tag++) {
+			// Most frequent first, ties broken by id
+			byFrequency[tag] = ((long) (Integer.MAX_VALUE - stats.frequency(tag)) << 32) | tag;
+		}
+		Arrays.sort(byFrequency);
+		final int[] rank = new int[tagCount];
+		for (int x = 0; x < tagCount; x++) {
+			rank[(int) byFrequency[x]] = x;
+		}
+
+		final int[][] keys = new int[size][];
+		final Integer[] order = new Integer[size];
+		int count = 0;
+		for (int x = 1; x < size; x++) {
+			if (values.removed(x, removals)) {
+				continue;
+			}
+			final int[] key = values.tags(x);
+			for (int t = 0; t < key.length; t++) {
+				key[t] = rank[key[t]];
+			}
+			Arrays.sort(key);
+			keys[x] = key;
+			order[count++] = x;
+		}
+		Arrays.sort(order, 0, count, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				final int[] ka = keys[a], kb = keys[b];
+				final int common = Math.min(ka.length, kb.length);
+				for (int x = 0; x < common; x++) {
+					if (ka[x] != kb[x])
+						return ka[x] < kb[x] ? -1 : 1;
+				}
+				if (ka.length != kb.length)
+					return ka.length > kb.length ? -1 : 1;
+				return a.compareTo(b);
+			}
+		});
+		final int[] ret = new int[count];
+		for (int x = 0; x < count; x++) {
+			ret[x] = order[x];
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,215 @@
+package athena;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A Query flattened into a short-circuiting jump table over tag ids, so that
+ * it can be evaluated in a tight loop with no virtual calls and no
+ * allocation.
+ *
+ * Each instruction tests for a single tag and names the instruction to jump to
+ * if the tag is present, and the one to jump to if it is absent. And, Or and
+ * Not don't appear in the program at all, they just determine where the jumps
+ * go. For example (a AND (!b)) compiles to:
+ *
+ * <pre>
+ * 1: test a, present -> 0, absent -> REJECT
+ * 0: test b, present -> REJECT, absent -> ACCEPT
+ * </pre>
+ *
+ * Use Query.compile() to obtain one of these for TagDictionary.shared, it
+ * caches the result. A Store uses TagStats.compile() instead, which tests the
+ * ids of its own TagDictionary, in an order that suits the values in that
+ * Store.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+public final class CompiledQuery {
+	static final int ACCEPT = -1, REJECT = -2;
+
+	/**
+	 * Instructions are stored as consecutive (tag, onTrue, onFalse) triples to
+	 * keep each one within a single cache line
+	 */
+	private static final int STRIDE = 3;
+
+	private final int[] program;
+
+	private final int entry;
+
+	/**
+	 * The dictionary whose tag ids we test
+	 */
+	private final TagDictionary dictionary;
+
+	/**
+	 * Whether a tag of the query wasn't in dictionary when it was compiled,
+	 * so its tests were left out as if it could never be present. Once the
+	 * Store has been given a value with it, that's no longer so, so caches
+	 * compile such a query again rather than keep this.
+	 */
+	final boolean provisional;
+
+	/**
+	 * The Ors whose findDirectShortCut() should look for a shortcut for their
+	 * second operand first, given the statistics we were compiled with, see
+	 * Query.Or.orderProbes(). Kept here rather than on the Or, which every
+	 * Store shares.
+	 */
+	private final Set<Query> probeBFirst;
+
+	CompiledQuery(final Query query) {
+		this(query, TagDictionary.shared);
+	}
+
+	/**
+	 * Compile a query for a dictionary, testing the operands of And and Or in
+	 * the order they appear in the query
+	 */
+	CompiledQuery(final Query query, final TagDictionary dictionary) {
+		this(query, dictionary, null);
+	}
+
+	/**
+	 * Compile a query for the dictionary of a Store's TagStats, using them to
+	 * order the operands of And and Or
+	 */
+	CompiledQuery(final Query query, final TagStats stats) {
+		this(query, stats.dictionary, stats);
+	}
+
+	private CompiledQuery(final Query query, final TagDictionary dictionary, final TagStats stats) {
+		this.dictionary = dictionary;
+		final Builder builder = new Builder(dictionary, stats);
+		entry = query.compile(builder, ACCEPT, REJECT);
+		program = Arrays.copyOf(builder.program, builder.size * STRIDE);
+		provisional = builder.provisional;
+		probeBFirst = builder.probeBFirst;
+	}
+
+	/**
+	 * @return True if or should look for a shortcut for its second operand
+	 *         before its first
+	 */
+	boolean probesBFirst(final Query.Or or) {
+		return probeBFirst.contains(or);
+	}
+
+	/**
+	 * @return The number of tag tests in the program
+	 */
+	public int length() {
+		return program.length / STRIDE;
+	}
+
+	/**
+	 * Does the compiled query match this set of tag ids?
+	 *
+	 * @param tags
+	 *            A sorted array of ids from the dictionary we were compiled
+	 *            for
+	 */
+	public boolean match(final int[] tags) {
+		return match(tags, 0, tags.length);
+	}
+
+	/**
+	 * Does the compiled query match the sorted tag ids from (inclusive) to to
+	 * (exclusive) of an array? See ValueColumns.matches().
+	 */
+	boolean match(final int[] tags, final int from, final int to) {
+		final int[] program = this.program;
+		int pc = entry;
+		while (pc >= 0) {
+			final int offset = pc * STRIDE;
+			pc = TagDictionary.contains(tags, from, to, program[offset]) ? program[offset + 1]
+					: program[offset + 2];
+		}
+		return pc == ACCEPT;
+	}
+
+	/**
+	 * @return The program, one instruction per line in the format of the
+	 *         example above, starting with the entry point
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		for (int pc = entry; pc >= 0; pc--) {
+			final int offset = pc * STRIDE;
+			builder.append(pc).append(": test ").append(dictionary.decode(program[offset]));
+			builder.append(", present -> ").append(address(program[offset + 1]));
+			builder.append(", absent -> ").append(address(program[offset + 2])).append('\n');
+		}
+		return builder.toString();
+	}
+
+	private static String address(final int pc) {
+		return pc == ACCEPT ? "ACCEPT" : pc == REJECT ? "REJECT" : Integer.toString(pc);
+	}
+
+	/**
+	 * Used by Query.compile(Builder, int, int) to emit instructions. Queries are
+	 * compiled back to front, since an instruction can only be emitted once we
+	 * know where it jumps to.
+	 */
+	static final class Builder {
+		int[] program = new int[8 * STRIDE];
+		int size = 0;
+		boolean provisional = false;
+		Set<Query> probeBFirst = Collections.emptySet();
+		final TagDictionary dictionary;
+
+		/**
+		 * Used to order the operands of And and Or, or null
+		 */
+		final TagStats stats;
+
+		Builder(final TagDictionary dictionary, final TagStats stats) {
+			this.dictionary = dictionary;
+			this.stats = stats;
+		}
+
+		/**
+		 * Stand in for a test of a tag that isn't in dictionary, and so can't
+		 * be present
+		 *
+		 * @return Where the test would have jumped if it were absent
+		 */
+		int unknown(final int onFalse) {
+			provisional = true;
+			return onFalse;
+		}
+
+		/**
+		 * Have or look for a shortcut for its second operand first, see
+		 * probesBFirst()
+		 */
+		void probeBFirst(final Query.Or or) {
+			if (probeBFirst.isEmpty()) {
+				probeBFirst = Collections.newSetFromMap(new IdentityHashMap<Query, Boolean>());
+			}
+			probeBFirst.add(or);
+		}
+
+		/**
+		 * Emit an instruction testing for tag
+		 *
+		 * @return The address of the new instruction
+		 */
+		int test(final int tag, final int onTrue, final int onFalse) {
+			if ((size + 1) * STRIDE > program.length) {
+				program = Arrays.copyOf(program, program.length * 2);
+			}
+			final int offset = size * STRIDE;
+			program[offset] = tag;
+			program[offset + 1] = onTrue;
+			program[offset + 2] = onFalse;
+			return size++;
+		}
+	}
+}
@@ -0,0 +1,406 @@
+package athena;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative ints, used by TagIndex to record which
+ * positions in Store.values have each tag.
+ *
+ * This follows the approach of Roaring bitmaps: the ints are partitioned by
+ * their upper 16 bits into chunks, and each chunk is stored either as a sorted
+ * array of its lower 16 bits if it is sparse, or as a 65536 bit bitmap if it
+ * is dense. Intersections, unions and differences then work a chunk at a
+ * time, using whichever algorithm suits the representations involved.
+ *
+ * Ints must be added in increasing order, which is how Store assigns
+ * positions. Bitmaps produced by and(), or() and andNot() are new objects, the
+ * operands are never modified, and they must not be added to.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+public final class CompressedBitmap {
+
+	/**
+	 * A chunk with more than this many ints is stored as a bitmap, at which
+	 * point the bitmap (8KB) becomes smaller than the array would be.
+	 */
+	private static final int ARRAY_MAX = 4096;
+
+	private static final int BITMAP_WORDS = 65536 / 64;
+
+	/**
+	 * The upper 16 bits shared by every int in each chunk, in increasing order
+	 */
+	private char[] keys;
+
+	/**
+	 * Each chunk is either a char[] holding the lower 16 bits of its ints in
+	 * increasing order, or a long[BITMAP_WORDS] bitmap
+	 */
+	private Object[] chunks;
+
+	/**
+	 * The number of ints in each chunk. For an array chunk this is how much of
+	 * the array is in use.
+	 */
+	private int[] counts;
+
+	private int size = 0;
+
+	private int cardinality = 0;
+
+	/**
+	 * The last int passed to add()
+	 */
+	private int last = -1;
+
+	public CompressedBitmap() {
+		this(4);
+	}
+
+	private CompressedBitmap(final int capacity) {
+		keys = new char[capacity];
+		chunks = new Object[capacity];
+		counts = new int[capacity];
+	}
+
+	/**
+	 * Add an int, which must be greater than any int added so far
+	 */
+	public void add(final int x) {
+		if (x <= last)
+			throw new IllegalArgumentException(x + " added after " + last);
+		last = x;
+		final char key = (char) (x >>> 16);
+		final char low = (char) x;
+		if (size == 0 || keys[size - 1] != key) {
+			appendChunk(key, new char[4], 0);
+		}
+		final int c = size - 1;
+		final Object chunk = chunks[c];
+		if (chunk instanceof long[]) {
+			final long[] bitmap = (long[]) chunk;
+			bitmap[low >>> 6] |= 1L << low;
+		} else {
+			char[] array = (char[]) chunk;
+			final int count = counts[c];
+			if (count == ARRAY_MAX) {
+				final long[] bitmap = toBitmap(array, count);
+				bitmap[low >>> 6] |= 1L << low;
+				chunks[c] = bitmap;
+			} else {
+				if (count == array.length) {
+					chunks[c] = array = Arrays.copyOf(array, Math.min(array.length * 2, ARRAY_MAX));
+				}
+				array[count] = low;
+			}
+		}
+		counts[c]++;
+		cardinality++;
+	}
+
+	/**
+	 * @return A copy of this set, which later calls to add() won't affect. It
+	 *         shares every chunk with this but the last, the only one add()
+	 *         modifies, so this costs at most one chunk however many ints
+	 *         there are. Like the results of and(), it must not be added to.
+	 */
+	CompressedBitmap snapshot() {
+		final CompressedBitmap ret = new CompressedBitmap(Math.max(1, size));
+		System.arraycopy(keys, 0, ret.keys, 0, size);
+		System.arraycopy(chunks, 0, ret.chunks, 0, size);
+		System.arraycopy(counts, 0, ret.counts, 0, size);
+		if (size > 0) {
+			ret.chunks[size - 1] = copy(chunks[size - 1]);
+		}
+		ret.size = size;
+		ret.cardinality = cardinality;
+		ret.last = last;
+		return ret;
+	}
+
+	/**
+	 * @return The number of ints in this set
+	 */
+	public int cardinality() {
+		return cardinality;
+	}
+
+	public boolean contains(final int x) {
+		final int c = Arrays.binarySearch(keys, 0, size, (char) (x >>> 16));
+		if (c < 0)
+			return false;
+		final char low = (char) x;
+		final Object chunk = chunks[c];
+		if (chunk instanceof long[])
+			return (((long[]) chunk)[low >>> 6] & (1L << low)) != 0;
+		return Arrays.binarySearch((char[]) chunk, 0, counts[c], low) >= 0;
+	}
+
+	/**
+	 * @return The ints in this set, in increasing order
+	 */
+	public int[] toArray() {
+		final int[] ret = new int[cardinality];
+		int r = 0;
+		for (int c = 0; c < size; c++) {
+			final int high = keys[c] << 16;
+			final Object chunk = chunks[c];
+			if (chunk instanceof long[]) {
+				final long[] bitmap = (long[]) chunk;
+				for (int w = 0; w < BITMAP_WORDS; w++) {
+					long word = bitmap[w];
+					while (word != 0) {
+						ret[r++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+						word &= word - 1;
+					}
+				}
+			} else {
+				final char[] array = (char[]) chunk;
+				for (int x = 0; x < counts[c]; x++) {
+					ret[r++] = high | array[x];
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The ints in both a and b
+	 */
+	public static CompressedBitmap and(final CompressedBitmap a, final CompressedBitmap b) {
+		final CompressedBitmap ret = new CompressedBitmap(Math.max(1, Math.min(a.size, b.size)));
+		int x = 0, y = 0;
+		while (x < a.size && y < b.size) {
+			if (a.keys[x] < b.keys[y]) {
+				x++;
+			} else if (a.keys[x] > b.keys[y]) {
+				y++;
+			} else {
+				final Object chunkA = a.chunks[x], chunkB = b.chunks[y];
+				if (chunkA instanceof long[] && chunkB instanceof long[]) {
+					final long[] bitmapA = (long[]) chunkA, bitmapB = (long[]) chunkB;
+					final long[] bitmap = new long[BITMAP_WORDS];
+					for (int w = 0; w < BITMAP_WORDS; w++) {
+						bitmap[w] = bitmapA[w] & bitmapB[w];
+					}
+					ret.appendBitmap(a.keys[x], bitmap);
+				} else if (chunkA instanceof long[]) {
+					ret.appendArray(b.keys[y], filter((char[]) chunkB, b.counts[y], (long[]) chunkA, true));
+				} else if (chunkB instanceof long[]) {
+					ret.appendArray(a.keys[x], filter((char[]) chunkA, a.counts[x], (long[]) chunkB, true));
+				} else {
+					ret.appendArray(a.keys[x], intersect((char[]) chunkA, a.counts[x], (char[]) chunkB, b.counts[y]));
+				}
+				x++;
+				y++;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The ints in a but not in b
+	 */
+	public static CompressedBitmap andNot(final CompressedBitmap a, final CompressedBitmap b) {
+		final CompressedBitmap ret = new CompressedBitmap(Math.max(1, a.size));
+		int y = 0;
+		for (int x = 0; x < a.size; x++) {
+			while (y < b.size && b.keys[y] < a.keys[x]) {
+				y++;
+			}
+			final Object chunkA = a.chunks[x];
+			if (y == b.size || b.keys[y] != a.keys[x]) {
+				ret.appendChunk(a.keys[x], copy(chunkA), a.counts[x]);
+				continue;
+			}
+			final Object chunkB = b.chunks[y];
+			if (chunkA instanceof long[]) {
+				final long[] bitmap = ((long[]) chunkA).clone();
+				if (chunkB instanceof long[]) {
+					final long[] bitmapB = (long[]) chunkB;
+					for (int w = 0; w < BITMAP_WORDS; w++) {
+						bitmap[w] &= ~bitmapB[w];
+					}
+				} else {
+					final char[] arrayB = (char[]) chunkB;
+					for (int z = 0; z < b.counts[y]; z++) {
+						bitmap[arrayB[z] >>> 6] &= ~(1L << arrayB[z]);
+					}
+				}
+				ret.appendBitmap(a.keys[x], bitmap);
+			} else if (chunkB instanceof long[]) {
+				ret.appendArray(a.keys[x], filter((char[]) chunkA, a.counts[x], (long[]) chunkB, false));
+			} else {
+				ret.appendArray(a.keys[x], subtract((char[]) chunkA, a.counts[x], (char[]) chunkB, b.counts[y]));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The ints in either a or b
+	 */
+	public static CompressedBitmap or(final CompressedBitmap a, final CompressedBitmap b) {
+		final CompressedBitmap ret = new CompressedBitmap(Math.max(1, a.size + b.size));
+		int x = 0, y = 0;
+		while (x < a.size || y < b.size) {
+			if (y == b.size || (x < a.size && a.keys[x] < b.keys[y])) {
+				ret.appendChunk(a.keys[x], copy(a.chunks[x]), a.counts[x]);
+				x++;
+			} else if (x == a.size || b.keys[y] < a.keys[x]) {
+				ret.appendChunk(b.keys[y], copy(b.chunks[y]), b.counts[y]);
+				y++;
+			} else {
+				final Object chunkA = a.chunks[x], chunkB = b.chunks[y];
+				if (chunkA instanceof char[] && chunkB instanceof char[]
+						&& a.counts[x] + b.counts[y] <= ARRAY_MAX) {
+					ret.appendArray(a.keys[x], union((char[]) chunkA, a.counts[x], (char[]) chunkB, b.counts[y]));
+				} else {
+					final long[] bitmap = chunkA instanceof long[] ? ((long[]) chunkA).clone() : toBitmap(
+							(char[]) chunkA, a.counts[x]);
+					if (chunkB instanceof long[]) {
+						final long[] bitmapB = (long[]) chunkB;
+						for (int w = 0; w < BITMAP_WORDS; w++) {
+							bitmap[w] |= bitmapB[w];
+						}
+					} else {
+						final char[] arrayB = (char[]) chunkB;
+						for (int z = 0; z < b.counts[y]; z++) {
+							bitmap[arrayB[z] >>> 6] |= 1L << arrayB[z];
+						}
+					}
+					ret.appendBitmap(a.keys[x], bitmap);
+				}
+				x++;
+				y++;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Append a bitmap chunk, converting it to an array if it is sparse
+	 */
+	private void appendBitmap(final char key, final long[] bitmap) {
+		int count = 0;
+		for (final long word : bitmap) {
+			count += Long.bitCount(word);
+		}
+		if (count == 0)
+			return;
+		if (count > ARRAY_MAX) {
+			appendChunk(key, bitmap, count);
+			return;
+		}
+		final char[] array = new char[count];
+		int a = 0;
+		for (int w = 0; w < BITMAP_WORDS; w++) {
+			long word = bitmap[w];
+			while (word != 0) {
+				array[a++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+		appendChunk(key, array, count);
+	}
+
+	/**
+	 * Append an array chunk, which must be exactly the right length
+	 */
+	private void appendArray(final char key, final char[] array) {
+		if (array.length > 0) {
+			appendChunk(key, array, array.length);
+		}
+	}
+
+	private void appendChunk(final char key, final Object chunk, final int count) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			chunks = Arrays.copyOf(chunks, size * 2);
+			counts = Arrays.copyOf(counts, size * 2);
+		}
+		keys[size] = key;
+		chunks[size] = chunk;
+		counts[size] = count;
+		size++;
+		cardinality += count;
+	}
+
+	private static Object copy(final Object chunk) {
+		return chunk instanceof long[] ? ((long[]) chunk).clone() : ((char[]) chunk).clone();
+	}
+
+	/**
+	 * @return The elements of array which are (or if keep is false, are not)
+	 *         in bitmap
+	 */
+	private static char[] filter(final char[] array, final int count, final long[] bitmap, final boolean keep) {
+		final char[] ret = new char[count];
+		int r = 0;
+		for (int x = 0; x < count; x++) {
+			final char c = array[x];
+			if (((bitmap[c >>> 6] & (1L << c)) != 0) == keep) {
+				ret[r++] = c;
+			}
+		}
+		return Arrays.copyOf(ret, r);
+	}
+
+	private static char[] intersect(final char[] a, final int countA, final char[] b, final int countB) {
+		final char[] ret = new char[Math.min(countA, countB)];
+		int x = 0, y = 0, r = 0;
+		while (x < countA && y < countB) {
+			if (a[x] < b[y]) {
+				x++;
+			} else if (a[x] > b[y]) {
+				y++;
+			} else {
+				ret[r++] = a[x];
+				x++;
+				y++;
+			}
+		}
+		return Arrays.copyOf(ret, r);
+	}
+
+	private static char[] subtract(final char[] a, final int countA, final char[] b, final int countB) {
+		final char[] ret = new char[countA];
+		int y = 0, r = 0;
+		for (int x = 0; x < countA; x++) {
+			while (y < countB && b[y] < a[x]) {
+				y++;
+			}
+			if (y == countB || b[y] != a[x]) {
+				ret[r++] = a[x];
+			}
+		}
+		return Arrays.copyOf(ret, r);
+	}
+
+	private static long[] toBitmap(final char[] array, final int count) {
+		final long[] bitmap = new long[BITMAP_WORDS];
+		for (int x = 0; x < count; x++) {
+			bitmap[array[x] >>> 6] |= 1L << array[x];
+		}
+		return bitmap;
+	}
+
+	private static char[] union(final char[] a, final int countA, final char[] b, final int countB) {
+		final char[] ret = new char[countA + countB];
+		int x = 0, y = 0, r = 0;
+		while (x < countA || y < countB) {
+			if (y == countB || (x < countA && a[x] < b[y])) {
+				ret[r++] = a[x++];
+			} else if (x == countA || b[y] < a[x]) {
+				ret[r++] = b[y++];
+			} else {
+				ret[r++] = a[x];
+				x++;
+				y++;
+			}
+		}
+		return Arrays.copyOf(ret, r);
+	}
+}
@@ -0,0 +1,67 @@
+package athena;
+
+import java.io.Serializable;
+
+/**
+ * Where a search stopped, so that Store.find(Query, Cursor) or Store.page() can
+ * resume from there rather than from the start of the store. The search then
+ * follows shortcuts onwards from the last value returned, so resuming costs
+ * about as much as continuing would have.
+ *
+ * A Cursor holds the query and the handle of the last value returned. Handles
+ * increase in the order values were added, so the position to resume from
+ * can still be found after that value has been removed, or Store.compact()
+ * has moved everything. Once Store.recluster() has reordered the values,
+ * unless it was asked to keep insertion order, a Cursor can only resume after
+ * a value that compact() hasn't since removed. Cursors are Serializable, so
+ * they can be handed to a client and given back with the request for the
+ * next page.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+public final class Cursor implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	final Query query;
+
+	/**
+	 * The handle of the last value returned, -1 to start from the beginning
+	 */
+	final int handle;
+
+	Cursor(final Query query, final int handle) {
+		this.query = query;
+		this.handle = handle;
+	}
+
+	/**
+	 * @return A cursor at the start of the results of a query
+	 */
+	public static Cursor start(final Query query) {
+		return new Cursor(query.canonical(), -1);
+	}
+
+	public Query query() {
+		return query;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof Cursor))
+			return false;
+		final Cursor other = (Cursor) obj;
+		return handle == other.handle && query.equals(other.query);
+	}
+
+	@Override
+	public int hashCode() {
+		return query.hashCode() * 31 + handle;
+	}
+
+	@Override
+	public String toString() {
+		return "Cursor [query=" + query + ", after handle " + handle + "]";
+	}
+}
@@ -0,0 +1,115 @@
+package athena;
+
+import java.util.Arrays;
+
+/**
+ * Returns the values matching a query by evaluating it against a TagIndex,
+ * rather than walking Store.values like StoreIterator.
+ *
+ * Since this finds every match up front, it also knows exactly where the
+ * query's shortcuts should go, and adds them. The next search for the same
+ * query can therefore use a StoreIterator and follow them straight from match
+ * to match.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ */
+class IndexIterator<V> extends SearchIterator<V> {
+
+	/**
+	 * The positions of the matching values, including any that have been
+	 * removed
+	 */
+	private final int[] matches;
+
+	private final Store.StoreIterable<V> iterable;
+
+	private int next = 0;
+
+	/**
+	 * The value of next when we last reported to StoreMetrics
+	 */
+	private int flushed = 0;
+
+	IndexIterator(final Store.StoreIterable<V> iterable, final ValueColumns<V> values, final TagIndex index,
+			final Query query) {
+		super(query, values, 0);
+		this.iterable = iterable;
+		iterable.counter = 0;
+		// The index hands out snapshots, so this doesn't hold up add(), but
+		// they may include values added since we took size
+		final int[] indexed = query.evaluate(index).toArray();
+		int count = indexed.length;
+		while (count > 0 && indexed[count - 1] >= size) {
+			count--;
+		}
+		matches = count == indexed.length ? indexed : Arrays.copyOf(indexed, count);
+		addShortcuts(query);
+	}
+
+	/**
+	 * Add a shortcut for the query from the seed value to the first match,
+	 * from each match to the next, and from the last match to the end of the
+	 * store as it was when we started. Removed values are still in the index,
+	 * and so still count as matches here, which is fine since shortcuts may
+	 * point to them.
+	 */
+	private void addShortcuts(final Query query) {
+		final int id = query.id();
+		// A query the registry had no room for can't have shortcuts
+		if (id == -1)
+			return;
+		int previous = 0, created = 0, evicted = 0;
+		for (final int match : matches) {
+			// No point in a shortcut that only takes us to the following
+			// value
+			if (match > previous + 1) {
+				created++;
+				final ShortcutTable shortcuts = values.shortcutsToUpdate(previous);
+				if (shortcuts.put(id, match)) {
+					evicted++;
+					iterable.metrics().evicted(shortcuts);
+				}
+			}
+			previous = match;
+		}
+		if (size > previous + 1) {
+			created++;
+			final ShortcutTable shortcuts = values.shortcutsToUpdate(previous);
+			if (shortcuts.put(id, size)) {
+				evicted++;
+				iterable.metrics().evicted(shortcuts);
+			}
+		}
+		iterable.metrics().record(0, 0, 0, created, evicted);
+	}
+
+	private void flush() {
+		iterable.metrics().record(next - flushed, 0, 0, 0, 0);
+		flushed = next;
+	}
+
+	/**
+	 * Every shortcut was added up front, so there is nothing more to learn
+	 */
+	@Override
+	public void finish() {
+		flush();
+	}
+
+	@Override
+	protected V computeNext() {
+		while (next < matches.length) {
+			final int current = matches[next++];
+			if (!removed(current)) {
+				iterable.counter = next;
+				flush();
+				return found(current);
+			}
+		}
+		iterable.counter = next;
+		flush();
+		return endOfData();
+	}
+}
@@ -0,0 +1,178 @@
+package athena;
+
+import java.util.Arrays;
+
+/**
+ * Returns the values matching a query in the order they were added, for a
+ * Store that recluster() has reordered but which was asked to keep insertion
+ * order. Handles increase in the order values were added, so this is handle
+ * order.
+ *
+ * The search itself is whichever source Store.StoreIterable would otherwise
+ * have chosen, so it follows and learns shortcuts, or uses the TagIndex,
+ * exactly as a search in store order would. Only the values before
+ * ValueColumns.clustered() are out of handle order, so we collect source's
+ * matches among them and sort them by handle before returning the first. The
+ * values from clustered() on are in handle order, and come after all of
+ * those, so we then return the rest of source's matches as it finds them.
+ *
+ * The values before clustered() never change until the store is reordered
+ * again, which replaces its ValueColumns, so the sorted matches are kept in
+ * ValueColumns.matchesInHandleOrder(). The next search for the same query,
+ * such as the next page of a Cursor, takes them from there and binary
+ * searches them for the handle it resumes after, so that only the values
+ * from clustered() on are searched again. Values removed since are skipped
+ * as we return them, as CachedIterator does.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ */
+class InsertionOrderIterator<V> extends SearchIterator<V> {
+
+	/**
+	 * Searches in the order values are stored, from the seed value, or from
+	 * clustered if we were given the sorted matches before it
+	 */
+	private final SearchIterator<V> source;
+
+	/**
+	 * The handle of the value to start after, -1 for the start of the store
+	 */
+	private final int after;
+
+	/**
+	 * values.clustered() when we were created
+	 */
+	private final int clustered;
+
+	/**
+	 * The positions of source's matches before clustered, in handle order,
+	 * or null until they are collected
+	 */
+	private int[] sorted;
+
+	/**
+	 * The index in sorted of the next match to return, or -1 until we have
+	 * found the first whose handle is greater than after
+	 */
+	private int next = -1;
+
+	/**
+	 * The first match source found from clustered on, which we took while
+	 * collecting sorted and haven't returned yet, or -1
+	 */
+	private int pending = -1;
+
+	/**
+	 * @param source
+	 *            A search of values starting from the seed value, returning
+	 *            matches in the order they are stored
+	 */
+	InsertionOrderIterator(final ValueColumns<V> values, final Query query, final int after, final int clustered,
+			final SearchIterator<V> source) {
+		super(query, values, 0, source.removals);
+		this.source = source;
+		this.after = after;
+		this.clustered = clustered;
+	}
+
+	/**
+	 * @param sorted
+	 *            What an earlier InsertionOrderIterator for the same query
+	 *            left in values.matchesInHandleOrder()
+	 * @param source
+	 *            A search of values starting after sorted.scannedTo - 1,
+	 *            returning matches in the order they are stored
+	 */
+	InsertionOrderIterator(final ValueColumns<V> values, final Query query, final int after,
+			final ResultCache.Entry sorted, final SearchIterator<V> source) {
+		super(query, values, 0, source.removals);
+		this.source = source;
+		this.after = after;
+		clustered = sorted.scannedTo;
+		this.sorted = sorted.positions;
+	}
+
+	@Override
+	protected V computeNext() {
+		if (sorted == null) {
+			sort();
+		}
+		if (next == -1) {
+			next = seek();
+		}
+		while (next < sorted.length) {
+			final int position = sorted[next++];
+			if (!removed(position))
+				return found(position);
+		}
+		if (pending != -1) {
+			final int current = pending;
+			pending = -1;
+			return found(current);
+		}
+		if (source.hasNext()) {
+			source.next();
+			return found(source.current());
+		}
+		return endOfData();
+	}
+
+	/**
+	 * Collect source's matches before clustered in handle order, and keep
+	 * them in values.matchesInHandleOrder() for the next search
+	 */
+	private void sort() {
+		// Each match's handle and position, so that sorting them sorts by
+		// handle
+		long[] matches = new long[16];
+		int count = 0;
+		while (source.hasNext()) {
+			source.next();
+			final int position = source.current();
+			if (position >= clustered) {
+				pending = position;
+				break;
+			}
+			if (count == matches.length) {
+				matches = Arrays.copyOf(matches, count * 2);
+			}
+			matches[count++] = ((long) values.handle(position) << 32) | position;
+		}
+		Arrays.sort(matches, 0, count);
+		sorted = new int[count];
+		for (int x = 0; x < count; x++) {
+			sorted[x] = (int) matches[x];
+		}
+		values.matchesInHandleOrder().put(query, new ResultCache.Entry(values, sorted, clustered));
+	}
+
+	/**
+	 * @return The index in sorted of the first match whose handle is greater
+	 *         than after
+	 */
+	private int seek() {
+		int low = 0, high = sorted.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (values.handle(sorted[mid]) <= after) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	@Override
+	public Cursor cursor() {
+		// Position 0 is the seed value, which is never returned
+		return current() == 0 ? new Cursor(query, after) : super.cursor();
+	}
+
+	@Override
+	public void finish() {
+		source.finish();
+	}
+}
@@ -0,0 +1,28 @@
+package athena;
+
+import java.util.List;
+
+/**
+ * A page of search results from Store.page()
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ */
+public class Page<V> {
+
+	/**
+	 * The results, in the order find(Query) returns them
+	 */
+	public final List<V> values;
+
+	/**
+	 * Where the next page starts, or null if this is the last page
+	 */
+	public final Cursor next;
+
+	Page(final List<V> values, final Cursor next) {
+		this.values = values;
+		this.next = next;
+	}
+}
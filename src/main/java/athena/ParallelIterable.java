@@ -0,0 +1,160 @@
+package athena;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
+/**
+ * The results of Store.findParallel(). The store is divided into segments of a
+ * fixed number of positions, and each segment is searched by its own
+ * StoreIterator on an ExecutorService.
+ *
+ * A segment's iterator starts from the last value of the previous segment
+ * (the seed value for the first segment), and cuts any shortcut that would
+ * take it beyond the end of the segment short, so a search of one segment
+ * never depends on a search of another. The chains of shortcuts it adds end
+ * at the last value of the segment, which is where the next segment's
+ * iterator starts, so the next segment's chains carry on from there. As long
+ * as the same segment size is used each time, later searches follow the same
+ * chains, and so do ordinary sequential searches, from one segment to the
+ * next. A shortcut that was cut short never replaces a longer one, so the
+ * shortcuts sequential searches learned survive a parallel search, see
+ * StoreIterator.finish().
+ *
+ * Every segment is searched to completion as soon as iterator() is called, so
+ * unlike Store.find() this isn't lazy.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ */
+public class ParallelIterable<V> implements Iterable<V> {
+
+	private final Store<V> parent;
+	private final Query query;
+	private final ExecutorService executor;
+	private final int segmentSize;
+	private final boolean ordered;
+
+	/**
+	 * The number of values tested by the segments of the most recently active
+	 * iterator that have completed so far
+	 */
+	private final AtomicInteger counter = new AtomicInteger();
+
+	ParallelIterable(final Store<V> parent, final Query query, final ExecutorService executor,
+			final int segmentSize, final boolean ordered) {
+		if (segmentSize < 1)
+			throw new IllegalArgumentException("segmentSize must be positive, not " + segmentSize);
+		this.parent = parent;
+		this.query = query;
+		this.executor = executor;
+		this.segmentSize = segmentSize;
+		this.ordered = ordered;
+	}
+
+	/**
+	 * @return The number of values tested by the segments of the most recently
+	 *         active iterator over this Iterable
+	 */
+	public int counter() {
+		return counter.get();
+	}
+
+	/**
+	 * Submits a search of every segment to the ExecutorService, and returns
+	 * their results either in the order they are stored, or, if this was
+	 * created with ordered false, a segment at a time in whatever order the
+	 * segments finish.
+	 */
+	@Override
+	public Iterator<V> iterator() {
+		counter.set(0);
+		parent.metrics().queryStarted();
+		// Every segment searches the same values, even if the store is
+		// compacted while they run
+		final ValueColumns<V> values = parent.values;
+		// Nor do they search values added while they run, or skip values
+		// removed while they run
+		final int size = values.size();
+		final int removals = values.removals();
+		final CompletionService<List<V>> completion = new ExecutorCompletionService<List<V>>(executor);
+		final List<Future<List<V>>> futures = Lists.newArrayList();
+		for (int anchor = 0; anchor + 1 < size; anchor += segmentSize) {
+			futures.add(completion.submit(new Segment(values, anchor, Math.min(anchor + segmentSize + 1, size),
+					removals)));
+		}
+
+		return new AbstractIterator<V>() {
+			private int next = 0;
+
+			private Iterator<V> current = Iterators.emptyIterator();
+
+			@Override
+			protected V computeNext() {
+				while (!current.hasNext()) {
+					if (next == futures.size())
+						return endOfData();
+					next++;
+					current = get(ordered ? futures.get(next - 1) : take(completion)).iterator();
+				}
+				return current.next();
+			}
+		};
+	}
+
+	private static <T> Future<T> take(final CompletionService<T> completion) {
+		try {
+			return completion.take();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted waiting for a segment", e);
+		}
+	}
+
+	private static <T> T get(final Future<T> future) {
+		try {
+			return future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted waiting for a segment", e);
+		} catch (final ExecutionException e) {
+			throw new RuntimeException("Searching a segment failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Searches the values after anchor and before end
+	 */
+	private class Segment implements Callable<List<V>> {
+		private final ValueColumns<V> values;
+		private final int anchor, end, removals;
+
+		Segment(final ValueColumns<V> values, final int anchor, final int end, final int removals) {
+			this.values = values;
+			this.anchor = anchor;
+			this.end = end;
+			this.removals = removals;
+		}
+
+		@Override
+		public List<V> call() {
+			// The StoreIterable just collects this segment's counter
+			final Store.StoreIterable<V> iterable = new Store.StoreIterable<V>(parent, query);
+			final List<V> ret = Lists.newArrayList(new StoreIterator<V>(iterable, values, query, anchor, end,
+					removals));
+			counter.addAndGet(iterable.counter);
+			return ret;
+		}
+	}
+}
@@ -1,19 +1,47 @@
 package athena;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 /**
- * We could definitely be smarter about identifying all the falseIfFalse and
- * trueIfTrue queries
+ * A shortcut for one query can be used by any query that implies it, since a
+ * value that doesn't match the shortcut's query can't match the query being
+ * searched for either. implies() decides this by reasoning about the
+ * structure of the two queries, pushing negations inwards by De Morgan's laws
+ * and removing double negations as it goes, so for example a shortcut for
+ * ("a" OR "b") is used when searching for ("a" AND "c"). findShortCut() tries
+ * every shortcut in a small table this way, as well as combining the
+ * shortcuts of a query's parts, and trueIfTrue() and falseIfFalse() give the
+ * queries a search learns shortcuts for.
+ * 
+ * Queries compare structurally, so And(a, b) and And(b, a) are not equal even
+ * though they are equivalent. canonical() resolves this: it rewrites a query
+ * into a canonical form and returns the single shared instance of that form,
+ * so that equivalent queries share their shortcuts. The static factory
+ * methods below, and Store.find(), always use canonical queries.
+ * 
+ * Queries are Serializable, so that a Cursor can be. A deserialized query is
+ * replaced by its canonical form in this JVM, since ids and tag ids differ
+ * from one JVM to the next.
  * 
  * @author Ian Clarke <ian@sensearray.com>
  * 
  */
-public abstract class Query {
+public abstract class Query implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	// Various self-explanatory utility methods for convenient building of
 	// queries
@@ -21,52 +49,66 @@ public abstract class Query {
 		return new Not(a);
 	}
 
-	public static And and(final Query a, final Query b) {
-		return new And(a, b);
+	public static Query and(final Query a, final Query b) {
+		return new And(a, b).canonical();
 	}
 
-	public static And and(final Query a, final String b) {
-		return new And(a, tag(b));
+	public static Query and(final Query a, final String b) {
+		return and(a, tag(b));
 	}
 
-	public static And and(final String a, final Query b) {
-		return new And(tag(a), b);
+	public static Query and(final String a, final Query b) {
+		return and(tag(a), b);
 	}
 
-	public static And and(final String a, final String b) {
-		return new And(tag(a), tag(b));
+	public static Query and(final String a, final String b) {
+		return and(tag(a), tag(b));
 	}
 
-	public static Not not(final Query a) {
-		return new Not(a);
+	public static Query not(final Query a) {
+		return new Not(a).canonical();
 	}
 
-	public static Not not(final String a) {
-		return new Not(tag(a));
+	public static Query not(final String a) {
+		return not(tag(a));
 	}
 
-	public static Or or(final Query a, final Query b) {
-		return new Or(a, b);
+	public static Query or(final Query a, final Query b) {
+		return new Or(a, b).canonical();
 	}
 
-	public static Or or(final Query a, final String b) {
-		return new Or(a, tag(b));
+	public static Query or(final Query a, final String b) {
+		return or(a, tag(b));
 	}
 
-	public static Or or(final String a, final Query b) {
-		return new Or(tag(a), b);
+	public static Query or(final String a, final Query b) {
+		return or(tag(a), b);
 	}
 
-	public static Or or(final String a, final String b) {
-		return new Or(tag(a), tag(b));
+	public static Query or(final String a, final String b) {
+		return or(tag(a), tag(b));
 	}
 
-	public static Contains tag(final String tag) {
-		return new Contains(tag);
+	public static Query tag(final String tag) {
+		return new Contains(tag).canonical();
 	}
 
 	/**
-	 * We compute the hashCode in the constructor for efficiency
+	 * The order in which the operands of a canonical And or Or appear. Any
+	 * total order would do, hashCode is just cheap.
+	 */
+	private static final Comparator<Query> CANONICAL_ORDER = new Comparator<Query>() {
+		@Override
+		public int compare(final Query a, final Query b) {
+			if (a.hashCode != b.hashCode)
+				return a.hashCode < b.hashCode ? -1 : 1;
+			return a.toString().compareTo(b.toString());
+		}
+	};
+
+	/**
+	 * We compute the hashCode in the constructor for efficiency. It is derived
+	 * from the hashCodes of the children, so it costs constant time.
 	 */
 	private final int hashCode;
 
@@ -76,21 +118,343 @@ public abstract class Query {
 	 */
 	public static final QueryIntPair SHORTCUT_NOT_FOUND = new QueryIntPair(null, -1);
 
-	public Query() {
-		hashCode = toString().hashCode();
+	/**
+	 * Lazily created by compile(). CompiledQuery is immutable so a race here
+	 * just means it may be compiled more than once.
+	 */
+	private transient CompiledQuery compiled;
+
+	/**
+	 * Assigned by QueryRegistry when a canonical query is registered, -1 until
+	 * then, once it is purged, and for queries that aren't canonical
+	 */
+	transient volatile int id = -1;
+
+	/**
+	 * Lazily set by canonical(). As with compiled, a race here is harmless
+	 * since the registry always hands back the same instance.
+	 */
+	transient Query canonical;
+
+	/**
+	 * Set when a Store searches for this canonical query, and cleared by
+	 * QueryRegistry.purge(), which forgets queries it finds clear
+	 */
+	transient volatile boolean used = false;
+
+	/**
+	 * The QueryRegistry.generation() in which the registry was too full to
+	 * register this canonical query, or -1, see canonical()
+	 */
+	transient volatile int refusedIn = -1;
+
+	/**
+	 * Answers to implies(int), a small open-addressed table of (id << 1 |
+	 * answer) + 1, where 0 is an empty slot, followed by the
+	 * QueryRegistry.generation() the answers are for. It is replaced by an
+	 * empty table rather than rehashed when the probe sequences get long, or
+	 * once ids have been recycled. Threads racing to update it may lose each
+	 * other's answers, which just means they get worked out again.
+	 */
+	private transient volatile int[] implications;
+
+	private static final int MAX_IMPLICATIONS = 4096, MAX_PROBES = 8;
+
+	Query(final int hashCode) {
+		this.hashCode = hashCode;
+	}
+
+	/**
+	 * Mix a child's hashCode into a parent's
+	 */
+	static int hash(final int seed, final int child) {
+		final int h = (seed ^ child) * 0x9E3779B9;
+		return h ^ (h >>> 15);
 	}
 
-	// TODO: Should reflect symmetry of OR and AND
+	/**
+	 * Rebuild a list of canonical operands into a canonical chain of And or Or
+	 * nodes. Nested operands of the same type are flattened, duplicates are
+	 * removed and the rest are sorted into CANONICAL_ORDER.
+	 */
+	private static Query canonicalChain(final Query a, final Query b, final boolean and) {
+		final ArrayList<Query> operands = Lists.newArrayList();
+		flatten(a.canonical(), and, operands);
+		flatten(b.canonical(), and, operands);
+		Collections.sort(operands, CANONICAL_ORDER);
+		Query ret = operands.get(operands.size() - 1);
+		for (int x = operands.size() - 2; x >= 0; x--) {
+			final Query operand = operands.get(x);
+			// Canonical queries are shared, so duplicates are usually
+			// identical, but not once the registry is full
+			if (!operand.equals(operands.get(x + 1))) {
+				ret = QueryRegistry.shared.intern(and ? new And(operand, ret) : new Or(operand, ret));
+			}
+		}
+		return ret;
+	}
+
+	private static void flatten(final Query q, final boolean and, final List<Query> operands) {
+		if (and && q instanceof And) {
+			flatten(((And) q).a, and, operands);
+			flatten(((And) q).b, and, operands);
+		} else if (!and && q instanceof Or) {
+			flatten(((Or) q).a, and, operands);
+			flatten(((Or) q).b, and, operands);
+		} else {
+			operands.add(q);
+		}
+	}
+
+	/**
+	 * @return The shared instance of the canonical form of this query. And and
+	 *         Or operands are flattened, sorted and deduplicated, and double
+	 *         negations are removed. The result is cached, unless QueryRegistry
+	 *         has since purged it, or was too full to register it and has
+	 *         purged others since, in which case it is registered again.
+	 */
+	public Query canonical() {
+		Query ret = canonical;
+		if (ret == null) {
+			ret = canonical = canonicalize();
+		} else if (ret.id == -1 && ret.refusedIn != QueryRegistry.shared.generation()) {
+			ret = canonical = QueryRegistry.shared.intern(ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Note that a Store has searched for this canonical query, so that
+	 * QueryRegistry.purge() keeps it
+	 */
+	void use() {
+		if (!used) {
+			used = true;
+		}
+	}
+
+	/**
+	 * Add this canonical query to kept, along with every query whose
+	 * shortcuts searching for it uses or learns: its operands, and the
+	 * queries in trueIfTrue() and falseIfFalse()
+	 */
+	void retain(final Set<Query> kept) {
+		if (!kept.add(this))
+			return;
+		for (final Query q : trueIfTrue()) {
+			q.retain(kept);
+		}
+		for (final Query q : falseIfFalse()) {
+			q.retain(kept);
+		}
+	}
+
+	/**
+	 * Compute canonical(), which should return a registered query
+	 */
+	abstract Query canonicalize();
+
+	/**
+	 * @return This query flattened into a form that can be evaluated without
+	 *         walking the tree. The result is cached, so this is cheap to call
+	 *         repeatedly.
+	 */
+	public CompiledQuery compile() {
+		CompiledQuery ret = compiled;
+		if (ret == null || ret.provisional) {
+			ret = compiled = new CompiledQuery(this);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The id of this query's canonical form in QueryRegistry.shared,
+	 *         which is what shortcuts are keyed on, or -1 if the registry was
+	 *         full when it was canonicalized
+	 */
+	public int id() {
+		final int ret = id;
+		return ret == -1 ? canonical().id : ret;
+	}
+
+	/**
+	 * @return The positions of the values in a TagIndex that match this query.
+	 *         This may return one of the index's own bitmaps, so the result
+	 *         must not be modified.
+	 */
+	abstract CompressedBitmap evaluate(TagIndex index);
+
+	/**
+	 * @return A rough estimate of how much work evaluate() would do, in units
+	 *         comparable to testing a single value
+	 */
+	abstract long indexCost(TagIndex index);
+
+	/**
+	 * @return A mask of the values in a block of TagBlocks that match this
+	 *         query, bit b being set if the value at position 64 * block + b
+	 *         matches
+	 */
+	abstract long match(TagBlocks blocks, int block);
+
+	/**
+	 * Write this query's structure, for Store.save(). Tags the Store writes in
+	 * its header are written as their index there, any others in full.
+	 * 
+	 * @param tags
+	 *            The sorted ids in the Store's dictionary of the tags in the
+	 *            header, in the order they are written
+	 */
+	abstract void write(DataOutput out, TagDictionary dictionary, int[] tags) throws IOException;
+
+	/**
+	 * Read a query written by write()
+	 * 
+	 * @param tags
+	 *            The tags the ids written by write() refer to
+	 * @return The query's canonical form
+	 */
+	static Query read(final DataInput in, final String[] tags) throws IOException {
+		final byte type = in.readByte();
+		switch (type) {
+		case 'A':
+			return and(read(in, tags), read(in, tags));
+		case 'C':
+			return tag(tags[in.readInt()]);
+		case 'S':
+			return tag(in.readUTF());
+		case 'N':
+			return not(read(in, tags));
+		case 'O':
+			return or(read(in, tags), read(in, tags));
+		default:
+			throw new IOException("Unknown query type " + type);
+		}
+	}
+
+	/**
+	 * @return The estimated fraction of values in a Store that this query
+	 *         matches, assuming its operands are independent except where the
+	 *         statistics count pairs of tags
+	 */
+	abstract double selectivity(TagStats stats);
+
+	/**
+	 * @return Tag ids of which every value matching this query has at least
+	 *         one, or null if a value could match with none of them at all,
+	 *         see SubscriptionIndex. Where there is a choice, as between the
+	 *         operands of an And, we choose the tags that fewer values have.
+	 */
+	abstract int[] triggers(TagStats stats);
+
+	/**
+	 * @return The number of values with any of some tags, or rather an upper
+	 *         bound on it
+	 */
+	private static long frequency(final int[] tags, final TagStats stats) {
+		long ret = 0;
+		for (final int tag : tags) {
+			ret += stats.frequency(tag);
+		}
+		return ret;
+	}
+
+	/**
+	 * Emit the operands of a chain of And or Or nodes, testing first the
+	 * operands most likely to decide the result: for an And the one least
+	 * likely to match, then whichever is least likely to match given that the
+	 * previous one did, and for an Or the most likely to match.
+	 * 
+	 * @return The address of the first instruction
+	 */
+	private static int compileChain(final Query chain, final boolean and, final CompiledQuery.Builder builder,
+			final int onTrue, final int onFalse) {
+		final ArrayList<Query> operands = Lists.newArrayList();
+		flatten(chain, and, operands);
+		final TagStats stats = builder.stats;
+		final double[] selectivity = new double[operands.size()];
+		for (int x = 0; x < selectivity.length; x++) {
+			selectivity[x] = operands.get(x).selectivity(stats);
+		}
+		// Selection sort, chains are short
+		for (int x = 0; x < operands.size() - 1; x++) {
+			final Query previous = x == 0 ? null : operands.get(x - 1);
+			int best = x;
+			double bestScore = 0;
+			for (int y = x; y < operands.size(); y++) {
+				double score = selectivity[y];
+				if (and && previous != null) {
+					final double conditional = conditional(stats, previous, operands.get(y));
+					if (conditional >= 0) {
+						score = conditional;
+					}
+				}
+				if (y == x || (and ? score < bestScore : score > bestScore)) {
+					best = y;
+					bestScore = score;
+				}
+			}
+			Collections.swap(operands, x, best);
+			final double swap = selectivity[x];
+			selectivity[x] = selectivity[best];
+			selectivity[best] = swap;
+		}
+		int next = and ? onTrue : onFalse;
+		for (int x = operands.size() - 1; x >= 0; x--) {
+			next = and ? operands.get(x).compile(builder, next, onFalse) : operands.get(x).compile(builder, onTrue,
+					next);
+		}
+		return next;
+	}
+
+	/**
+	 * @return The estimated fraction of the values matching given that match
+	 *         q, if both are tags and the statistics count pairs, otherwise -1
+	 */
+	private static double conditional(final TagStats stats, final Query given, final Query q) {
+		if (!(given instanceof Contains) || !(q instanceof Contains))
+			return -1;
+		final int both = stats.cooccurrence(((Contains) given).tagId(stats.dictionary),
+				((Contains) q).tagId(stats.dictionary));
+		if (both < 0)
+			return -1;
+		final int frequency = stats.frequency(((Contains) given).tagId(stats.dictionary));
+		return frequency == 0 ? 0 : (double) both / frequency;
+	}
+
+	/**
+	 * Emit instructions evaluating this query into a CompiledQuery.
+	 * 
+	 * @param onTrue
+	 *            The address to jump to if this query matches
+	 * @param onFalse
+	 *            The address to jump to if it doesn't
+	 * @return The address of the first instruction to evaluate this query
+	 */
+	abstract int compile(CompiledQuery.Builder builder, int onTrue, int onFalse);
+
+	/**
+	 * Structural equality, use canonical() first if you want equivalent
+	 * queries to be equal
+	 */
 	@Override
 	public boolean equals(final Object obj) {
-		if (!(obj instanceof Query))
+		if (obj == this)
+			return true;
+		else if (!(obj instanceof Query))
 			return false;
 		else if (((Query) obj).hashCode != hashCode)
 			return false;
 		else
-			return obj.toString().equals(toString());
+			return structurallyEquals((Query) obj);
 	}
 
+	/**
+	 * @return True if other is the same type as this, and its children are
+	 *         equal to ours
+	 */
+	abstract boolean structurallyEquals(Query other);
+
 	/**
 	 * @return A non-exhaustive set of other queries that will not match if this
 	 *         query doesn't match a given set of tags.
@@ -98,17 +462,146 @@ public abstract class Query {
 	public abstract Set<Query> falseIfFalse();
 
 	/**
-	 * Given a shortcut map, finds the next position we can safely jump to.
+	 * Given a shortcut table, finds the next position we can safely jump to.
+	 * This is the furthest of the shortcut findDirectShortCut() finds and the
+	 * furthest shortcut for any query this query implies. The table is only
+	 * scanned for implied queries here, once per step, never for the parts of
+	 * the query, and only if it is small, see ShortcutTable.findImplied().
 	 * 
 	 * @param shortcuts
-	 *            Typically this comes from a Value's shortcuts field
+	 *            Typically this comes from ValueColumns.shortcuts()
 	 * @return Either SHORTCUT_NOT_FOUND or a QueryIntPair indicating the next
 	 *         position we can safely jump to, and the query associated with
 	 *         this shortcut
 	 */
-	public abstract QueryIntPair findShortCut(final HashMap<Query, Integer> shortcuts);
+	public QueryIntPair findShortCut(final ShortcutTable shortcuts) {
+		return findShortCut(shortcuts, null);
+	}
+
+	/**
+	 * As findShortCut(ShortcutTable), looking for the shortcuts of the parts
+	 * of an Or in the order compiled says is best for the Store being
+	 * searched
+	 *
+	 * @param compiled
+	 *            This query compiled by the Store's TagStats, or null
+	 */
+	QueryIntPair findShortCut(final ShortcutTable shortcuts, final CompiledQuery compiled) {
+		return shortcuts.findImplied(this, findDirectShortCut(shortcuts, compiled));
+	}
+
+	/**
+	 * Find a shortcut for this query, or one built from the shortcuts of its
+	 * parts, without trying every shortcut in the table
+	 *
+	 * @param compiled
+	 *            See findShortCut(ShortcutTable, CompiledQuery)
+	 */
+	abstract QueryIntPair findDirectShortCut(ShortcutTable shortcuts, CompiledQuery compiled);
+
+	/**
+	 * Is every set of tags this query matches also matched by another? This
+	 * is conservative: it may return false even though the answer is true,
+	 * but never the reverse.
+	 */
+	public boolean implies(final Query other) {
+		if (other == this)
+			return true;
+		if (other.id != -1)
+			return implies(other.id);
+		return implies(this, false, other, false);
+	}
+
+	/**
+	 * implies() for a query in QueryRegistry.shared, remembering the answer
+	 * since findShortCut() asks about the same few queries over and over. A
+	 * query that has been purged implies nothing.
+	 */
+	boolean implies(final int otherId) {
+		if (otherId == id)
+			return true;
+		final int generation = QueryRegistry.shared.generation();
+		int[] table = implications;
+		if (table == null || table[table.length - 1] != generation) {
+			table = implications = implications(16, generation);
+		}
+		final int mask = table.length - 2;
+		final int h = otherId * 0x9E3779B9;
+		int x = (h ^ (h >>> 16)) & mask;
+		for (int probes = 0; probes < MAX_PROBES; probes++, x = (x + 1) & mask) {
+			final int entry = table[x] - 1;
+			if (entry == -1) {
+				final boolean ret = impliesRegistered(otherId);
+				table[x] = ((otherId << 1) | (ret ? 1 : 0)) + 1;
+				return ret;
+			}
+			if (entry >>> 1 == otherId)
+				return (entry & 1) != 0;
+		}
+		// The table is getting crowded, start again with a bigger one
+		implications = implications(Math.min((table.length - 1) * 2, MAX_IMPLICATIONS), generation);
+		return impliesRegistered(otherId);
+	}
+
+	private static int[] implications(final int size, final int generation) {
+		final int[] ret = new int[size + 1];
+		ret[size] = generation;
+		return ret;
+	}
+
+	private boolean impliesRegistered(final int otherId) {
+		final Query other = QueryRegistry.shared.get(otherId);
+		return other != null && implies(this, false, other, false);
+	}
+
+	/**
+	 * Does p, negated if pNegated, imply q, negated if qNegated? Negations are
+	 * pushed inwards as we go, so a negated And is treated as an Or of negated
+	 * operands and vice versa, until we reach tags. Then p implies q if:
+	 * 
+	 * p is an Or and both its operands imply q, or q is an And and p implies
+	 * both its operands, or p is an And and either of its operands implies q,
+	 * or q is an Or and p implies either of its operands, or they are the same
+	 * tag with the same sign.
+	 */
+	private static boolean implies(Query p, boolean pNegated, Query q, boolean qNegated) {
+		while (p instanceof Not) {
+			p = ((Not) p).a;
+			pNegated = !pNegated;
+		}
+		while (q instanceof Not) {
+			q = ((Not) q).a;
+			qNegated = !qNegated;
+		}
+		if (pNegated == qNegated && p.equals(q))
+			return true;
+		final boolean pAnd = pNegated ? p instanceof Or : p instanceof And;
+		final boolean pOr = pNegated ? p instanceof And : p instanceof Or;
+		final boolean qAnd = qNegated ? q instanceof Or : q instanceof And;
+		final boolean qOr = qNegated ? q instanceof And : q instanceof Or;
+		if (pOr)
+			return implies(left(p), pNegated, q, qNegated) && implies(right(p), pNegated, q, qNegated);
+		if (qAnd)
+			return implies(p, pNegated, left(q), qNegated) && implies(p, pNegated, right(q), qNegated);
+		if (pAnd && (implies(left(p), pNegated, q, qNegated) || implies(right(p), pNegated, q, qNegated)))
+			return true;
+		return qOr && (implies(p, pNegated, left(q), qNegated) || implies(p, pNegated, right(q), qNegated));
+	}
+
+	/**
+	 * @return The first operand of an And or Or
+	 */
+	private static Query left(final Query q) {
+		return q instanceof And ? ((And) q).a : ((Or) q).a;
+	}
+
+	/**
+	 * @return The second operand of an And or Or
+	 */
+	private static Query right(final Query q) {
+		return q instanceof And ? ((And) q).b : ((Or) q).b;
+	}
 
-	// TODO: Should reflect symmetry of OR and AND
 	@Override
 	public int hashCode() {
 		return hashCode;
@@ -123,6 +616,16 @@ public abstract class Query {
 	 */
 	public abstract boolean match(Set<String> tags);
 
+	/**
+	 * Does this query match this set of tag ids? Stores compile queries for
+	 * their own TagDictionary instead, see TagStats.compile().
+	 * 
+	 * @param tags
+	 *            A sorted array of ids from TagDictionary.shared
+	 * @return True if and only if the query matches the tags
+	 */
+	public abstract boolean match(int[] tags);
+
 	@Override
 	public abstract String toString();
 
@@ -138,13 +641,15 @@ public abstract class Query {
 
 	public static class And extends Query {
 
+		private static final long serialVersionUID = 1L;
+
 		private final Query a;
 		private final Query b;
 
-		Set<Query> falseIfFalse, trueIfTrue;
+		transient Set<Query> falseIfFalse, trueIfTrue;
 
 		public And(final Query a, final Query b) {
-			super();
+			super(hash(hash(0x41, a.hashCode()), b.hashCode()));
 			this.a = a;
 			this.b = b;
 			trueIfTrue = Sets.<Query> newHashSet(this);
@@ -152,19 +657,85 @@ public abstract class Query {
 			trueIfTrue.addAll(b.trueIfTrue());
 			falseIfFalse = Collections.<Query> singleton(this);
 		}
+		@Override
+		Query canonicalize() {
+			return canonicalChain(a, b, true);
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			return and(a, b);
+		}
+
+		@Override
+		int compile(final CompiledQuery.Builder builder, final int onTrue, final int onFalse) {
+			if (builder.stats != null)
+				return compileChain(this, true, builder, onTrue, onFalse);
+			return a.compile(builder, b.compile(builder, onTrue, onFalse), onFalse);
+		}
+
+		@Override
+		double selectivity(final TagStats stats) {
+			if (a instanceof Contains && b instanceof Contains && stats.count() > 0) {
+				final int both = stats.cooccurrence(((Contains) a).tagId(stats.dictionary),
+						((Contains) b).tagId(stats.dictionary));
+				if (both >= 0)
+					return (double) both / stats.count();
+			}
+			return a.selectivity(stats) * b.selectivity(stats);
+		}
+
+		@Override
+		int[] triggers(final TagStats stats) {
+			// A match must match both operands, so either's triggers will do
+			final int[] ta = a.triggers(stats), tb = b.triggers(stats);
+			if (ta == null || tb == null)
+				return ta == null ? tb : ta;
+			return frequency(ta, stats) <= frequency(tb, stats) ? ta : tb;
+		}
+
+		@Override
+		CompressedBitmap evaluate(final TagIndex index) {
+			// Avoid materializing the complement of a negated operand
+			if (b instanceof Not)
+				return CompressedBitmap.andNot(a.evaluate(index), ((Not) b).a.evaluate(index));
+			else if (a instanceof Not)
+				return CompressedBitmap.andNot(b.evaluate(index), ((Not) a).a.evaluate(index));
+			else
+				return CompressedBitmap.and(a.evaluate(index), b.evaluate(index));
+		}
+
+		@Override
+		long indexCost(final TagIndex index) {
+			return a.indexCost(index) + b.indexCost(index);
+		}
+
+		@Override
+		long match(final TagBlocks blocks, final int block) {
+			return a.match(blocks, block) & b.match(blocks, block);
+		}
+
+		@Override
+		void write(final DataOutput out, final TagDictionary dictionary, final int[] tags) throws IOException {
+			out.writeByte('A');
+			a.write(out, dictionary, tags);
+			b.write(out, dictionary, tags);
+		}
+
 		@Override
 		public Set<Query> falseIfFalse() {
 			return falseIfFalse;
 		}
 
 		@Override
-		public QueryIntPair findShortCut(final HashMap<Query, Integer> shortcuts) {
-			final Integer ret = shortcuts.get(this);
-			if (ret != null)
+		QueryIntPair findDirectShortCut(final ShortcutTable shortcuts, final CompiledQuery compiled) {
+			final int ret = shortcuts.get(id());
+			if (ret != ShortcutTable.NOT_FOUND)
 				return new QueryIntPair(this, ret);
 			else {
-				final QueryIntPair aQIP = a.findShortCut(shortcuts);
-				final QueryIntPair bQIP = b.findShortCut(shortcuts);
+				// Anything either operand implies, this implies too, and the
+				// top level findShortCut() will look for those
+				final QueryIntPair aQIP = a.findDirectShortCut(shortcuts, compiled);
+				final QueryIntPair bQIP = b.findDirectShortCut(shortcuts, compiled);
 				if (aQIP.i > bQIP.i)
 					return aQIP;
 				else
@@ -173,11 +744,21 @@ public abstract class Query {
 		}
 
 
+		@Override
+		public boolean match(final int[] tags) {
+			return a.match(tags) && b.match(tags);
+		}
+
 		@Override
 		public boolean match(final Set<String> tags) {
 			return a.match(tags) && b.match(tags);
 		}
 
+		@Override
+		boolean structurallyEquals(final Query other) {
+			return other instanceof And && ((And) other).a.equals(a) && ((And) other).b.equals(b);
+		}
+
 		@Override
 		public String toString() {
 			return "(" + a + " AND " + b + ")";
@@ -191,25 +772,132 @@ public abstract class Query {
 	}
 
 	public static class Contains extends Query {
+
+		private static final long serialVersionUID = 1L;
+
 		private final String tag;
 
-		Set<Query> falseIfFalse, trueIfTrue;
+		/**
+		 * The id of tag in the dictionary tagId() last found it in, or null.
+		 * Building a query doesn't intern its tag, so queries built from user
+		 * input don't grow any dictionary. Like compiled, a race to set this
+		 * is harmless.
+		 */
+		private transient volatile Resolved resolved;
+
+		private static final class Resolved {
+			final TagDictionary dictionary;
+			final int tagId;
+
+			Resolved(final TagDictionary dictionary, final int tagId) {
+				this.dictionary = dictionary;
+				this.tagId = tagId;
+			}
+		}
+
+		transient Set<Query> falseIfFalse, trueIfTrue;
 
 		public Contains(final String tag) {
-			super();
+			super(hash(0x43, tag.hashCode()));
 			this.tag = tag;
 			falseIfFalse = trueIfTrue = Collections.<Query> singleton(this);
 		}
 
+		@Override
+		Query canonicalize() {
+			return QueryRegistry.shared.intern(this);
+		}
+
+		/**
+		 * @return The id of tag in dictionary, or TagDictionary.UNKNOWN if
+		 *         its Store has never been given a value with it, in which
+		 *         case no value can have it and we match nothing. Looked up
+		 *         again each time until it is known, and whenever we are
+		 *         asked about a different dictionary.
+		 */
+		int tagId(final TagDictionary dictionary) {
+			final Resolved resolved = this.resolved;
+			if (resolved != null && resolved.dictionary == dictionary)
+				return resolved.tagId;
+			final int ret = dictionary.lookup(tag);
+			if (ret != TagDictionary.UNKNOWN) {
+				this.resolved = new Resolved(dictionary, ret);
+			}
+			return ret;
+		}
+
+		/**
+		 * The transient fields weren't serialized, so this has to be rebuilt
+		 */
+		private Object readResolve() throws ObjectStreamException {
+			return tag(tag);
+		}
+
+		@Override
+		int compile(final CompiledQuery.Builder builder, final int onTrue, final int onFalse) {
+			final int tagId = tagId(builder.dictionary);
+			if (tagId == TagDictionary.UNKNOWN)
+				return builder.unknown(onFalse);
+			return builder.test(tagId, onTrue, onFalse);
+		}
+
+		@Override
+		double selectivity(final TagStats stats) {
+			final int count = stats.count();
+			// With nothing to go on, guess that it's a coin toss
+			return count == 0 ? 0.5 : (double) stats.frequency(tagId(stats.dictionary)) / count;
+		}
+
+		@Override
+		int[] triggers(final TagStats stats) {
+			// A subscription must be filed under its tags before any value
+			// with them is added, so this is the one read of a query that
+			// interns
+			int tagId = tagId(stats.dictionary);
+			if (tagId == TagDictionary.UNKNOWN) {
+				tagId = stats.dictionary.intern(tag);
+			}
+			return new int[] { tagId };
+		}
+
+		@Override
+		CompressedBitmap evaluate(final TagIndex index) {
+			return index.posting(tagId(index.values.dictionary));
+		}
+
+		@Override
+		long indexCost(final TagIndex index) {
+			return index.frequency(tagId(index.values.dictionary));
+		}
+
+		@Override
+		long match(final TagBlocks blocks, final int block) {
+			return blocks.word(tagId(blocks.values.dictionary), block);
+		}
+
+		@Override
+		void write(final DataOutput out, final TagDictionary dictionary, final int[] tags) throws IOException {
+			final int tagId = tagId(dictionary);
+			final int saved = tagId == TagDictionary.UNKNOWN ? -1 : Arrays.binarySearch(tags, tagId);
+			if (saved < 0) {
+				// No value in the Store has it, so it isn't in the header
+				out.writeByte('S');
+				out.writeUTF(tag);
+			} else {
+				out.writeByte('C');
+				out.writeInt(saved);
+			}
+		}
+
 		@Override
 		public Set<Query> falseIfFalse() {
 			return Collections.<Query>singleton(this);
 		}
 
 		@Override
-		public QueryIntPair findShortCut(final HashMap<Query, Integer> shortcuts) {
-			final Integer ret = shortcuts.get(this);
-			if (ret != null) return new QueryIntPair(this, ret);
+		QueryIntPair findDirectShortCut(final ShortcutTable shortcuts, final CompiledQuery compiled) {
+			final int ret = shortcuts.get(id());
+			if (ret != ShortcutTable.NOT_FOUND) return new QueryIntPair(this, ret);
 			else return SHORTCUT_NOT_FOUND;
 		}
 
@@ -218,6 +906,16 @@ public abstract class Query {
 			return tags.contains(tag);
 		}
 
+		@Override
+		public boolean match(final int[] tags) {
+			return TagDictionary.contains(tags, tagId(TagDictionary.shared));
+		}
+
+		@Override
+		boolean structurallyEquals(final Query other) {
+			return other instanceof Contains && ((Contains) other).tag.equals(tag);
+		}
+
 		@Override
 		public String toString() {
 			return "\"" + tag + "\"";
@@ -230,28 +928,134 @@ public abstract class Query {
 	}
 
 	public static class Not extends Query {
+
+		private static final long serialVersionUID = 1L;
+
 		private final Query a;
 
-		Set<Query> falseIfFalse, trueIfTrue;
+		/**
+		 * Lazily created, like the pushed() they depend on
+		 */
+		transient volatile Set<Query> falseIfFalse, trueIfTrue;
+
+		/**
+		 * See pushed()
+		 */
+		private transient volatile Query pushed;
 
 		public Not(final Query a) {
-			super();
+			super(hash(0x4E, a.hashCode()));
 			this.a = a;
-			falseIfFalse = trueIfTrue = Collections.<Query> singleton(this);
+		}
+
+		/**
+		 * @return An equivalent canonical query with the negation pushed
+		 *         inwards, by De Morgan's laws or by removing a double
+		 *         negation, or this if a is a Contains. As with compiled, a
+		 *         race here is harmless.
+		 */
+		Query pushed() {
+			Query ret = pushed;
+			if (ret == null) {
+				if (a instanceof And) {
+					ret = or(not(((And) a).a), not(((And) a).b));
+				} else if (a instanceof Or) {
+					ret = and(not(((Or) a).a), not(((Or) a).b));
+				} else if (a instanceof Not) {
+					ret = ((Not) a).a.canonical();
+				} else {
+					ret = this;
+				}
+				pushed = ret;
+			}
+			return ret;
+		}
+
+		@Override
+		Query canonicalize() {
+			final Query ca = a.canonical();
+			if (ca instanceof Not)
+				// Double negation
+				return ((Not) ca).a;
+			return QueryRegistry.shared.intern(ca == a ? this : new Not(ca));
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			return not(a);
+		}
+
+		@Override
+		int compile(final CompiledQuery.Builder builder, final int onTrue, final int onFalse) {
+			return a.compile(builder, onFalse, onTrue);
+		}
+
+		@Override
+		double selectivity(final TagStats stats) {
+			return 1 - a.selectivity(stats);
+		}
+
+		@Override
+		int[] triggers(final TagStats stats) {
+			// We can match a value with no tags at all
+			return null;
+		}
+
+		@Override
+		CompressedBitmap evaluate(final TagIndex index) {
+			return CompressedBitmap.andNot(index.all(), a.evaluate(index));
 		}
 
+		@Override
+		long indexCost(final TagIndex index) {
+			// Complementing works on whole words of a dense bitmap
+			return index.count() / 16 + a.indexCost(index);
+		}
+
+		@Override
+		long match(final TagBlocks blocks, final int block) {
+			return ~a.match(blocks, block) & blocks.valid(block);
+		}
+
+		@Override
+		void write(final DataOutput out, final TagDictionary dictionary, final int[] tags) throws IOException {
+			out.writeByte('N');
+			a.write(out, dictionary, tags);
+		}
+
+		/**
+		 * If the negation pushed inwards is an Or, the queries that imply
+		 * either of its operands imply this
+		 */
 		@Override
 		public Set<Query> falseIfFalse() {
-			return Collections.<Query> singleton(this);
+			Set<Query> ret = falseIfFalse;
+			if (ret == null) {
+				final Query pushed = pushed();
+				if (pushed instanceof Or || a instanceof Not) {
+					ret = Sets.<Query> newHashSet(this);
+					ret.addAll(pushed.falseIfFalse());
+				} else {
+					ret = Collections.<Query> singleton(this);
+				}
+				falseIfFalse = ret;
+			}
+			return ret;
 		}
 
 		@Override
-		public QueryIntPair findShortCut(final HashMap<Query, Integer> shortcuts) {
-			final Integer ret = shortcuts.get(this);
-			if (ret != null)
+		QueryIntPair findDirectShortCut(final ShortcutTable shortcuts, final CompiledQuery compiled) {
+			final int ret = shortcuts.get(id());
+			if (ret != ShortcutTable.NOT_FOUND)
 				return new QueryIntPair(this, ret);
-			else
-				return SHORTCUT_NOT_FOUND;
+			final Query pushed = pushed();
+			if (pushed != this)
+				return pushed.findDirectShortCut(shortcuts, compiled);
+			return SHORTCUT_NOT_FOUND;
+		}
+
+		@Override
+		public boolean match(final int[] tags) {
+			return !a.match(tags);
 		}
 
 		@Override
@@ -259,28 +1063,49 @@ public abstract class Query {
 			return !a.match(tags);
 		}
 
+		@Override
+		boolean structurallyEquals(final Query other) {
+			return other instanceof Not && ((Not) other).a.equals(a);
+		}
+
 		@Override
 		public String toString() {
 			return "(!" + a + ")";
 		}
 
+		/**
+		 * If the negation pushed inwards is an And, this implies whatever
+		 * either of its operands implies
+		 */
 		@Override
 		public Set<Query> trueIfTrue() {
-			return Collections.<Query> singleton(this);
+			Set<Query> ret = trueIfTrue;
+			if (ret == null) {
+				final Query pushed = pushed();
+				if (pushed instanceof And || a instanceof Not) {
+					ret = Sets.<Query> newHashSet(this);
+					ret.addAll(pushed.trueIfTrue());
+				} else {
+					ret = Collections.<Query> singleton(this);
+				}
+				trueIfTrue = ret;
+			}
+			return ret;
 		}
 	}
 
 	public static class Or extends Query {
 
+		private static final long serialVersionUID = 1L;
+
 		private final Query a;
 
 		private final Query b;
 
-		Set<Query> falseIfFalse, trueIfTrue;
-
+		transient Set<Query> falseIfFalse, trueIfTrue;
 
 		public Or(final Query a, final Query b) {
-			super();
+			super(hash(hash(0x4F, a.hashCode()), b.hashCode()));
 			this.a = a;
 			this.b = b;
 			falseIfFalse = Sets.<Query> newHashSet(this);
@@ -289,19 +1114,98 @@ public abstract class Query {
 			trueIfTrue = Collections.<Query> singleton(this);
 		}
 
+		@Override
+		Query canonicalize() {
+			return canonicalChain(a, b, false);
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			return or(a, b);
+		}
+
+		@Override
+		int compile(final CompiledQuery.Builder builder, final int onTrue, final int onFalse) {
+			if (builder.stats != null) {
+				orderProbes(builder);
+				return compileChain(this, false, builder, onTrue, onFalse);
+			}
+			return a.compile(builder, onTrue, b.compile(builder, onTrue, onFalse));
+		}
+
+		/**
+		 * Record in the CompiledQuery which operand findDirectShortCut()
+		 * should look for a shortcut for first, here and down the rest of
+		 * the chain. The operand more likely to match is less likely to have
+		 * a shortcut, so we should give up on it first. This is kept in the
+		 * CompiledQuery since it depends on the Store's TagStats.
+		 */
+		private void orderProbes(final CompiledQuery.Builder builder) {
+			if (b.selectivity(builder.stats) > a.selectivity(builder.stats)) {
+				builder.probeBFirst(this);
+			}
+			if (b instanceof Or) {
+				((Or) b).orderProbes(builder);
+			}
+		}
+
+		@Override
+		double selectivity(final TagStats stats) {
+			final double sa = a.selectivity(stats), sb = b.selectivity(stats);
+			return sa + sb - sa * sb;
+		}
+
+		@Override
+		int[] triggers(final TagStats stats) {
+			// A match must match one operand or the other, so needs one of
+			// either's triggers
+			final int[] ta = a.triggers(stats), tb = b.triggers(stats);
+			if (ta == null || tb == null)
+				return null;
+			final int[] ret = Arrays.copyOf(ta, ta.length + tb.length);
+			System.arraycopy(tb, 0, ret, ta.length, tb.length);
+			return ret;
+		}
+
+		@Override
+		CompressedBitmap evaluate(final TagIndex index) {
+			return CompressedBitmap.or(a.evaluate(index), b.evaluate(index));
+		}
+
+		@Override
+		long indexCost(final TagIndex index) {
+			return a.indexCost(index) + b.indexCost(index);
+		}
+
+		@Override
+		long match(final TagBlocks blocks, final int block) {
+			return a.match(blocks, block) | b.match(blocks, block);
+		}
+
+		@Override
+		void write(final DataOutput out, final TagDictionary dictionary, final int[] tags) throws IOException {
+			out.writeByte('O');
+			a.write(out, dictionary, tags);
+			b.write(out, dictionary, tags);
+		}
+
 		@Override
 		public Set<Query> falseIfFalse() {
 			return falseIfFalse;
 		}
 
 		@Override
-		public QueryIntPair findShortCut(final HashMap<Query, Integer> shortcuts) {
-			final Integer ret = shortcuts.get(this);
-			if (ret != null)
+		QueryIntPair findDirectShortCut(final ShortcutTable shortcuts, final CompiledQuery compiled) {
+			final int ret = shortcuts.get(id());
+			if (ret != ShortcutTable.NOT_FOUND)
 				return new QueryIntPair(this, ret);
 			else {
-				final QueryIntPair aQIP = a.findShortCut(shortcuts);
-				final QueryIntPair bQIP = b.findShortCut(shortcuts);
+				// We need a shortcut for each operand, and can skip as far as
+				// the shorter of the two
+				final boolean bFirst = compiled != null && compiled.probesBFirst(this);
+				final QueryIntPair aQIP = (bFirst ? b : a).findDirectShortCut(shortcuts, compiled);
+				if (aQIP.i == -1)
+					return SHORTCUT_NOT_FOUND;
+				final QueryIntPair bQIP = (bFirst ? a : b).findDirectShortCut(shortcuts, compiled);
 
 				if (aQIP.i < bQIP.i)
 					return aQIP;
@@ -310,11 +1214,21 @@ public abstract class Query {
 			}
 		}
 
+		@Override
+		public boolean match(final int[] tags) {
+			return a.match(tags) || b.match(tags);
+		}
+
 		@Override
 		public boolean match(final Set<String> tags) {
 			return a.match(tags) || b.match(tags);
 		}
 
+		@Override
+		boolean structurallyEquals(final Query other) {
+			return other instanceof Or && ((Or) other).a.equals(a) && ((Or) other).b.equals(b);
+		}
+
 		@Override
 		public String toString() {
 			return "(" + a + " OR " + b + ")";
@@ -0,0 +1,126 @@
+package athena;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A sampled record of the queries a Store has been asked, weighted towards
+ * those asked often and recently, so that ShortcutWarmer knows which queries
+ * are worth keeping warm.
+ *
+ * Only one search in every sampleRate is recorded, so that recording costs
+ * next to nothing on the search path. Every capacity samples all of the
+ * counts are halved, and queries whose count reaches zero are forgotten, so
+ * the log favours recent queries and its size stays bounded.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+public class QueryLog {
+
+	public static final int DEFAULT_SAMPLE_RATE = 16;
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final int sampleRate;
+
+	private final int capacity;
+
+	/**
+	 * Counts calls to record(). This is deliberately unsynchronized, a lost
+	 * update just means a slightly different sample.
+	 */
+	private int ticks = 0;
+
+	/**
+	 * The decayed number of samples of each query. Guarded by this.
+	 */
+	private final HashMap<Query, Integer> counts = new HashMap<Query, Integer>();
+
+	/**
+	 * Samples since the counts were last halved. Guarded by this.
+	 */
+	private int samples = 0;
+
+	public QueryLog() {
+		this(DEFAULT_SAMPLE_RATE, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param sampleRate
+	 *            Record one query in this many
+	 * @param capacity
+	 *            The number of samples between halvings of the counts
+	 */
+	public QueryLog(final int sampleRate, final int capacity) {
+		if (sampleRate < 1 || capacity < 1)
+			throw new IllegalArgumentException("sampleRate and capacity must be positive");
+		this.sampleRate = sampleRate;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Note that a query has been searched for
+	 *
+	 * @param query
+	 *            A canonical query
+	 */
+	public void record(final Query query) {
+		if (++ticks % sampleRate != 0)
+			return;
+		synchronized (this) {
+			final Integer count = counts.get(query);
+			counts.put(query, count == null ? 1 : count + 1);
+			if (++samples == capacity) {
+				decay();
+			}
+		}
+	}
+
+	private void decay() {
+		for (final Iterator<Entry<Query, Integer>> it = counts.entrySet().iterator(); it.hasNext();) {
+			final Entry<Query, Integer> e = it.next();
+			if (e.getValue() < 2) {
+				it.remove();
+			} else {
+				e.setValue(e.getValue() / 2);
+			}
+		}
+		samples = 0;
+	}
+
+	/**
+	 * @return Up to n of the most frequently recorded queries, most frequent
+	 *         first
+	 */
+	public synchronized List<Query> top(final int n) {
+		final List<Map.Entry<Query, Integer>> entries = new ArrayList<Map.Entry<Query, Integer>>(counts.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<Query, Integer>>() {
+			@Override
+			public int compare(final Entry<Query, Integer> a, final Entry<Query, Integer> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		final List<Query> ret = new ArrayList<Query>(Math.min(n, entries.size()));
+		for (final Map.Entry<Query, Integer> e : entries) {
+			if (ret.size() == n) {
+				break;
+			}
+			ret.add(e.getKey());
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The number of distinct queries currently in the log
+	 */
+	public synchronized int size() {
+		return counts.size();
+	}
+}
@@ -0,0 +1,299 @@
+package athena;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hands out a single shared instance of every canonical Query, and gives each
+ * a small int id so that shortcuts can be keyed by an int rather than by a
+ * Query object. Unlike tags, which each Store interns in its own
+ * TagDictionary, a single registry is shared by every Store.
+ *
+ * A query stays registered, and keeps its id and its shortcuts, until purge()
+ * is called, which only happens if an application calls Store.purgeQueries().
+ * To stop a workload with an endless tail of distinct queries growing the
+ * registry without bound, at most capacity() queries are registered, by
+ * default DEFAULT_CAPACITY, counting the parts of queries as well as the
+ * queries themselves. Once it is full, new queries are still canonicalized
+ * but not registered: their id() is -1, and they are searched without
+ * learning or following shortcuts of their own, though they may still follow
+ * those of registered queries they imply. A warning is logged when this
+ * first happens. They are registered once a purge() has made room. The
+ * capacity can never exceed the largest id a ShortcutTable can hold.
+ *
+ * purge() forgets every query that hasn't been searched for since the
+ * previous purge, other than the parts of those that have, and removes their
+ * shortcuts from every Store. Their ids are dead until the following purge(),
+ * and only then handed out again: a ShortcutTable refuses a shortcut for a
+ * dead id, so none can reappear meanwhile, and a search that read a query's
+ * id just before it was purged has a whole purge interval to finish with it.
+ * Query remembers the answers implies() gave about other queries' ids, so
+ * every purge bumps generation(), which tells it to forget them. A purged
+ * query that is used again is simply registered again, see Query.canonical().
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+public class QueryRegistry {
+
+	private static final Logger log = Logger.getLogger(QueryRegistry.class);
+
+	/**
+	 * The capacity() of a new registry. The registry holds the queries it
+	 * registers, and their ids key the shortcuts of every Store, so this
+	 * bounds both to something modest unless an application that searches
+	 * for more distinct queries than this raises it with setCapacity().
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * The registry used by all Stores
+	 */
+	public static final QueryRegistry shared = new QueryRegistry();
+
+	private final ConcurrentHashMap<Query, Query> instances = new ConcurrentHashMap<Query, Query>();
+
+	/**
+	 * The query with id x is at position x, null if x is free or dead.
+	 * Replaced rather than modified when it fills up, so that get() needn't
+	 * lock, since searches call it for every shortcut they follow. Only
+	 * written while holding this.
+	 */
+	private volatile Query[] queries = new Query[16];
+
+	/**
+	 * The number of queries registered. Guarded by this.
+	 */
+	private int size = 0;
+
+	/**
+	 * The number of ids ever handed out, every id below this is registered,
+	 * dead or free. Guarded by this.
+	 */
+	private int next = 0;
+
+	/**
+	 * Ids purged by the last purge(), and ids ready to be handed out again.
+	 * Guarded by this.
+	 */
+	private int[] dead = new int[0], free = new int[16];
+
+	private int freeCount = 0;
+
+	/**
+	 * Whether we have logged that we are full since the last purge(). Guarded
+	 * by this.
+	 */
+	private boolean warned = false;
+
+	/**
+	 * Bumped by every purge(), see Query.implies(int)
+	 */
+	private volatile int generation = 0;
+
+	/**
+	 * The values of every Store, whose ShortcutTables purge() purges. Guarded
+	 * by this.
+	 */
+	private final ArrayList<WeakReference<ValueColumns<?>>> columns = new ArrayList<WeakReference<ValueColumns<?>>>();
+
+	/**
+	 * Held by purge() throughout, so that only one runs at a time
+	 */
+	private final Object purging = new Object();
+
+	/**
+	 * Guarded by this
+	 */
+	private int capacity = DEFAULT_CAPACITY;
+
+	/**
+	 * @return The most queries that will be registered at once
+	 */
+	public synchronized int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Limit the number of queries registered, see the class comment. Queries
+	 * already registered stay registered even if there are more of them.
+	 *
+	 * @param capacity
+	 *            At least 1 and at most ShortcutTable.MAX_QUERY_ID + 1
+	 */
+	public synchronized void setCapacity(final int capacity) {
+		if (capacity < 1 || capacity > ShortcutTable.MAX_QUERY_ID + 1)
+			throw new IllegalArgumentException("capacity must be between 1 and " + (ShortcutTable.MAX_QUERY_ID + 1)
+					+ ", not " + capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return The query with this id, or null if there is none, because it
+	 *         has been purged or the id was never handed out
+	 */
+	public Query get(final int id) {
+		final Query[] queries = this.queries;
+		return id >= 0 && id < queries.length ? queries[id] : null;
+	}
+
+	/**
+	 * @return True if no query has this id, so no shortcut should be added
+	 *         for it, see the class comment
+	 */
+	boolean dead(final int id) {
+		return get(id) == null;
+	}
+
+	/**
+	 * @return The number of purges so far, see Query.implies(int)
+	 */
+	int generation() {
+		return generation;
+	}
+
+	/**
+	 * Have purge() purge dead ids from the ShortcutTables of values, as long
+	 * as it isn't garbage
+	 */
+	synchronized void track(final ValueColumns<?> values) {
+		for (final Iterator<WeakReference<ValueColumns<?>>> it = columns.iterator(); it.hasNext();) {
+			if (it.next().get() == null) {
+				it.remove();
+			}
+		}
+		columns.add(new WeakReference<ValueColumns<?>>(values));
+	}
+
+	/**
+	 * Use Query.canonical() rather than calling this directly.
+	 *
+	 * @param query
+	 *            A query which is already in canonical form
+	 * @return The shared instance equal to query, which will be query itself
+	 *         (now with an id) if no equal query was registered before, or
+	 *         query itself without an id if the registry is full
+	 */
+	Query intern(final Query query) {
+		final Query existing = instances.get(query);
+		if (existing != null)
+			return existing;
+		synchronized (this) {
+			final Query registered = instances.get(query);
+			if (registered != null)
+				return registered;
+			query.canonical = query;
+			if (size >= capacity || freeCount == 0 && next > ShortcutTable.MAX_QUERY_ID) {
+				if (!warned) {
+					warned = true;
+					log.warn("The query registry is full, " + size + " queries are registered, so new queries "
+							+ "won't learn shortcuts until Store.purgeQueries() makes room");
+				}
+				query.refusedIn = generation;
+				return query;
+			}
+			final int id = freeCount > 0 ? free[--freeCount] : next++;
+			query.id = id;
+			// Publish the query before any search can see its id
+			Query[] queries = this.queries;
+			if (id >= queries.length) {
+				queries = Arrays.copyOf(queries, queries.length * 2);
+			}
+			queries[id] = query;
+			this.queries = queries;
+			instances.put(query, query);
+			size++;
+			return query;
+		}
+	}
+
+	/**
+	 * Forget every query that hasn't been searched for since the last purge,
+	 * removing its shortcuts from every Store, see the class comment. This
+	 * takes time proportional to the size of every Store, but neither
+	 * searches nor intern() wait for it.
+	 *
+	 * @return The number of queries forgotten
+	 */
+	int purge() {
+		synchronized (purging) {
+			final int dyingCount;
+			final List<ValueColumns<?>> tracked = new ArrayList<ValueColumns<?>>();
+			synchronized (this) {
+				// The last purge removed every shortcut for these
+				free = append(free, freeCount, dead);
+				freeCount += dead.length;
+				final Query[] queries = this.queries;
+				final Set<Query> kept = Collections.newSetFromMap(new IdentityHashMap<Query, Boolean>());
+				for (int id = 0; id < next; id++) {
+					if (queries[id] != null && queries[id].used) {
+						queries[id].retain(kept);
+					}
+				}
+				final int[] dying = new int[size];
+				int count = 0;
+				for (int id = 0; id < next; id++) {
+					final Query query = queries[id];
+					if (query == null) {
+						continue;
+					}
+					query.used = false;
+					if (!kept.contains(query)) {
+						instances.remove(query);
+						queries[id] = null;
+						query.id = -1;
+						dying[count++] = id;
+					}
+				}
+				this.queries = queries;
+				dyingCount = count;
+				dead = Arrays.copyOf(dying, dyingCount);
+				size -= dyingCount;
+				warned = false;
+				generation++;
+				for (final Iterator<WeakReference<ValueColumns<?>>> it = columns.iterator(); it.hasNext();) {
+					final ValueColumns<?> values = it.next().get();
+					if (values == null) {
+						it.remove();
+					} else {
+						tracked.add(values);
+					}
+				}
+			}
+			// Not holding our lock, these ids stay dead meanwhile so no
+			// ShortcutTable will take a new shortcut for them
+			for (final ValueColumns<?> values : tracked) {
+				values.purgeShortcuts(this);
+			}
+			return dyingCount;
+		}
+	}
+
+	/**
+	 * @return ids, growing it if necessary, with more appended after its
+	 *         first count
+	 */
+	private static int[] append(int[] ids, final int count, final int[] more) {
+		if (ids.length < count + more.length) {
+			ids = Arrays.copyOf(ids, count + more.length);
+		}
+		System.arraycopy(more, 0, ids, count, more.length);
+		return ids;
+	}
+
+	/**
+	 * @return The number of queries registered
+	 */
+	public synchronized int size() {
+		return size;
+	}
+}
@@ -0,0 +1,178 @@
+package athena;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the positions of the values matching recently searched queries,
+ * see Store.cacheResults(). Values are only ever appended to a Store, so a
+ * query's results only grow at the end: each entry records how far the store
+ * had been searched, and CachedIterator need only search the values added
+ * since.
+ *
+ * Removing a value doesn't invalidate anything, CachedIterator simply skips
+ * cached positions whose value has been removed. Store.compact() calls
+ * remap(), which moves every entry to the new positions and drops the
+ * removed ones.
+ *
+ * The cache is bounded by the total number of positions held rather than by
+ * the number of queries, since one query matching most of the store costs as
+ * much as thousands matching a handful of values. Entries that haven't been
+ * used recently are evicted first, much as the CLOCK page replacement
+ * algorithm would:
+ * get() sets a flag on the entry it returns, and eviction clears the flags as
+ * it passes, removing entries whose flag was already clear. get() therefore
+ * never locks, so searches of a Store that caches results still run
+ * concurrently, and only put() and remap() are serialized.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+class ResultCache {
+
+	/**
+	 * The results of one query. Immutable, so it can be read without locking.
+	 */
+	static final class Entry {
+		/**
+		 * The Store.values that positions refer to. An entry for any other
+		 * values is ignored.
+		 */
+		final ValueColumns<?> values;
+
+		/**
+		 * The positions of every value before scannedTo that matches the
+		 * query, in ascending order, including values removed since. In
+		 * ValueColumns.matchesInHandleOrder() they are in handle order
+		 * instead.
+		 */
+		final int[] positions;
+
+		final int scannedTo;
+
+		Entry(final ValueColumns<?> values, final int[] positions, final int scannedTo) {
+			this.values = values;
+			this.positions = positions;
+			this.scannedTo = scannedTo;
+		}
+	}
+
+	/**
+	 * An entry as held in the cache, with the flag get() sets
+	 */
+	private static final class Slot {
+		final Entry entry;
+
+		volatile boolean used = true;
+
+		Slot(final Entry entry) {
+			this.entry = entry;
+		}
+	}
+
+	/**
+	 * The maximum total number of positions held
+	 */
+	private final int capacity;
+
+	/**
+	 * The total number of positions held. Guarded by this.
+	 */
+	private int weight = 0;
+
+	/**
+	 * Read without locking, only modified while holding this
+	 */
+	private final ConcurrentHashMap<Query, Slot> entries = new ConcurrentHashMap<Query, Slot>();
+
+	ResultCache(final int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive, not " + capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return The entry for a canonical query, or null
+	 */
+	Entry get(final Query query) {
+		final Slot slot = entries.get(query);
+		if (slot == null)
+			return null;
+		if (!slot.used) {
+			slot.used = true;
+		}
+		return slot.entry;
+	}
+
+	/**
+	 * Cache a query's results, unless we already have results that cover more
+	 * of the same values, or they are too large to ever fit
+	 */
+	synchronized void put(final Query query, final Entry entry) {
+		if (entry.positions.length > capacity)
+			return;
+		final Slot existing = entries.get(query);
+		if (existing != null) {
+			if (existing.entry.values == entry.values && existing.entry.scannedTo >= entry.scannedTo)
+				return;
+			weight -= existing.entry.positions.length;
+		}
+		final Slot added = new Slot(entry);
+		entries.put(query, added);
+		weight += entry.positions.length;
+		// Clear flags on the first two passes, evict whatever is left on the
+		// third, but never the entry we just added, which fits on its own
+		for (int pass = 0; weight > capacity; pass++) {
+			for (final Iterator<Slot> it = entries.values().iterator(); it.hasNext() && weight > capacity;) {
+				final Slot slot = it.next();
+				if (slot == added) {
+					continue;
+				}
+				if (pass < 2 && slot.used) {
+					slot.used = false;
+				} else {
+					weight -= slot.entry.positions.length;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move every entry from oldValues to the positions Store.compact() gave
+	 * them in newValues, dropping removed values. Entries for any other
+	 * values are stale, and so are dropped.
+	 *
+	 * @param remap
+	 *            Maps old positions to new positions, as in Store.compact()
+	 */
+	synchronized void remap(final ValueColumns<?> oldValues, final ValueColumns<?> newValues, final int[] remap) {
+		weight = 0;
+		for (final Iterator<Map.Entry<Query, Slot>> it = entries.entrySet().iterator(); it.hasNext();) {
+			final Map.Entry<Query, Slot> e = it.next();
+			final Entry old = e.getValue().entry;
+			if (old.values != oldValues) {
+				it.remove();
+				continue;
+			}
+			final int[] positions = new int[old.positions.length];
+			int count = 0;
+			for (final int position : old.positions) {
+				if (!oldValues.removed(position)) {
+					positions[count++] = remap[position];
+				}
+			}
+			e.setValue(new Slot(new Entry(newValues, Arrays.copyOf(positions, count), remap[old.scannedTo])));
+			weight += count;
+		}
+	}
+
+	/**
+	 * @return The total number of positions held
+	 */
+	synchronized int weight() {
+		return weight;
+	}
+}
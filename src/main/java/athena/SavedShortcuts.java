@@ -0,0 +1,121 @@
+package athena;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The shortcuts of a Store loaded by Store.load(), read straight from the
+ * memory mapped file rather than copied onto the heap. ValueColumns only
+ * builds a value's ShortcutTable from here when a search first follows or
+ * adds one of its shortcuts, so loading costs nothing per shortcut, and
+ * shortcuts that are never used are never read.
+ *
+ * The region save() writes has a fixed layout, a big endian int for each
+ * value, the number of shortcut entries up to and including that value's,
+ * followed by every value's entries in turn, each a query id and a target.
+ * The query ids are numbered by the file, not by QueryRegistry, so they are
+ * translated through the queries the file's header lists as they are read.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+final class SavedShortcuts {
+
+	private static final int WINDOW_BITS = 27;
+
+	/**
+	 * The most entries mapped at once, a single mapping being limited to
+	 * Integer.MAX_VALUE bytes
+	 */
+	private static final int WINDOW_ENTRIES = 1 << WINDOW_BITS;
+
+	private static final int WINDOW_MASK = WINDOW_ENTRIES - 1;
+
+	private final int size;
+
+	/**
+	 * ends.get(position) is the index of the entry after the value at
+	 * position's last one
+	 */
+	private final IntBuffer ends;
+
+	/**
+	 * Every entry, WINDOW_ENTRIES to a window, as alternating query ids and
+	 * targets
+	 */
+	private final IntBuffer[] windows;
+
+	/**
+	 * The queries the file's query ids refer to. Holding them doesn't keep
+	 * them registered: once Store.purgeQueries() forgets one its id() is -1,
+	 * and entries() drops its shortcuts, unless it has been searched for and
+	 * so registered again by then, in which case they are translated to its
+	 * new id.
+	 */
+	private final Query[] queries;
+
+	/**
+	 * Map the shortcut region of a file written by Store.save()
+	 *
+	 * @param start
+	 *            The offset in the file at which the region starts
+	 * @param size
+	 *            The number of positions the file saved
+	 * @param queries
+	 *            The queries in the file's header, in the order they were
+	 *            written
+	 */
+	SavedShortcuts(final FileChannel channel, final long start, final int size, final Query[] queries)
+			throws IOException {
+		this.size = size;
+		this.queries = queries;
+		ends = channel.map(FileChannel.MapMode.READ_ONLY, start, size * 4L).asIntBuffer();
+		final long entries = size == 0 ? 0 : ends.get(size - 1);
+		final long first = start + size * 4L;
+		if (first + entries * 8 > channel.size())
+			throw new IOException("Truncated shortcuts");
+		windows = new IntBuffer[(int) ((entries + WINDOW_ENTRIES - 1) >>> WINDOW_BITS)];
+		for (int x = 0; x < windows.length; x++) {
+			final long from = (long) x << WINDOW_BITS;
+			windows[x] = channel.map(FileChannel.MapMode.READ_ONLY, first + from * 8,
+					Math.min(entries - from, WINDOW_ENTRIES) * 8).asIntBuffer();
+		}
+	}
+
+	/**
+	 * @return The number of shortcuts saved for the value at position
+	 */
+	int count(final int position) {
+		if (position >= size)
+			return 0;
+		return ends.get(position) - (position == 0 ? 0 : ends.get(position - 1));
+	}
+
+	/**
+	 * @return The shortcuts saved for the value at position as alternating
+	 *         registry ids and targets, leaving out those of queries
+	 *         QueryRegistry had no room for
+	 */
+	int[] entries(final int position) {
+		if (position >= size)
+			return new int[0];
+		final int end = ends.get(position);
+		int[] ret = new int[(end - (position == 0 ? 0 : ends.get(position - 1))) * 2];
+		int count = 0;
+		for (int entry = end - ret.length / 2; entry < end; entry++) {
+			final IntBuffer window = windows[entry >>> WINDOW_BITS];
+			final int offset = (entry & WINDOW_MASK) * 2;
+			final int id = queries[window.get(offset)].id();
+			if (id != -1) {
+				ret[count++] = id;
+				ret[count++] = window.get(offset + 1);
+			}
+		}
+		if (count < ret.length) {
+			ret = Arrays.copyOf(ret, count);
+		}
+		return ret;
+	}
+}
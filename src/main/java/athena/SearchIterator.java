@@ -0,0 +1,155 @@
+package athena;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The iterators Store.StoreIterable chooses between. This works much like
+ * AbstractIterator in Google Collections, subclasses implement computeNext(),
+ * but it also keeps track of the last value returned by next(), so that
+ * cursor() can say where to resume.
+ *
+ * Each iterator learns shortcuts as it goes, but some of what it learns can
+ * only be recorded once it knows how far it has got, which it normally
+ * records when it reaches the end of the store. A search that stops early
+ * should call finish() instead, so that the part of the store it did examine
+ * isn't wasted. An iterator that is simply abandoned can't do this, which is
+ * why Store.count(), Store.exists(), Store.find(Query, int) and Store.page()
+ * are preferable to taking part of the results of Store.find(Query).
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ */
+public abstract class SearchIterator<V> implements Iterator<V> {
+
+	final Query query;
+
+	/**
+	 * Store.values as it was when this iterator was created. Store.compact()
+	 * replaces it rather than modifying it, so this remains consistent for as
+	 * long as we need it.
+	 */
+	final ValueColumns<V> values;
+
+	/**
+	 * The size of values when this iterator was created. Values may be added
+	 * while we run, but we never look at them, so every search sees the store
+	 * as it was when it started.
+	 */
+	final int size;
+
+	/**
+	 * values.removals() when this iterator was created. A value removed since
+	 * is still returned, see removed().
+	 */
+	final int removals;
+
+	/**
+	 * The position of the value computeNext() found, which hasNext() holds on
+	 * to until next() returns it
+	 */
+	private int next;
+
+	private boolean ready = false, done = false;
+
+	/**
+	 * The position of the last value next() returned
+	 */
+	private int current;
+
+	/**
+	 * @param start
+	 *            The position we start after, the seed value's position (0)
+	 *            unless resuming from a Cursor
+	 */
+	SearchIterator(final Query query, final ValueColumns<V> values, final int start) {
+		this(query, values, start, values.removals());
+	}
+
+	/**
+	 * @param removals
+	 *            The values.removals() that another iterator over the same
+	 *            search took, so that both see the same values removed
+	 */
+	SearchIterator(final Query query, final ValueColumns<V> values, final int start, final int removals) {
+		this.query = query;
+		this.values = values;
+		size = values.size();
+		this.removals = removals;
+		current = start;
+	}
+
+	/**
+	 * @return found(value) for the next value, or endOfData()
+	 */
+	protected abstract V computeNext();
+
+	/**
+	 * @return True if the value at position had been removed when this
+	 *         iterator was created
+	 */
+	final boolean removed(final int position) {
+		return values.removed(position, removals);
+	}
+
+	/**
+	 * @param position
+	 *            The position of the value found
+	 */
+	protected final V found(final int position) {
+		next = position;
+		return values.value(position);
+	}
+
+	protected final V endOfData() {
+		done = true;
+		return null;
+	}
+
+	@Override
+	public final boolean hasNext() {
+		if (!ready && !done) {
+			computeNext();
+			ready = !done;
+		}
+		return ready;
+	}
+
+	@Override
+	public final V next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		ready = false;
+		current = next;
+		return values.value(current);
+	}
+
+	/**
+	 * @return The position of the last value next() returned, or of the value
+	 *         we started after
+	 */
+	int current() {
+		return current;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return A Cursor from which Store.find(Query, Cursor) will resume after
+	 *         the last value returned by next()
+	 */
+	public Cursor cursor() {
+		return new Cursor(query, values.handle(current));
+	}
+
+	/**
+	 * Record every shortcut that has been proven valid up to the point the
+	 * search has reached. Call this when stopping before hasNext() returns
+	 * false. The iterator must not be used afterwards, except for cursor().
+	 */
+	public abstract void finish();
+}
@@ -0,0 +1,24 @@
+package athena;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts the values held in a Store to and from bytes, so that
+ * Store.save() and Store.load() can persist them.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ *            The type of the values stored
+ */
+public interface Serializer<V> {
+
+	void write(V value, DataOutput out) throws IOException;
+
+	/**
+	 * Read a value written by write(), consuming exactly the bytes it wrote
+	 */
+	V read(DataInput in) throws IOException;
+}
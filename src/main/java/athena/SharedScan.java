@@ -0,0 +1,219 @@
+package athena;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Store.findAll(): searches for a batch of queries in a single pass over the
+ * store. Each distinct query has its own StoreIterator, which follows its own
+ * shortcuts and learns shortcuts exactly as it would searching alone, but
+ * rather than running each iterator to the end in turn we advance a single
+ * position through the store, and at each position step only the iterators
+ * that are due there, those that haven't skipped it. Every iterator that
+ * hasn't skipped a value therefore examines it at about the same time, while
+ * it is still in the cache, and a value that every query can skip isn't
+ * touched at all.
+ *
+ * Iterators are kept in buckets by the position they will examine next. The
+ * buckets cover a window of WINDOW positions from the current one, reused as
+ * it moves along, with a bit per bucket so that empty ones are passed a word
+ * at a time. Stepping to the next value, the common case, therefore costs
+ * constant time. An iterator whose shortcut takes it beyond the window waits
+ * in a queue until the window reaches it, which costs a logarithmic time, but
+ * only once per long skip.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ */
+class SharedScan<V> {
+
+	private static final int WINDOW_BITS = 12;
+
+	private static final int WINDOW = 1 << WINDOW_BITS;
+
+	private static final int WINDOW_MASK = WINDOW - 1;
+
+	private static final Comparator<SharedScan<?>.Scanner> BY_POSITION = new Comparator<SharedScan<?>.Scanner>() {
+
+		@Override
+		public int compare(final SharedScan<?>.Scanner a, final SharedScan<?>.Scanner b) {
+			final int x = a.iterator.position(), y = b.iterator.position();
+			return x < y ? -1 : x == y ? 0 : 1;
+		}
+	};
+
+	/**
+	 * Every iterator searches these values, even if the store is compacted
+	 * while they run
+	 */
+	private final ValueColumns<V> values;
+
+	private final List<Scanner> scanners;
+
+	/**
+	 * For each query passed to the constructor, its Scanner
+	 */
+	private final List<Scanner> byQuery;
+
+	/**
+	 * The first Scanner due at each position in the window, indexed by
+	 * position & WINDOW_MASK, or null
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final Scanner[] buckets = new SharedScan.Scanner[WINDOW];
+
+	/**
+	 * A bit for each of buckets, set if it isn't empty
+	 */
+	private final long[] occupied = new long[WINDOW >>> 6];
+
+	/**
+	 * The number of Scanners in buckets
+	 */
+	private int near = 0;
+
+	/**
+	 * Scanners due beyond the window
+	 */
+	private final PriorityQueue<Scanner> far;
+
+	/**
+	 * @param queries
+	 *            Canonical queries. Repeated queries are only searched once.
+	 */
+	SharedScan(final Store<V> store, final List<Query> queries) {
+		values = store.values;
+		final Map<Query, Scanner> distinct = Maps.newHashMap();
+		scanners = Lists.newArrayListWithCapacity(queries.size());
+		byQuery = Lists.newArrayListWithCapacity(queries.size());
+		for (final Query query : queries) {
+			Scanner scanner = distinct.get(query);
+			if (scanner == null) {
+				store.metrics().queryStarted();
+				final Store.StoreIterable<V> iterable = new Store.StoreIterable<V>(store, query);
+				scanner = new Scanner(new StoreIterator<V>(iterable, values, query, 0, Integer.MAX_VALUE));
+				distinct.put(query, scanner);
+				scanners.add(scanner);
+			}
+			byQuery.add(scanner);
+		}
+		far = new PriorityQueue<Scanner>(Math.max(scanners.size(), 1), BY_POSITION);
+	}
+
+	/**
+	 * @return The values matching each query, in the order they are stored,
+	 *         in the same order as the queries. Repeated queries each get
+	 *         their own copy of the List.
+	 */
+	List<List<V>> run() {
+		int position = 0;
+		for (final Scanner scanner : scanners) {
+			schedule(scanner, position);
+		}
+		while (near > 0 || !far.isEmpty()) {
+			while (!far.isEmpty() && far.peek().iterator.position() - position < WINDOW) {
+				file(far.poll());
+			}
+			if (near == 0) {
+				position = far.peek().iterator.position();
+				continue;
+			}
+			position = nextOccupied(position);
+			final int bucket = position & WINDOW_MASK;
+			Scanner scanner = buckets[bucket];
+			buckets[bucket] = null;
+			occupied[bucket >>> 6] &= ~(1L << bucket);
+			while (scanner != null) {
+				final Scanner next = scanner.next;
+				near--;
+				final int match = scanner.iterator.step();
+				if (match != -1) {
+					scanner.results.add(values.value(match));
+				}
+				schedule(scanner, position);
+				scanner = next;
+			}
+		}
+		final List<List<V>> ret = Lists.newArrayListWithCapacity(byQuery.size());
+		for (final Scanner scanner : byQuery) {
+			if (scanner.returned) {
+				ret.add(Lists.newArrayList(scanner.results));
+			} else {
+				ret.add(scanner.results);
+				scanner.returned = true;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * File a scanner under the position it will examine next, or finish it if
+	 * it has reached the end
+	 *
+	 * @param position
+	 *            The current position, which it must not be before
+	 */
+	private void schedule(final Scanner scanner, final int position) {
+		if (scanner.iterator.exhausted()) {
+			scanner.iterator.finish();
+		} else if (scanner.iterator.position() - position < WINDOW) {
+			file(scanner);
+		} else {
+			far.add(scanner);
+		}
+	}
+
+	/**
+	 * Add a scanner due within the window to its bucket
+	 */
+	private void file(final Scanner scanner) {
+		final int bucket = scanner.iterator.position() & WINDOW_MASK;
+		scanner.next = buckets[bucket];
+		buckets[bucket] = scanner;
+		occupied[bucket >>> 6] |= 1L << bucket;
+		near++;
+	}
+
+	/**
+	 * @return The first position at or after position whose bucket isn't
+	 *         empty, of which there must be one
+	 */
+	private int nextOccupied(final int position) {
+		final int start = position & WINDOW_MASK;
+		int word = start >>> 6;
+		long bits = occupied[word] & (-1L << start);
+		while (bits == 0) {
+			word = (word + 1) & (occupied.length - 1);
+			bits = occupied[word];
+		}
+		final int bucket = (word << 6) | Long.numberOfTrailingZeros(bits);
+		return position + ((bucket - start) & WINDOW_MASK);
+	}
+
+	private class Scanner {
+		final StoreIterator<V> iterator;
+
+		final List<V> results = Lists.newArrayList();
+
+		/**
+		 * The next Scanner in the same bucket
+		 */
+		Scanner next;
+
+		/**
+		 * Whether run() has returned results to a query already, so that a
+		 * repeat of it gets a copy
+		 */
+		boolean returned = false;
+
+		Scanner(final StoreIterator<V> iterator) {
+			this.iterator = iterator;
+		}
+	}
+}
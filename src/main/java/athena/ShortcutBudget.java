@@ -0,0 +1,120 @@
+package athena;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts for the memory a Store's shortcuts take, and keeps it within a
+ * limit set by Store.setShortcutBudget(). Every ShortcutTable reports the
+ * memory it allocates and frees here. maxShortcuts still limits how many
+ * shortcuts each value can have, but with a budget the values whose
+ * shortcuts are most useful can keep them while others give theirs up.
+ *
+ * When a table grows beyond the limit, the search that grew it calls check(),
+ * which reclaims memory until we are a tenth below the limit. We sample the
+ * tables of random values, find the median benefit (see ShortcutTable) of
+ * their shortcuts, and evict the shortcuts at or below it from those tables,
+ * repeating until we have freed enough. Only one thread reclaims at a time,
+ * the others carry on regardless, so the limit can be briefly exceeded.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+class ShortcutBudget {
+
+	/**
+	 * The number of values whose tables we sample at a time
+	 */
+	private static final int SAMPLE_VALUES = 64;
+
+	private final Store<?> store;
+
+	private final AtomicLong allocated = new AtomicLong();
+
+	private volatile long limit = Long.MAX_VALUE;
+
+	private final AtomicBoolean reclaiming = new AtomicBoolean();
+
+	/**
+	 * Only used while holding reclaiming
+	 */
+	private final Random random = new Random();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	ShortcutBudget(final Store<?> store) {
+		this.store = store;
+	}
+
+	/**
+	 * Record memory allocated by a ShortcutTable, or freed if negative
+	 */
+	void allocated(final long bytes) {
+		allocated.addAndGet(bytes);
+	}
+
+	/**
+	 * @return The memory shortcuts currently take, in bytes
+	 */
+	long memory() {
+		return allocated.get();
+	}
+
+	long limit() {
+		return limit;
+	}
+
+	/**
+	 * @return The number of shortcuts evicted to stay within the limit
+	 */
+	long evictions() {
+		return evictions.get();
+	}
+
+	void setLimit(final long limit) {
+		this.limit = limit;
+		check();
+	}
+
+	/**
+	 * Reclaim memory if we are over the limit, unless another thread already
+	 * is
+	 */
+	void check() {
+		if (allocated.get() <= limit || !reclaiming.compareAndSet(false, true))
+			return;
+		try {
+			reclaim();
+		} finally {
+			reclaiming.set(false);
+		}
+	}
+
+	private void reclaim() {
+		final long target = limit - limit / 10;
+		final ValueColumns<?> values = store.values;
+		final long[] sample = new long[SAMPLE_VALUES * 16];
+		final int[] positions = new int[SAMPLE_VALUES];
+		// Give up eventually, the limit may be too small to reach even with no
+		// shortcuts at all
+		for (int rounds = 0; allocated.get() > target && rounds < values.size() / SAMPLE_VALUES * 4 + 16; rounds++) {
+			int sampled = 0;
+			for (int x = 0; x < SAMPLE_VALUES; x++) {
+				positions[x] = random.nextInt(values.size());
+				sampled += values.existingShortcuts(positions[x]).benefits(sample, sampled);
+			}
+			if (sampled == 0) {
+				continue;
+			}
+			Arrays.sort(sample, 0, sampled);
+			final long threshold = sample[(sampled - 1) / 2];
+			long evicted = 0;
+			for (final int position : positions) {
+				evicted += values.existingShortcuts(position).evictBelow(threshold);
+			}
+			evictions.addAndGet(evicted);
+		}
+	}
+}
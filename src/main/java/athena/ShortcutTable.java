@@ -0,0 +1,598 @@
+package athena;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The shortcuts from a single value, mapping query ids (from QueryRegistry) to
+ * positions in Store.values. An entry q -> p indicates that no value between
+ * the owning value and position p matches the query with id q.
+ *
+ * This is a small open-addressed hash table with linear probing. Each slot is
+ * a single long holding the query id, the target position and a small count of
+ * recent hits, so a slot can never be observed half-written. That lets get()
+ * run without any locking while put() and friends synchronize on the table.
+ * Readers racing with a writer may occasionally fail to see an entry that is
+ * being moved, which is harmless, they just don't get to skip.
+ *
+ * When the table is full, or when the Store's ShortcutBudget needs memory
+ * back, entries are evicted by their benefit: the distance they skip times one
+ * more than their recent hits. Hit counts saturate at MAX_HITS, so a popular
+ * entry stops costing a write per read, and are halved whenever the
+ * ShortcutBudget samples the table, so that the count reflects recent use.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+public final class ShortcutTable {
+
+	/**
+	 * Returned by get() if there is no shortcut for a query
+	 */
+	public static final int NOT_FOUND = -1;
+
+	private static final long EMPTY = 0L;
+
+	/**
+	 * Slots hold the hit count in the top 4 bits, then the query id plus one
+	 * in 28 bits, then the target
+	 */
+	private static final int HITS_SHIFT = 60;
+
+	static final int MAX_HITS = 15;
+
+	private static final long ONE_HIT = 1L << HITS_SHIFT;
+
+	private static final long HITS_MASK = (long) MAX_HITS << HITS_SHIFT;
+
+	private static final long TARGET_MASK = 0xFFFFFFFFL;
+
+	/**
+	 * The largest query id a slot can hold. QueryRegistry never hands out a
+	 * larger one, and put() ignores any query without a valid id.
+	 */
+	static final int MAX_QUERY_ID = (1 << (HITS_SHIFT - 32)) - 2;
+
+	/**
+	 * The most slots findImplied() will scan. A search calls it at every step,
+	 * so scanning a large table, such as the seed value's in a store with
+	 * unbounded maxShortcuts, would cost more than the skips it finds, and
+	 * would ask implies() about more queries than Query remembers answers
+	 * for.
+	 */
+	static final int MAX_IMPLIED_SCAN = 64;
+
+	/**
+	 * The memory an empty array of slots takes, the array object and the
+	 * long[] inside it
+	 */
+	private static final int ARRAY_OVERHEAD = 32;
+
+	private final int maxSize;
+
+	/**
+	 * The position of the owning value, so that we know how far each shortcut
+	 * skips
+	 */
+	private final int position;
+
+	/**
+	 * Where we account for our memory, or null. Written while holding this,
+	 * and volatile since a table may be shared without synchronization, see
+	 * ValueColumns.shortcutsToUpdate().
+	 */
+	private volatile ShortcutBudget budget;
+
+	/**
+	 * The registry whose purged queries we refuse shortcuts for, see
+	 * QueryRegistry.purge(), or null for a table outside any Store
+	 */
+	private final QueryRegistry registry;
+
+	/**
+	 * Allocated on the first put(), since many values never get any shortcuts.
+	 * Replaced rather than modified when the table grows.
+	 */
+	private volatile AtomicLongArray slots = null;
+
+	/**
+	 * The number of entries. Guarded by this.
+	 */
+	private int size = 0;
+
+	/**
+	 * The StoreMetrics.epoch() in which we last had to evict a shortcut to
+	 * make room for another, or 0. Guarded by this.
+	 */
+	private int evictedIn = 0;
+
+	ShortcutTable(final int maxSize) {
+		this(maxSize, 0, null);
+	}
+
+	/**
+	 * @param position
+	 *            The position of the owning value
+	 * @param budget
+	 *            Accounts for the memory we use, or null
+	 */
+	ShortcutTable(final int maxSize, final int position, final ShortcutBudget budget) {
+		this(maxSize, position, budget, null);
+	}
+
+	/**
+	 * @param registry
+	 *            The registry the ids we are given come from
+	 */
+	ShortcutTable(final int maxSize, final int position, final ShortcutBudget budget,
+			final QueryRegistry registry) {
+		this.maxSize = maxSize;
+		this.position = position;
+		this.budget = budget;
+		this.registry = registry;
+	}
+
+	/**
+	 * Copy a table to a value's new position during Store.compact(). The old
+	 * table's memory is no longer accounted for, see detach().
+	 *
+	 * @param position
+	 *            The new position of the owning value
+	 * @param remap
+	 *            Maps old positions to new positions
+	 */
+	ShortcutTable(final ShortcutTable old, final int position, final int[] remap) {
+		this(old.maxSize, position, old.budget, old.registry);
+		old.detach();
+		synchronized (old) {
+			evictedIn = old.evictedIn;
+		}
+		final AtomicLongArray oldSlots = old.slots;
+		if (oldSlots == null)
+			return;
+		for (int x = 0; x < oldSlots.length(); x++) {
+			final long slot = oldSlots.get(x);
+			if (slot != EMPTY) {
+				final int target = remap[target(slot)];
+				// No point in a shortcut that only takes us to the following
+				// value
+				if (target > position + 1) {
+					put(queryId(slot), target);
+				}
+			}
+		}
+	}
+
+	private static int hash(final int queryId) {
+		final int h = queryId * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int queryId(final long slot) {
+		return (int) ((slot & ~HITS_MASK) >>> 32) - 1;
+	}
+
+	private static int hits(final long slot) {
+		return (int) (slot >>> HITS_SHIFT);
+	}
+
+	private static long slot(final int queryId, final int target) {
+		return ((long) (queryId + 1) << 32) | target;
+	}
+
+	private static int target(final long slot) {
+		return (int) (slot & TARGET_MASK);
+	}
+
+	public synchronized void clear() {
+		setSlots(null);
+		size = 0;
+	}
+
+	/**
+	 * Stop accounting for this table's memory, since the value it belongs to
+	 * has been replaced by Store.compact(). Searches still using it may add
+	 * shortcuts, but it will soon be garbage.
+	 */
+	synchronized void detach() {
+		if (budget != null) {
+			budget.allocated(-memory(slots));
+			budget = null;
+		}
+	}
+
+	/**
+	 * Replace slots, accounting for the change in memory
+	 */
+	private void setSlots(final AtomicLongArray slots) {
+		if (budget != null) {
+			budget.allocated(memory(slots) - memory(this.slots));
+		}
+		this.slots = slots;
+	}
+
+	private static long memory(final AtomicLongArray slots) {
+		return slots == null ? 0 : ARRAY_OVERHEAD + 8L * slots.length();
+	}
+
+	/**
+	 * @return The memory this table's slots take, in bytes
+	 */
+	long memory() {
+		return memory(slots);
+	}
+
+	/**
+	 * Count a hit on the entry in slot x, unless its count is already
+	 * saturated. If this fails then someone else changed the slot first,
+	 * which is fine, we just lose the hit.
+	 */
+	private static void hit(final AtomicLongArray slots, final int x, final long slot) {
+		if (hits(slot) < MAX_HITS) {
+			slots.compareAndSet(x, slot, slot + ONE_HIT);
+		}
+	}
+
+	/**
+	 * @return The estimated usefulness of an entry, the distance it skips
+	 *         times one more than its recent hits
+	 */
+	private long benefit(final long slot) {
+		return (long) (target(slot) - position) * (hits(slot) + 1);
+	}
+
+	/**
+	 * @return The target position of the shortcut for a query, or NOT_FOUND
+	 */
+	public int get(final int queryId) {
+		return get(queryId, true);
+	}
+
+	/**
+	 * Like get(), but without counting a hit, for checking a shortcut rather
+	 * than following it
+	 */
+	int peek(final int queryId) {
+		return get(queryId, false);
+	}
+
+	private int get(final int queryId, final boolean hit) {
+		final AtomicLongArray slots = this.slots;
+		if (slots == null || queryId < 0)
+			return NOT_FOUND;
+		final int mask = slots.length() - 1;
+		for (int x = hash(queryId) & mask, probes = 0; probes <= mask; x = (x + 1) & mask, probes++) {
+			final long slot = slots.get(x);
+			if (slot == EMPTY)
+				return NOT_FOUND;
+			if (queryId(slot) == queryId) {
+				if (hit) {
+					hit(slots, x, slot);
+				}
+				return target(slot);
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * @param direct
+	 *            The shortcut the query found directly, see
+	 *            Query.findDirectShortCut(), which only slots with a further
+	 *            target are tested against
+	 * @return The shortcut with the furthest target among direct and those for
+	 *         queries that query implies, see Query.implies(). Tables of more
+	 *         than MAX_IMPLIED_SCAN slots aren't scanned, direct is returned.
+	 */
+	Query.QueryIntPair findImplied(final Query query, final Query.QueryIntPair direct) {
+		final AtomicLongArray slots = this.slots;
+		if (slots == null || slots.length() > MAX_IMPLIED_SCAN)
+			return direct;
+		// If ids are recycled while we look, a slot we read may be for a
+		// query that has since been purged, see QueryRegistry.purge()
+		final int generation = QueryRegistry.shared.generation();
+		int bestTarget = direct.i, bestIndex = -1;
+		long bestSlot = EMPTY;
+		for (int x = 0; x < slots.length(); x++) {
+			final long slot = slots.get(x);
+			if (slot != EMPTY && target(slot) > bestTarget && query.implies(queryId(slot))) {
+				bestTarget = target(slot);
+				bestIndex = x;
+				bestSlot = slot;
+			}
+		}
+		if (bestIndex == -1)
+			return direct;
+		final Query best = QueryRegistry.shared.get(queryId(bestSlot));
+		if (best == null || QueryRegistry.shared.generation() != generation)
+			return direct;
+		hit(slots, bestIndex, bestSlot);
+		return new Query.QueryIntPair(best, bestTarget);
+	}
+
+	/**
+	 * Note that we evicted a shortcut to make room for another, see
+	 * StoreMetrics.getEvictingValueFraction()
+	 *
+	 * @return True if we hadn't already in this epoch
+	 */
+	synchronized boolean evictedIn(final int epoch) {
+		if (evictedIn == epoch)
+			return false;
+		evictedIn = epoch;
+		return true;
+	}
+
+	/**
+	 * Add or replace the shortcut for a query, evicting another shortcut if
+	 * the table is full. If this takes more memory and the Store is over its
+	 * ShortcutBudget, the budget reclaims some from other tables before we
+	 * return.
+	 * 
+	 * @param queryId
+	 *            The query's id, or -1 for a query QueryRegistry had no room
+	 *            for, which is ignored, as is the id of a query that has been
+	 *            purged
+	 * @return True if another shortcut was evicted to make room
+	 */
+	public boolean put(final int queryId, final int target) {
+		if (queryId < 0 || queryId > MAX_QUERY_ID)
+			return false;
+		final long before;
+		final boolean evicted;
+		final ShortcutBudget budget;
+		synchronized (this) {
+			before = memory(slots);
+			evicted = putLocked(queryId, target);
+			budget = memory(slots) > before ? this.budget : null;
+		}
+		// Not holding our lock, since the budget will lock other tables
+		if (budget != null) {
+			budget.check();
+		}
+		return evicted;
+	}
+
+	private boolean putLocked(final int queryId, final int target) {
+		// Checked while holding our lock, so that purge() can't miss it
+		if (maxSize <= 0 || registry != null && registry.dead(queryId))
+			return false;
+		AtomicLongArray slots = this.slots;
+		if (slots == null) {
+			slots = new AtomicLongArray(capacityFor(Math.min(maxSize, 4)));
+			setSlots(slots);
+		}
+		int mask = slots.length() - 1;
+		int x = hash(queryId) & mask;
+		for (long slot; (slot = slots.get(x)) != EMPTY; x = (x + 1) & mask) {
+			if (queryId(slot) == queryId) {
+				// Keep the hits, it's the same shortcut but longer
+				slots.set(x, slot(queryId, target) | (slot & HITS_MASK));
+				return false;
+			}
+		}
+		final boolean evicted = size == maxSize;
+		if (evicted) {
+			evict(slots);
+		} else if ((size + 1) * 2 > slots.length()) {
+			slots = grow(slots);
+		} else {
+			slots.set(x, slot(queryId, target));
+			size++;
+			return false;
+		}
+		// The table changed, so we need to find a new empty slot
+		mask = slots.length() - 1;
+		for (x = hash(queryId) & mask; slots.get(x) != EMPTY; x = (x + 1) & mask) {
+		}
+		slots.set(x, slot(queryId, target));
+		size++;
+		return evicted;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return The shortcuts as alternating query ids and targets, for
+	 *         Store.save()
+	 */
+	int[] entries() {
+		final AtomicLongArray slots = this.slots;
+		if (slots == null)
+			return new int[0];
+		final int[] ret = new int[slots.length() * 2];
+		int size = 0;
+		for (int x = 0; x < slots.length(); x++) {
+			final long slot = slots.get(x);
+			if (slot != EMPTY) {
+				ret[size++] = queryId(slot);
+				ret[size++] = target(slot);
+			}
+		}
+		return size == ret.length ? ret : Arrays.copyOf(ret, size);
+	}
+
+	/**
+	 * @return A copy of the shortcuts, for debugging
+	 */
+	public LinkedHashMap<Query, Integer> toMap() {
+		final LinkedHashMap<Query, Integer> ret = new LinkedHashMap<Query, Integer>();
+		final AtomicLongArray slots = this.slots;
+		if (slots != null) {
+			for (int x = 0; x < slots.length(); x++) {
+				final long slot = slots.get(x);
+				final Query query = slot == EMPTY ? null : QueryRegistry.shared.get(queryId(slot));
+				if (query != null) {
+					ret.put(query, target(slot));
+				}
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		return toMap().toString();
+	}
+
+	private static int capacityFor(final int entries) {
+		// Keep the load factor at or below 0.5 so that probe sequences are
+		// short
+		return Integer.highestOneBit(Math.max(entries * 2 - 1, 1)) << 1;
+	}
+
+	/**
+	 * Remove the entry with the least benefit
+	 */
+	private void evict(final AtomicLongArray slots) {
+		int worst = -1;
+		long worstBenefit = Long.MAX_VALUE;
+		for (int x = 0; x < slots.length(); x++) {
+			final long slot = slots.get(x);
+			if (slot != EMPTY && benefit(slot) < worstBenefit) {
+				worst = x;
+				worstBenefit = benefit(slot);
+			}
+		}
+		remove(slots, worst);
+	}
+
+	private void remove(final AtomicLongArray slots, final int x) {
+		slots.set(x, EMPTY);
+		size--;
+		closeGap(slots, x);
+	}
+
+	/**
+	 * Remove every shortcut for a query that has been purged, see
+	 * QueryRegistry.purge()
+	 */
+	synchronized void purge(final QueryRegistry registry) {
+		final AtomicLongArray slots = this.slots;
+		if (slots == null)
+			return;
+		// As in evictBelow(), a later entry may move back into the slot we
+		// just emptied
+		for (int x = 0; x < slots.length();) {
+			final long slot = slots.get(x);
+			if (slot != EMPTY && registry.dead(queryId(slot))) {
+				remove(slots, x);
+			} else {
+				x++;
+			}
+		}
+		if (size == 0) {
+			setSlots(null);
+		}
+	}
+
+	/**
+	 * Halve every hit count. A reader racing with this may lose a hit.
+	 */
+	private static void age(final AtomicLongArray slots) {
+		for (int x = 0; x < slots.length(); x++) {
+			final long slot = slots.get(x);
+			if (hits(slot) > 1) {
+				slots.compareAndSet(x, slot, (slot & ~HITS_MASK) | ((long) (hits(slot) >>> 1) << HITS_SHIFT));
+			}
+		}
+	}
+
+	/**
+	 * Add the benefit of each entry to a sample, for ShortcutBudget
+	 * 
+	 * @return The number of benefits added
+	 */
+	int benefits(final long[] sample, final int offset) {
+		final AtomicLongArray slots = this.slots;
+		if (slots == null)
+			return 0;
+		int count = 0;
+		for (int x = 0; x < slots.length() && offset + count < sample.length; x++) {
+			final long slot = slots.get(x);
+			if (slot != EMPTY) {
+				sample[offset + count++] = benefit(slot);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Evict every entry whose benefit is at most threshold, for
+	 * ShortcutBudget, then age the rest and give back any memory we no longer
+	 * need
+	 * 
+	 * @return The number of entries evicted
+	 */
+	synchronized int evictBelow(final long threshold) {
+		AtomicLongArray slots = this.slots;
+		if (slots == null)
+			return 0;
+		int evicted = 0;
+		// Removing an entry can move a later one back into the slot we just
+		// looked at, so look at it again
+		for (int x = 0; x < slots.length();) {
+			final long slot = slots.get(x);
+			if (slot != EMPTY && benefit(slot) <= threshold) {
+				remove(slots, x);
+				evicted++;
+			} else {
+				x++;
+			}
+		}
+		if (size == 0) {
+			setSlots(null);
+		} else {
+			age(slots);
+			if (capacityFor(size) < slots.length()) {
+				slots = resize(slots, capacityFor(size));
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Having emptied a slot, move any later entries in the same probe sequence
+	 * back so that they remain reachable
+	 */
+	private static void closeGap(final AtomicLongArray slots, int gap) {
+		final int mask = slots.length() - 1;
+		for (int x = (gap + 1) & mask;; x = (x + 1) & mask) {
+			final long slot = slots.get(x);
+			if (slot == EMPTY)
+				return;
+			final int home = hash(queryId(slot)) & mask;
+			// Can this entry move back to the gap without ending up before
+			// its home slot?
+			if (((x - home) & mask) >= ((x - gap) & mask)) {
+				slots.set(gap, slot);
+				slots.set(x, EMPTY);
+				gap = x;
+			}
+		}
+	}
+
+	private AtomicLongArray grow(final AtomicLongArray old) {
+		return resize(old, old.length() * 2);
+	}
+
+	private AtomicLongArray resize(final AtomicLongArray old, final int length) {
+		final AtomicLongArray slots = new AtomicLongArray(length);
+		final int mask = slots.length() - 1;
+		for (int y = 0; y < old.length(); y++) {
+			final long slot = old.get(y);
+			if (slot != EMPTY) {
+				int x = hash(queryId(slot)) & mask;
+				while (slots.get(x) != EMPTY) {
+					x = (x + 1) & mask;
+				}
+				slots.set(x, slot);
+			}
+		}
+		setSlots(slots);
+		return slots;
+	}
+}
@@ -0,0 +1,144 @@
+package athena;
+
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A low priority background thread that replays the most frequent queries in
+ * a Store's QueryLog, so that their shortcut chains are complete before a
+ * foreground search needs them. Created by Store.startWarmer() and stopped
+ * by Store.stopWarmer().
+ *
+ * The warmer replays its queries whenever values have been added, and at
+ * least once every interval otherwise, which repairs chains that have lost
+ * shortcuts to eviction. A replay of a query that is already warm just
+ * follows its shortcuts from match to match, so this is cheap when there is
+ * nothing to do.
+ *
+ * A replay is an ordinary search, so like any other it runs alongside add(),
+ * remove(), compact() and foreground searches without blocking or waiting
+ * for them.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ */
+public class ShortcutWarmer<V> implements Runnable {
+
+	private static final Logger log = Logger.getLogger(ShortcutWarmer.class);
+
+	private final Store<V> store;
+
+	private final int queries;
+
+	private final double cpuBudget;
+
+	private final long interval;
+
+	private final Thread thread;
+
+	/**
+	 * Set by valuesAdded(), guarded by this
+	 */
+	private boolean dirty = false;
+
+	private volatile boolean stopped = false;
+
+	private volatile int cycles = 0;
+
+	/**
+	 * @param queries
+	 *            The number of queries from the top of the QueryLog to keep
+	 *            warm
+	 * @param cpuBudget
+	 *            The fraction of one core the warmer may use, greater than 0
+	 *            and at most 1. After each replay the warmer sleeps long
+	 *            enough to stay within this.
+	 * @param interval
+	 *            The longest time, in milliseconds, between replays
+	 */
+	ShortcutWarmer(final Store<V> store, final int queries, final double cpuBudget, final long interval) {
+		if (cpuBudget <= 0 || cpuBudget > 1)
+			throw new IllegalArgumentException("cpuBudget must be greater than 0 and at most 1, not " + cpuBudget);
+		if (interval < 1)
+			throw new IllegalArgumentException("interval must be positive, not " + interval);
+		this.store = store;
+		this.queries = queries;
+		this.cpuBudget = cpuBudget;
+		this.interval = interval;
+		thread = new Thread(this, "Athena shortcut warmer");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stop the warmer, waiting for any replay in progress to finish. Use
+	 * Store.stopWarmer() rather than calling this directly.
+	 */
+	void stop() throws InterruptedException {
+		stopped = true;
+		thread.interrupt();
+		thread.join();
+	}
+
+	/**
+	 * Called by Store.add()
+	 */
+	synchronized void valuesAdded() {
+		dirty = true;
+		notify();
+	}
+
+	/**
+	 * @return The number of times the warmer has replayed its queries
+	 */
+	public int cycles() {
+		return cycles;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!stopped) {
+				synchronized (this) {
+					if (!dirty) {
+						wait(interval);
+					}
+					dirty = false;
+				}
+				for (final Query query : store.queryLog().top(queries)) {
+					if (stopped)
+						return;
+					final long start = System.nanoTime();
+					try {
+						replay(query);
+					} catch (final RuntimeException e) {
+						// One bad replay mustn't leave the store with a
+						// warmer that has silently stopped
+						log.warn("Replaying " + query + " failed", e);
+					}
+					final long elapsed = System.nanoTime() - start;
+					if (cpuBudget < 1) {
+						final long pause = (long) (elapsed * (1 - cpuBudget) / cpuBudget);
+						Thread.sleep(pause / 1000000, (int) (pause % 1000000));
+					}
+				}
+				cycles++;
+			}
+		} catch (final InterruptedException e) {
+			// We've been stopped
+		}
+	}
+
+	private void replay(final Query query) {
+		// Bypass Store.find(), which would record the replay in the log
+		for (final Iterator<V> it = new Store.StoreIterable<V>(store, query).storeOrder(); it.hasNext();) {
+			it.next();
+		}
+	}
+}
@@ -1,18 +1,47 @@
 package athena;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
-import com.google.common.collect.Maps;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
 
 /**
  * Stores values, each of which is associated with a set of tags, and allows
  * retrieval of those tags using a boolean query.
  * 
+ * Any number of threads may search a Store concurrently, even though every
+ * search may also add shortcuts. Shortcuts are read without locking, and each
+ * value's ShortcutTable is updated under its own lock, so two searches only
+ * contend if they add shortcuts to the same value at the same moment.
+ * 
+ * Values may also be added, removed and compacted while searches run. Each
+ * search sees the store as it was when it started, see ValueColumns, and
+ * neither waits for add() nor holds it up, except that searches using the
+ * TagIndex or TagBlocks briefly share their locks with add(). Writers are
+ * serialized by the Store's own lock.
+ * 
  * @author Ian Clarke <ian@sensearray.com>
  * 
  * @param <V>
@@ -22,12 +51,126 @@ public class Store<V> {
 	// public static final int MAX_SEED_SIZE = 500;
 
 	/**
-	 * This is where the actual data is stored.
+	 * An option to the constructor: maintain a TagIndex, so that a query that
+	 * hasn't been seen before, and so has no shortcuts, can often be answered
+	 * without examining every value. This costs memory and slows add() a
+	 * little.
+	 */
+	public static final int INDEXED = 1;
+
+	/**
+	 * An option to the constructor: maintain TagBlocks, so that a query that
+	 * hasn't been seen before can be evaluated against 64 values at a time.
+	 * This costs one bit per value for each distinct tag, and is most useful
+	 * for queries that match much of the store, where an index doesn't help.
+	 */
+	public static final int BLOCKED = 2;
+
+	/**
+	 * An option to the constructor: as well as counting how often each tag
+	 * occurs, which every Store does, estimate how often each pair of tags
+	 * occurs together, see TagStats. This improves the order in which the
+	 * operands of an And are tested where tags are correlated, at the cost of
+	 * 64KB and some time in add() for each pair of tags a value has.
 	 */
-	protected ArrayList<Value<V>> values = new ArrayList<Value<V>>();
+	public static final int PAIR_STATISTICS = 4;
+
+	/**
+	 * Identifies a file written by save(), followed by FILE_VERSION
+	 */
+	private static final int FILE_MAGIC = 0x4154484E;
+
+	private static final int FILE_VERSION = 3;
+
+	/**
+	 * Bits saved alongside the constructor options, recording that values
+	 * were reordered by recluster() and whether it was asked to keep
+	 * insertion order
+	 */
+	private static final int SAVED_REORDERED = 1 << 16, SAVED_INSERTION_ORDER = 1 << 17;
+
+	/**
+	 * This is where the actual data is stored, see ValueColumns. compact()
+	 * replaces it rather than modifying it, so a StoreIterator can keep using
+	 * the values it started with.
+	 */
+	protected volatile ValueColumns<V> values;
+
+	/**
+	 * Interns the tags of our values, see dictionary()
+	 */
+	private final TagDictionary dictionary = new TagDictionary();
 
 	private final int maxShortcuts;
 
+	/**
+	 * An inverted index used to answer queries that don't have shortcuts yet,
+	 * or null if the store was created without one. Like values, this is
+	 * replaced by compact() rather than modified.
+	 */
+	private volatile TagIndex index;
+
+	/**
+	 * Tag membership in blocks of 64 values, used like index, or null if the
+	 * store was created without them
+	 */
+	private volatile TagBlocks blocks;
+
+	/**
+	 * Tag frequencies, used to order the tests in the queries we compile. Like
+	 * index, this is replaced by compact().
+	 */
+	private volatile TagStats stats;
+
+	/**
+	 * Whether find() returns values in the order they were added even though
+	 * recluster() has reordered them. Only meaningful once values is
+	 * reordered, and written before it is.
+	 */
+	private volatile boolean insertionOrder = false;
+
+	/**
+	 * The results of recent searches, or null unless cacheResults() has been
+	 * called
+	 */
+	private volatile ResultCache cache;
+
+	/**
+	 * Maps the handles returned by add() to positions in values, or -1 once a
+	 * value has been removed. Guarded by this.
+	 */
+	private int[] positions = new int[16];
+
+	/**
+	 * The handle that will be given to the next value added. Guarded by this.
+	 */
+	private int nextHandle = 0;
+
+	/**
+	 * The number of removed values still occupying a position in values.
+	 * Guarded by this.
+	 */
+	private int tombstones = 0;
+
+	/**
+	 * A sample of the queries passed to find(), findAll() and findParallel()
+	 */
+	private final QueryLog queryLog = new QueryLog();
+
+	private final StoreMetrics metrics = new StoreMetrics(this);
+
+	private final ShortcutBudget budget = new ShortcutBudget(this);
+
+	/**
+	 * The standing queries registered by subscribe()
+	 */
+	private final SubscriptionIndex<V> subscriptions = new SubscriptionIndex<V>();
+
+	/**
+	 * The warmer started by startWarmer(), if any. Guarded by this.
+	 */
+	private ShortcutWarmer<V> warmer;
+
 	/**
 	 * Create a store
 	 * 
@@ -37,41 +180,131 @@ public class Store<V> {
 	 *            opposite.
 	 */
 	public Store(final int maxShortcuts) {
+		this(maxShortcuts, 0);
+	}
+
+	/**
+	 * Create a store
+	 * 
+	 * @param maxShortcuts
+	 *            The maximum number of shortcuts permitted per-value. Higher
+	 *            means faster searches but higher memory usage. Lower means the
+	 *            opposite.
+	 * @param options
+	 *            Any combination of INDEXED, BLOCKED and PAIR_STATISTICS, or 0
+	 *            for none of them
+	 */
+	public Store(final int maxShortcuts, final int options) {
 		this.maxShortcuts = maxShortcuts;
+		values = new ValueColumns<V>(maxShortcuts, budget, dictionary);
 		// The first element is a dummy "seed" value which allows us
 		// to skip into the store initially
-		// values.add(new Value<V>(null, null, MAX_SEED_SIZE, values.size()));
-		values.add(new Value<V>(null, null, maxShortcuts, values.size()));
+		values.add(new int[0], null, -1);
+		if ((options & INDEXED) != 0) {
+			index = new TagIndex(values);
+		}
+		if ((options & BLOCKED) != 0) {
+			blocks = new TagBlocks(values);
+		}
+		stats = new TagStats((options & PAIR_STATISTICS) != 0, dictionary);
 	}
 
 	/**
-	 * Add a value to the Store, associating it with a Set of tags
+	 * Add a value to the Store, associating it with a Set of tags. The tags are
+	 * interned through our dictionary() here, once, so that searches never
+	 * need to touch the Strings again. Once the value can be found it is
+	 * passed to every Subscriber whose query it matches.
+	 * 
+	 * @return A handle which may be passed to remove()
+	 * @throws IllegalStateException
+	 *             If a tag is new and our dictionary() is full, in which
+	 *             case the value isn't added
 	 */
-	public void add(final Set<String> tags, final V value) {
-		values.add(new Value<V>(tags, value, maxShortcuts, values.size()));
+	public int add(final Set<String> tags, final V value) {
+		return add(tags, value, 0);
+	}
+
+	/**
+	 * Add a value with a score, which findTopK() ranks values by. Values
+	 * added without one have a score of 0.
+	 * 
+	 * @return A handle which may be passed to remove()
+	 */
+	public synchronized int add(final Set<String> tags, final V value, final double score) {
+		if (Double.isNaN(score))
+			throw new IllegalArgumentException("score must be a number");
+		// First, since it may refuse new tags
+		final int[] encoded = dictionary.encode(tags);
+		final int handle = nextHandle++;
+		if (handle == positions.length) {
+			positions = Arrays.copyOf(positions, positions.length * 2);
+		}
+		final int position = values.size();
+		positions[handle] = position;
+		// The index and blocks must have the value before searches can see
+		// it, or a search using them could learn a shortcut over it
+		if (index != null) {
+			index.add(position, encoded);
+		}
+		if (blocks != null) {
+			blocks.add(position, encoded);
+		}
+		stats.add(encoded);
+		values.add(encoded, value, handle, score);
+		subscriptions.added(encoded, value);
+		if (warmer != null) {
+			warmer.valuesAdded();
+		}
+		return handle;
+	}
+
+	/**
+	 * Register a standing query: every value added from now on that matches
+	 * it is passed to subscriber, by the add() that adds it. This replaces
+	 * repeatedly searching for newly added values. The values added aren't
+	 * tested against every subscription, only against those whose query they
+	 * could match, see SubscriptionIndex, so thousands of subscriptions are
+	 * cheap as long as their queries mention tags that most values lack.
+	 * 
+	 * Subscriptions aren't saved by save().
+	 * 
+	 * @param q
+	 *            The query to match, converted to canonical form
+	 * @return A Subscription, whose cancel() stops passing values to
+	 *         subscriber
+	 * @throws IllegalStateException
+	 *             If the query has a tag our dictionary() doesn't have and it
+	 *             is full, see TagDictionary.setCapacity()
+	 */
+	public Subscription<V> subscribe(final Query q, final Subscriber<? super V> subscriber) {
+		return subscriptions.add(q.canonical(), stats, subscriber);
 	}
 
 	/**
 	 * A debugging utility method that will verify that shortcuts never skip
-	 * over matching values, and always point to values that do match the
-	 * associated query.
+	 * over matching values, and never point beyond the end of the store.
+	 * 
+	 * Note that a shortcut's target need not match its query, StoreIterator
+	 * tests it like any other value. This happens when values are added after
+	 * a search reached the end of the store, or when compact() moves a
+	 * shortcut from a removed value to the next remaining one.
 	 * 
 	 * @return True if all is well, false if there is a problem
 	 */
 	public boolean checkIntegrity() {
+		final ValueColumns<V> values = this.values;
 		for (int x = 1; x < values.size(); x++) {
-			final Value<V> value = values.get(x);
-			for (final Entry<Query, Integer> e : value.shortcuts.entrySet()) {
+			for (final Entry<Query, Integer> e : values.shortcuts(x).toMap().entrySet()) {
+				final CompiledQuery compiled = new CompiledQuery(e.getKey(), dictionary);
 				for (int y=x+1; y<e.getValue(); y++) {
-					if (e.getKey().match(values.get(y).tags)) {
-						System.err.println(e.getKey() + " matches " + value
+					if (compiled.match(values.tags(y))) {
+						System.err.println(e.getKey() + " matches " + values.toString(y)
 								+ " even though this is skipped from position " + x);
 						return false;
 					}
 				}
-				if (e.getValue() < values.size() && !e.getKey().match(values.get(e.getValue()).tags)) {
-					System.out.println(e.getKey() + " doesn't match " + value
-							+ " even though this is skipped to from position " + x);
+				if (e.getValue() > values.size()) {
+					System.err.println(e.getKey() + " from " + values.toString(x) + " points beyond the end of the store");
 					return false;
 				}
 			}
@@ -79,16 +312,794 @@ public class Store<V> {
 		return true;
 	}
 
+	/**
+	 * Rebuild the store without the values that have been removed. Shortcuts
+	 * survive this: a shortcut's target is moved to the first remaining value
+	 * at or after it, which can only skip values that were removed.
+	 * 
+	 * This takes time proportional to the size of the store, but searches
+	 * aren't blocked while it runs (they continue against the old values until
+	 * they finish), so it is reasonable to call it from a background thread.
+	 * add() and remove() are blocked until it completes.
+	 */
+	public synchronized void compact() {
+		if (tombstones == 0)
+			return;
+		final ValueColumns<V> oldValues = values;
+		// remap[x] is the new position of the first value at or after old
+		// position x that hasn't been removed
+		final int[] remap = new int[oldValues.size() + 1];
+		int newSize = 0;
+		for (int x = 0; x < oldValues.size(); x++) {
+			remap[x] = newSize;
+			if (!oldValues.removed(x)) {
+				newSize++;
+			}
+		}
+		remap[oldValues.size()] = newSize;
+
+		final ValueColumns<V> newValues = new ValueColumns<V>(maxShortcuts, budget, oldValues.reordered(),
+				dictionary);
+		for (int x = 0; x < oldValues.size(); x++) {
+			if (!oldValues.removed(x)) {
+				final int position = newValues.add(oldValues, x, remap);
+				if (x != 0) {
+					positions[oldValues.handle(x)] = position;
+				}
+			} else {
+				oldValues.existingShortcuts(x).detach();
+			}
+		}
+		if (newValues.reordered()) {
+			newValues.indexHandles(remap[oldValues.clustered()]);
+		}
+		if (index != null) {
+			index = new TagIndex(newValues);
+		}
+		if (blocks != null) {
+			blocks = new TagBlocks(newValues);
+		}
+		stats = new TagStats(stats.countsPairs(), newValues);
+		values = newValues;
+		if (cache != null) {
+			cache.remap(oldValues, newValues, remap);
+		}
+		tombstones = 0;
+	}
+
+	/**
+	 * Reorder the values so that values with similar tags are adjacent, see
+	 * ClusterOrder, dropping removed values as compact() does. A query then
+	 * finds its matches in a few long runs, so each shortcut it learns skips
+	 * further and it needs far fewer of them. This is worth doing once a store
+	 * has been loaded or has grown a lot, when it can be left to run in the
+	 * background like compact(). add() and remove() are only held up at the
+	 * end, while the values added and removed since it started are carried
+	 * over. Values added afterwards are appended in the order they arrive, so
+	 * call this again once many have been.
+	 * 
+	 * Shortcuts can't survive this, since the values a shortcut skipped are no
+	 * longer between its ends, so every shortcut is discarded. They are then
+	 * relearned for the most frequent queries in queryLog(), by replaying them
+	 * once the new order is in place, as ShortcutWarmer would.
+	 * 
+	 * Afterwards, searches return values in the new order unless
+	 * keepInsertionOrder is true, and a Cursor can no longer resume after a
+	 * value that compact() has since removed. With keepInsertionOrder, the
+	 * values are also indexed by handle, which costs 4 bytes each. find() and
+	 * page() still search in the order values are stored, following shortcuts
+	 * or using the TagIndex as usual, but collect the matches among the
+	 * reordered values and sort them by handle before returning the first.
+	 * The sorted matches of recent queries are kept, at a cost of at most
+	 * another 4 bytes per value, so that the next search for the same query,
+	 * such as the next page, needn't collect them again, see
+	 * InsertionOrderIterator. Values added afterwards are returned as they
+	 * are found. count() and exists() don't care about order and use
+	 * shortcuts as before. findAll() and findParallel() always return values
+	 * in the order they are stored.
+	 * 
+	 * @param keepInsertionOrder
+	 *            Whether find() should still return values in the order they
+	 *            were added
+	 * @param relearn
+	 *            The number of queries from the top of queryLog() to relearn
+	 *            shortcuts for
+	 */
+	public void recluster(final boolean keepInsertionOrder, final int relearn) {
+		while (!reorder(keepInsertionOrder)) {
+			// compact() replaced the values while we were reordering them
+		}
+		// Bypass find(), which would record the replay in the log
+		for (final Query q : queryLog.top(relearn)) {
+			for (final Iterator<V> it = new StoreIterable<V>(this, q).storeOrder(); it.hasNext();) {
+				it.next();
+			}
+		}
+	}
+
+	/**
+	 * Reorder a snapshot of the values for recluster(), without holding our
+	 * lock, so that add() and remove() aren't held up while ClusterOrder sorts
+	 * the store and the index is rebuilt. Then, holding it, append the values
+	 * added since, mark those removed since, and publish the new values.
+	 * 
+	 * @return False if compact() replaced the values meanwhile, in which case
+	 *         nothing has changed and the caller should try again
+	 */
+	private boolean reorder(final boolean keepInsertionOrder) {
+		final ValueColumns<V> oldValues;
+		final int size, removals;
+		final TagStats oldStats;
+		final boolean indexed, blocked;
+		synchronized (this) {
+			oldValues = values;
+			size = oldValues.size();
+			removals = oldValues.removals();
+			oldStats = stats;
+			indexed = index != null;
+			blocked = blocks != null;
+		}
+		final ValueColumns<V> newValues = new ValueColumns<V>(maxShortcuts, budget, true, dictionary);
+		newValues.add(new int[0], null, -1);
+		// moved[x] is the new position of the value at old position x, if it
+		// is in the snapshot and wasn't removed
+		final int[] moved = new int[size];
+		for (final int x : ClusterOrder.order(oldValues, size, removals, oldStats)) {
+			moved[x] = newValues.add(oldValues.tags(x), oldValues.value(x), oldValues.handle(x), oldValues.score(x));
+		}
+		newValues.indexHandles(newValues.size());
+		final TagIndex newIndex = indexed ? new TagIndex(newValues) : null;
+		final TagBlocks newBlocks = blocked ? new TagBlocks(newValues) : null;
+		final TagStats newStats = new TagStats(oldStats.countsPairs(), newValues);
+
+		synchronized (this) {
+			if (values != oldValues)
+				return false;
+			int newTombstones = 0;
+			for (int x = 1; x < size; x++) {
+				if (moved[x] != 0 && oldValues.removed(x)) {
+					newValues.remove(moved[x]);
+					newStats.remove(oldValues.tags(x));
+					newTombstones++;
+				}
+			}
+			// Values added since get the highest handles yet, so they follow
+			// every reordered value in handle order too
+			for (int x = size; x < oldValues.size(); x++) {
+				final int[] tags = oldValues.tags(x);
+				final int position = newValues.add(tags, oldValues.value(x), oldValues.handle(x),
+						oldValues.score(x));
+				if (newIndex != null) {
+					newIndex.add(position, tags);
+				}
+				if (newBlocks != null) {
+					newBlocks.add(position, tags);
+				}
+				if (oldValues.removed(x)) {
+					newValues.remove(position);
+					newTombstones++;
+				} else {
+					newStats.add(tags);
+				}
+			}
+			for (int x = 1; x < newValues.size(); x++) {
+				if (!newValues.removed(x)) {
+					positions[newValues.handle(x)] = x;
+				}
+			}
+			for (int x = 0; x < oldValues.size(); x++) {
+				oldValues.existingShortcuts(x).detach();
+			}
+			index = newIndex;
+			blocks = newBlocks;
+			stats = newStats;
+			insertionOrder = keepInsertionOrder;
+			// The cache's entries are for oldValues, so they will simply be
+			// replaced as the queries are searched for again
+			values = newValues;
+			tombstones = newTombstones;
+			if (warmer != null) {
+				warmer.valuesAdded();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write the store, including every shortcut learned so far, to a file
+	 * which load() can read back. The file is written alongside and then
+	 * renamed over the destination, so a failure part way through leaves any
+	 * previous file intact.
+	 * 
+	 * The file starts with a header listing every tag the store's values have
+	 * and every query it has shortcuts for, so that load() can translate the
+	 * ids in the rest of the file into those of the JVM reading it. Tags that
+	 * only other Stores in this JVM have used aren't written. The values follow, then the
+	 * shortcuts, in the fixed layout SavedShortcuts reads in place.
+	 * 
+	 * add(), remove() and compact() are blocked while this runs, but searches
+	 * are not. Shortcuts they add as we go may or may not be saved.
+	 * 
+	 * @param serializer
+	 *            Writes the values themselves
+	 */
+	public synchronized void save(final File file, final Serializer<? super V> serializer) throws IOException {
+		final ValueColumns<V> values = this.values;
+		final int size = values.size();
+		// Registry ids may have gaps, and shortcuts for queries that have
+		// been purged, so we number the queries we save ourselves. If ids
+		// were recycled while we did, one may now belong to another query, so
+		// we start again.
+		final Map<Integer, Integer> queryIds = new HashMap<Integer, Integer>();
+		final List<Query> queries = new ArrayList<Query>();
+		final int[][] shortcuts = new int[size][];
+		long entries;
+		int generation;
+		do {
+			generation = QueryRegistry.shared.generation();
+			queryIds.clear();
+			queries.clear();
+			entries = 0;
+			for (int position = 0; position < size; position++) {
+				final int[] saved = values.shortcutEntries(position);
+				int count = 0;
+				for (int x = 0; x < saved.length; x += 2) {
+					Integer id = queryIds.get(saved[x]);
+					if (id == null) {
+						final Query query = QueryRegistry.shared.get(saved[x]);
+						if (query == null) {
+							continue;
+						}
+						id = queries.size();
+						queryIds.put(saved[x], id);
+						queries.add(query);
+					}
+					saved[count++] = id;
+					saved[count++] = saved[x + 1];
+				}
+				shortcuts[position] = count == saved.length ? saved : Arrays.copyOf(saved, count);
+				entries += count / 2;
+			}
+		} while (QueryRegistry.shared.generation() != generation);
+		if (entries > Integer.MAX_VALUE)
+			throw new IOException("Too many shortcuts to save, " + entries);
+		// Only the tags our values have are written, not every tag our
+		// dictionary has been given, and they are numbered in the file by
+		// their index among them
+		final BitSet used = new BitSet();
+		for (int position = 1; position < size; position++) {
+			for (final int tag : values.tags(position)) {
+				used.set(tag);
+			}
+		}
+		final int[] tagIds = new int[used.cardinality()];
+		for (int x = 0, tag = used.nextSetBit(0); tag >= 0; x++, tag = used.nextSetBit(tag + 1)) {
+			tagIds[x] = tag;
+		}
+		final String[] tags = dictionary.decode(tagIds);
+		final File temp = new File(file.getPath() + ".tmp");
+		final CountingOutputStream counted = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(
+				temp)));
+		final DataOutputStream out = new DataOutputStream(counted);
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(maxShortcuts);
+			out.writeInt((index != null ? INDEXED : 0) | (blocks != null ? BLOCKED : 0)
+					| (stats.countsPairs() ? PAIR_STATISTICS : 0) | (values.reordered() ? SAVED_REORDERED : 0)
+					| (insertionOrder ? SAVED_INSERTION_ORDER : 0));
+			out.writeInt(tags.length);
+			for (final String tag : tags) {
+				out.writeUTF(tag);
+			}
+			out.writeInt(queries.size());
+			for (final Query query : queries) {
+				query.write(out, dictionary, tagIds);
+			}
+			out.writeInt(nextHandle);
+			out.writeInt(size);
+			// The seed value only has shortcuts
+			for (int position = 1; position < size; position++) {
+				out.writeBoolean(values.removed(position));
+				out.writeInt(values.handle(position));
+				out.writeDouble(values.score(position));
+				final int[] valueTags = values.tags(position);
+				out.writeInt(valueTags.length);
+				for (final int tag : valueTags) {
+					out.writeInt(Arrays.binarySearch(tagIds, tag));
+				}
+				serializer.write(values.value(position), out);
+			}
+			// Align the shortcuts, since they are read in place
+			while (counted.getCount() % 8 != 0) {
+				out.writeByte(0);
+			}
+			int end = 0;
+			for (final int[] saved : shortcuts) {
+				end += saved.length / 2;
+				out.writeInt(end);
+			}
+			for (final int[] saved : shortcuts) {
+				for (final int x : saved) {
+					out.writeInt(x);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			// Some platforms won't rename over an existing file
+			if (!file.delete() || !temp.renameTo(file))
+				throw new IOException("Couldn't rename " + temp + " to " + file);
+		}
+	}
+
+	/**
+	 * Read a store written by save(). Every shortcut is restored, so searches
+	 * are as fast as they were before the store was saved, without relearning
+	 * anything.
+	 * 
+	 * Tags and queries are reinterned from the file's header, since their ids
+	 * may differ from those in the JVM that saved it, and every value is read
+	 * by serializer. The shortcuts, usually most of the file, are not read
+	 * at all: they are memory mapped, see SavedShortcuts, and a value's
+	 * ShortcutTable is only built from them when a search first reaches it.
+	 * Loading therefore takes time in proportion to the number of values
+	 * rather than of shortcuts. compact() builds every table that survives it,
+	 * after which the file is no longer used.
+	 * 
+	 * The mapping lasts as long as the store, so a store loaded from a file
+	 * must not be saved over that same file on platforms, such as Windows,
+	 * that won't replace a file that is mapped.
+	 * 
+	 * Files written by earlier versions, with each value's shortcuts alongside
+	 * it, are still read, their tables being built as they are.
+	 * 
+	 * @param serializer
+	 *            Reads the values written by the Serializer passed to save()
+	 */
+	public static <V> Store<V> load(final File file, final Serializer<? extends V> serializer) throws IOException {
+		final FileInputStream stream = new FileInputStream(file);
+		try {
+			return read(stream, serializer);
+		} finally {
+			// The mapping of the shortcuts remains valid
+			stream.close();
+		}
+	}
+
+	private static <V> Store<V> read(final FileInputStream stream, final Serializer<? extends V> serializer)
+			throws IOException {
+		final CountingInputStream counted = new CountingInputStream(new BufferedInputStream(stream));
+		final DataInputStream in = new DataInputStream(counted);
+		if (in.readInt() != FILE_MAGIC)
+			throw new IOException("Not a saved Store");
+		final int version = in.readInt();
+		// Version 1 files have no scores, and version 1 and 2 files keep each
+		// value's shortcuts alongside it
+		if (version < 1 || version > FILE_VERSION)
+			throw new IOException("Unsupported version " + version);
+		final boolean inline = version < 3;
+		final int maxShortcuts = in.readInt();
+		final int options = in.readInt();
+		final Store<V> store = new Store<V>(maxShortcuts, options & (INDEXED | BLOCKED | PAIR_STATISTICS));
+		final boolean reordered = (options & SAVED_REORDERED) != 0;
+		if (reordered) {
+			store.values = new ValueColumns<V>(maxShortcuts, store.budget, true, store.dictionary);
+			store.values.add(new int[0], null, -1);
+			if (store.index != null) {
+				store.index = new TagIndex(store.values);
+			}
+			if (store.blocks != null) {
+				store.blocks = new TagBlocks(store.values);
+			}
+			store.insertionOrder = (options & SAVED_INSERTION_ORDER) != 0;
+		}
+
+		final String[] tags = new String[in.readInt()];
+		final int[] tagIds = new int[tags.length];
+		for (int x = 0; x < tags.length; x++) {
+			tags[x] = in.readUTF();
+			tagIds[x] = store.dictionary.intern(tags[x]);
+		}
+		final Query[] queries = new Query[in.readInt()];
+		for (int x = 0; x < queries.length; x++) {
+			queries[x] = Query.read(in, tags);
+			// Otherwise the next purge would forget it, and the shortcuts
+			// still to be built from the file with it
+			queries[x].use();
+		}
+
+		store.nextHandle = in.readInt();
+		store.positions = new int[Math.max(store.nextHandle, 16)];
+		// Handles of values that were compacted away before saving
+		Arrays.fill(store.positions, -1);
+		final int size = in.readInt();
+		for (int position = 0; position < size; position++) {
+			if (position != 0) {
+				final boolean removed = in.readBoolean();
+				final int handle = in.readInt();
+				final double score = version == 1 ? 0 : in.readDouble();
+				final int[] valueTags = new int[in.readInt()];
+				for (int x = 0; x < valueTags.length; x++) {
+					valueTags[x] = tagIds[in.readInt()];
+				}
+				Arrays.sort(valueTags);
+				store.values.add(valueTags, serializer.read(in), handle, score);
+				if (store.index != null) {
+					store.index.add(position, valueTags);
+				}
+				if (store.blocks != null) {
+					store.blocks.add(position, valueTags);
+				}
+				if (removed) {
+					store.values.remove(position);
+					store.tombstones++;
+				} else {
+					store.stats.add(valueTags);
+					store.positions[handle] = position;
+				}
+			}
+			if (inline) {
+				final int shortcuts = in.readInt();
+				for (int x = 0; x < shortcuts; x++) {
+					store.values.shortcutsToUpdate(position).put(queries[in.readInt()].id(), in.readInt());
+				}
+			}
+		}
+		if (!inline) {
+			while (counted.getCount() % 8 != 0) {
+				in.readByte();
+			}
+			store.values.setSaved(new SavedShortcuts(stream.getChannel(), counted.getCount(), size, queries));
+		}
+		if (reordered) {
+			// The file doesn't say which values were added since the store
+			// was reclustered, so we treat them all as reordered
+			store.values.indexHandles(store.values.size());
+		}
+		return store;
+	}
 	/**
 	 * Find the values whose tags match a query
 	 * 
 	 * @param q
-	 *            The query to match
+	 *            The query to match. It is converted to canonical form, so
+	 *            that it shares shortcuts with every equivalent query.
 	 * @return An Iterable of 0 or more search results. Note that these are
 	 *         returned "lazily" from the Iterable.
 	 */
 	public StoreIterable<V> find(final Query q) {
-		return new StoreIterable<V>(this, q);
+		final Query canonical = q.canonical();
+		record(canonical);
+		return new StoreIterable<V>(this, canonical);
+	}
+
+	private void record(final Query canonical) {
+		queryLog.record(canonical);
+		canonical.use();
+	}
+
+	/**
+	 * Find the k values with the highest scores, see add(Set, Object, double),
+	 * that match a query. Rather than finding every match and sorting them,
+	 * this searches the store a segment at a time, those containing the
+	 * highest scores first, and stops once no remaining segment has a score
+	 * high enough to make the top k, see TopKSearch.
+	 * 
+	 * @param q
+	 *            The query to match, converted to canonical form as in find()
+	 * @return Up to k values, the highest score first. Values with the same
+	 *         score are returned in the order they are stored.
+	 */
+	public List<V> findTopK(final Query q, final int k) {
+		if (k < 0)
+			throw new IllegalArgumentException("k must not be negative, not " + k);
+		final Query canonical = q.canonical();
+		record(canonical);
+		return new TopKSearch<V>(this, canonical, k).run();
+	}
+
+	/**
+	 * Count the values whose tags match a query. Like every search this learns
+	 * shortcuts, but it doesn't allocate anything per result.
+	 */
+	public int count(final Query q) {
+		final SearchIterator<V> it = find(q).storeOrder();
+		int ret = 0;
+		while (it.hasNext()) {
+			it.next();
+			ret++;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return True if any value's tags match a query. This stops at the first
+	 *         match, keeping the shortcuts learned on the way to it.
+	 */
+	public boolean exists(final Query q) {
+		final SearchIterator<V> it = find(q).storeOrder();
+		final boolean ret = it.hasNext();
+		it.finish();
+		return ret;
+	}
+
+	/**
+	 * Find the first values whose tags match a query. Unlike taking the first
+	 * results from find(Query), this keeps the shortcuts learned up to the
+	 * point where the search stopped.
+	 * 
+	 * @param limit
+	 *            The maximum number of values to return
+	 * @return Up to limit values, in the order find(Query) returns them
+	 */
+	public List<V> find(final Query q, final int limit) {
+		if (limit < 0)
+			throw new IllegalArgumentException("limit must not be negative, not " + limit);
+		final SearchIterator<V> it = find(q).iterator();
+		final List<V> ret = new ArrayList<V>(Math.min(limit, 16));
+		while (ret.size() < limit && it.hasNext()) {
+			ret.add(it.next());
+		}
+		it.finish();
+		return ret;
+	}
+
+	/**
+	 * Find the values whose tags match a query, resuming from where an
+	 * earlier search stopped. The search follows shortcuts from the last value
+	 * that search returned, so this costs about the same wherever the cursor
+	 * is.
+	 * 
+	 * @param cursor
+	 *            From SearchIterator.cursor(), Cursor.start() or Page.next,
+	 *            for an equivalent query
+	 */
+	public StoreIterable<V> find(final Query q, final Cursor cursor) {
+		final Query canonical = q.canonical();
+		if (!canonical.equals(cursor.query))
+			throw new IllegalArgumentException(cursor + " is not for " + canonical);
+		record(canonical);
+		return new StoreIterable<V>(this, canonical, cursor.handle);
+	}
+
+	/**
+	 * Fetch a page of the values matching a query
+	 * 
+	 * @param cursor
+	 *            Where the page starts, Cursor.start() for the first page, or
+	 *            the previous page's Page.next
+	 * @param limit
+	 *            The maximum number of values in the page
+	 */
+	public Page<V> page(final Cursor cursor, final int limit) {
+		if (limit < 1)
+			throw new IllegalArgumentException("limit must be positive, not " + limit);
+		final SearchIterator<V> it = find(cursor.query, cursor).iterator();
+		final List<V> values = new ArrayList<V>(Math.min(limit, 16));
+		while (values.size() < limit && it.hasNext()) {
+			values.add(it.next());
+		}
+		final boolean more = it.hasNext();
+		it.finish();
+		return new Page<V>(values, more ? it.cursor() : null);
+	}
+
+	/**
+	 * Find the values whose tags match each of a batch of queries, in a single
+	 * pass over the store, see SharedScan. Each query follows and learns
+	 * shortcuts just as it would in find(), but each value is examined by all
+	 * the queries that can't skip it at once, rather than being fetched again
+	 * for each query. This is worthwhile whenever many queries arrive
+	 * together.
+	 *
+	 * @param queries
+	 *            The queries to match, each converted to canonical form as in
+	 *            find(). Equivalent queries are only searched for once.
+	 * @return For each query, in the same order, the values it matches in the
+	 *         order they are stored, see recluster()
+	 */
+	public List<List<V>> findAll(final Collection<? extends Query> queries) {
+		final List<Query> canonical = new ArrayList<Query>(queries.size());
+		for (final Query q : queries) {
+			final Query c = q.canonical();
+			record(c);
+			canonical.add(c);
+		}
+		return new SharedScan<V>(this, canonical).run();
+	}
+
+	/**
+	 * Find the values whose tags match a query, dividing the store into
+	 * segments that are searched concurrently. This can cut the time a single
+	 * search takes considerably on a large store, particularly for a query
+	 * that hasn't been seen before. Segments are always searched by following
+	 * shortcuts, see ParallelIterable, even if the store has a TagIndex or
+	 * TagBlocks.
+	 * 
+	 * @param q
+	 *            The query to match, converted to canonical form as in find()
+	 * @param executor
+	 *            Runs the search of each segment
+	 * @param segmentSize
+	 *            The number of positions in each segment. Using the same size
+	 *            for every search lets each reuse the shortcuts of the last.
+	 * @param ordered
+	 *            Whether results must be returned in the order they are
+	 *            stored, see recluster(). If not they are returned a segment at a time, as each
+	 *            segment completes.
+	 */
+	public ParallelIterable<V> findParallel(final Query q, final ExecutorService executor, final int segmentSize,
+			final boolean ordered) {
+		final Query canonical = q.canonical();
+		record(canonical);
+		return new ParallelIterable<V>(this, canonical, executor, segmentSize, ordered);
+	}
+
+	/**
+	 * Cache the results of searches, so that searching again for the same
+	 * query returns the values found last time without examining them, and
+	 * only searches the values added since, see ResultCache. This uses 4 bytes
+	 * per cached result, and is most useful where the same queries are
+	 * repeated far more often than values are added. Searches using a Cursor
+	 * or findParallel() don't use the cache.
+	 * 
+	 * @param capacity
+	 *            The maximum total number of results to cache across all
+	 *            queries, those not used recently being evicted to stay
+	 *            within this, or 0 to stop caching
+	 */
+	public synchronized void cacheResults(final int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity must not be negative, not " + capacity);
+		cache = capacity == 0 ? null : new ResultCache(capacity);
+	}
+
+	/**
+	 * Forget every query that no Store in this JVM has searched for since the
+	 * last call, along with every shortcut learned for it, and recycle their
+	 * ids, see QueryRegistry.purge(). Queries are otherwise never forgotten,
+	 * and once QueryRegistry.shared is full, new queries don't learn
+	 * shortcuts, so an application whose queries are endlessly varied, and
+	 * which would eventually fill it, can call this periodically, from
+	 * a background thread since it takes time proportional to the size of
+	 * every Store. Searches aren't blocked while it runs, and a query it
+	 * forgets that is searched for again is simply registered again, with no
+	 * shortcuts.
+	 * 
+	 * @return The number of queries forgotten
+	 */
+	public static int purgeQueries() {
+		return QueryRegistry.shared.purge();
+	}
+
+	/**
+	 * @return The dictionary our values' tags are interned in. Each Store has
+	 *         its own, so its capacity, see TagDictionary.setCapacity(),
+	 *         bounds the distinct tags of this Store alone.
+	 */
+	public TagDictionary dictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * @return Counters describing how searches of this store are performing
+	 */
+	public StoreMetrics metrics() {
+		return metrics;
+	}
+
+	/**
+	 * Publish metrics() through JMX, with the ObjectName
+	 * athena:type=Store,name=<name>
+	 * 
+	 * @return The name the metrics were registered under, which may be passed
+	 *         to the MBeanServer to unregister them
+	 */
+	public ObjectName registerMetrics(final String name) throws JMException {
+		final ObjectName objectName = new ObjectName("athena:type=Store,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+		return objectName;
+	}
+
+	/**
+	 * @return The sample of queries searched for, which ShortcutWarmer uses
+	 */
+	public QueryLog queryLog() {
+		return queryLog;
+	}
+
+	/**
+	 * Start a ShortcutWarmer, which keeps the shortcuts for the most frequent
+	 * queries in queryLog() complete in the background
+	 * 
+	 * @param queries
+	 *            The number of queries to keep warm
+	 * @param cpuBudget
+	 *            The fraction of one core the warmer may use, greater than 0
+	 *            and at most 1
+	 * @param interval
+	 *            The longest time, in milliseconds, between replays of the
+	 *            queries if no values are added
+	 * @throws IllegalStateException
+	 *             If a warmer is already running
+	 */
+	public synchronized ShortcutWarmer<V> startWarmer(final int queries, final double cpuBudget,
+			final long interval) {
+		if (warmer != null)
+			throw new IllegalStateException("A warmer is already running, stop it first");
+		warmer = new ShortcutWarmer<V>(this, queries, cpuBudget, interval);
+		warmer.start();
+		return warmer;
+	}
+
+	/**
+	 * Stop the warmer started by startWarmer(), if any
+	 */
+	public void stopWarmer() throws InterruptedException {
+		final ShortcutWarmer<V> stopping;
+		synchronized (this) {
+			stopping = warmer;
+			warmer = null;
+		}
+		// Not holding our lock while a replay finishes, which would hold up add()
+		if (stopping != null) {
+			stopping.stop();
+		}
+	}
+
+	/**
+	 * Remove a value from the store. This just marks the value as removed, so
+	 * that searches no longer return it, and so takes constant time. The
+	 * space is reclaimed by compact().
+	 * 
+	 * @param handle
+	 *            The handle returned by add()
+	 * @return True if the value was removed, false if it had already been
+	 */
+	public synchronized boolean remove(final int handle) {
+		if (handle < 0 || handle >= nextHandle)
+			throw new IllegalArgumentException("Unknown handle " + handle);
+		final int position = positions[handle];
+		if (position == -1)
+			return false;
+		values.remove(position);
+		stats.remove(values.tags(position));
+		positions[handle] = -1;
+		tombstones++;
+		return true;
+	}
+
+	/**
+	 * Limit the memory all the shortcuts in this store may take. When a search
+	 * takes the store over the limit, the shortcuts that skip the least far
+	 * for how often they are used are evicted from across the store, see
+	 * ShortcutBudget. maxShortcuts still limits the shortcuts of each value.
+	 * 
+	 * @param bytes
+	 *            The limit, or 0 for no limit
+	 */
+	public void setShortcutBudget(final long bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("bytes must not be negative, not " + bytes);
+		budget.setLimit(bytes == 0 ? Long.MAX_VALUE : bytes);
+	}
+
+	/**
+	 * @return An estimate of the memory all the shortcuts in this store
+	 *         currently take, in bytes
+	 */
+	public long shortcutMemory() {
+		return budget.memory();
+	}
+
+	/**
+	 * @return The number of shortcuts evicted to stay within the limit set by
+	 *         setShortcutBudget()
+	 */
+	long budgetEvictions() {
+		return budget.evictions();
 	}
 
 	/**
@@ -96,18 +1107,25 @@ public class Store<V> {
 	 * require time proportional to the size of the store.
 	 */
 	public void resetShortcuts() {
-		for (final Value<V> value : values) {
-			value.shortcuts.clear();
-		}
+		values.clearShortcuts();
+	}
+
+	/**
+	 * @return The number of values (including removed values that haven't yet
+	 *         been compacted away) in the store
+	 */
+	public int size() {
+		return values.size() - 1;
 	}
 
 	/**
 	 * Counts the total number of shortcuts in the store, returning the result.
 	 */
 	public int shortcutCount() {
+		final ValueColumns<V> values = this.values;
 		int ret = 0;
-		for (final Value<V> value : values) {
-			ret += value.shortcuts.size();
+		for (int x = 0; x < values.size(); x++) {
+			ret += values.shortcutCount(x);
 		}
 		return ret;
 	}
@@ -119,90 +1137,159 @@ public class Store<V> {
 
 		private final Store<V> parent;
 		private final Query query;
-		int counter = 0;
+
+		/**
+		 * The handle of the value to start after, see Cursor
+		 */
+		private final int after;
+
+		/**
+		 * The number of values tested by the most recently active iterator
+		 */
+		volatile int counter = 0;
 
 		protected StoreIterable(final Store<V> parent, final Query query) {
+			this(parent, query, -1);
+		}
+
+		StoreIterable(final Store<V> parent, final Query query, final int after) {
 			this.parent = parent;
 			this.query = query;
-
+			this.after = after;
 		}
 
+		/**
+		 * @return The number of values tested by the most recently active
+		 *         iterator over this Iterable
+		 */
 		public int counter() {
 			return counter;
 		}
 
-		@Override
-		public Iterator<V> iterator() {
-			return new StoreIterator<V>(this, parent, query);
+		/**
+		 * @return The metrics of the Store being searched
+		 */
+		StoreMetrics metrics() {
+			return parent.metrics;
 		}
 
-	}
-}
-
-/**
- * A wrapper around a value, which contains associated information about the
- * value. Most notibly it contains shortcuts to future values which are key to
- * Athena's efficiency.
- * 
- * @author Ian Clarke <ian@sensearray.com>
- * 
- * @param <V>
- */
-class Value<V> {
-	/**
-	 * The tags associated with this value
-	 */
-	public final Set<String> tags;
+		/**
+		 * @return The tag statistics of the Store being searched
+		 */
+		TagStats stats() {
+			return parent.stats;
+		}
 
-	/**
-	 * The value itself.
-	 */
-	public final V value;
+		/**
+		 * Chooses how to answer the query. When resuming from a Cursor, or if
+		 * the query has a shortcut from the seed value and so has been
+		 * searched for before, we assume that a StoreIterator following its
+		 * shortcuts will do best. Otherwise we pick whichever is cheapest of a
+		 * StoreIterator examining every value, the Store's TagIndex (see
+		 * Query.indexCost()) and its TagBlocks (see TagBlocks.cost()), where
+		 * the Store has them. Whichever is chosen, the results are returned in
+		 * the order the values are stored, which is the order they were added
+		 * unless Store.recluster() has reordered them. If it has, but was
+		 * asked to keep insertion order, the search is wrapped in an
+		 * InsertionOrderIterator, which puts the matches among the reordered
+		 * values back in handle order, and keeps them so that the next search
+		 * for the query, such as the next page of a Cursor, need only search
+		 * the values added since. Those are already in handle order, so a
+		 * Cursor after one of them resumes with a StoreIterator as usual.
+		 * 
+		 * If the Store caches results, the search is wrapped in a
+		 * CachedIterator, which records its results, and if the query is
+		 * already cached only the values added since are searched.
+		 */
+		@Override
+		public SearchIterator<V> iterator() {
+			final ValueColumns<V> values = parent.values;
+			final StoreMetrics metrics = parent.metrics;
+			metrics.queryStarted();
+			if (values.reordered() && parent.insertionOrder) {
+				final int size = values.size(), clustered = values.clustered();
+				if (after != -1 && clustered < size && values.handle(clustered) <= after) {
+					// Start from the value before the first with a greater
+					// handle, which may not be the value after was
+					final int index = values.handleOrderAfter(after, size);
+					final int start = index == size - 1 ? size - 1 : values.inHandleOrder(index) - 1;
+					return new StoreIterator<V>(this, values, query, start, Integer.MAX_VALUE);
+				}
+				final ResultCache.Entry sorted = values.matchesInHandleOrder().get(query);
+				if (sorted != null)
+					return new InsertionOrderIterator<V>(values, query, after, sorted, new StoreIterator<V>(this,
+							values, query, sorted.scannedTo - 1, Integer.MAX_VALUE));
+				return new InsertionOrderIterator<V>(values, query, after, clustered, search(values, metrics, -1));
+			}
+			return search(values, metrics, after);
+		}
 
-	/**
-	 * Shortcuts to future values. A Query -> Integer entry in this Map
-	 * indicates that the next Value which matches this Query is at position
-	 * Integer. This allows StoreIterator to avoid having to check every single
-	 * value in Store.values.
-	 */
-	HashMap<Query, Integer> shortcuts;
+		/**
+		 * Like iterator(), but returns values in the order they are stored
+		 * even if the Store was asked to keep insertion order, so that
+		 * searches which don't care about order can still follow and learn
+		 * shortcuts
+		 */
+		SearchIterator<V> storeOrder() {
+			final ValueColumns<V> values = parent.values;
+			final StoreMetrics metrics = parent.metrics;
+			metrics.queryStarted();
+			return search(values, metrics, after);
+		}
 
-	/**
-	 * The position of this value in Store.values
-	 */
-	// TODO: Would be nice to find a way to get rid of this
-	public final int position;
+		private SearchIterator<V> search(final ValueColumns<V> values, final StoreMetrics metrics, final int after) {
+			if (after != -1) {
+				final int start = values.anchor(after);
+				if (start == -1)
+					throw new IllegalArgumentException("The value a cursor was after has been compacted away since "
+							+ "the store was reclustered, so there is nowhere to resume from");
+				return new StoreIterator<V>(this, values, query, start, Integer.MAX_VALUE);
+			}
+			final ResultCache cache = parent.cache;
+			if (cache == null)
+				return plan(values, metrics);
+			final ResultCache.Entry entry = cache.get(query);
+			if (entry != null && entry.values == values) {
+				metrics.cachedSearch();
+				return new CachedIterator<V>(values, cache, query, entry.positions, new StoreIterator<V>(this,
+						values, query, entry.scannedTo - 1, Integer.MAX_VALUE));
+			}
+			return new CachedIterator<V>(values, cache, query, new int[0], plan(values, metrics));
+		}
 
-	protected Value(final Set<String> tags, final V value, final int maxSize, final int position) {
-		this.position = position;
-		this.tags = tags;
-		this.value = value;
-		if (maxSize == Integer.MAX_VALUE) {
-			// No limit on size, just use a normal HashMap for shortcuts
-			shortcuts = Maps.newHashMap();
-		} else {
-			// Use a LRU hashmap to restrict the number of shortcuts
-			shortcuts = new LinkedHashMap<Query, Integer>(16, 0.75f, true) {
-				@Override
-				protected boolean removeEldestEntry(final java.util.Map.Entry<Query, Integer> eldest) {
-					return size() > maxSize;
+		private SearchIterator<V> plan(final ValueColumns<V> values, final StoreMetrics metrics) {
+			final TagIndex index = parent.index;
+			final TagBlocks blocks = parent.blocks;
+			if (values.shortcuts(0).get(query.id()) != ShortcutTable.NOT_FOUND)
+				return new StoreIterator<V>(this, values, query, 0, Integer.MAX_VALUE);
+			long best = values.size();
+			boolean useIndex = false, useBlocks = false;
+			if (index != null && index.values == values) {
+				final long cost = query.indexCost(index);
+				if (cost < best) {
+					best = cost;
+					useIndex = true;
+				}
+			}
+			if (blocks != null && blocks.values == values) {
+				final long cost = blocks.cost(query);
+				if (cost < best) {
+					best = cost;
+					useBlocks = true;
+					useIndex = false;
 				}
-			};
+			}
+			if (useIndex) {
+				metrics.indexSearch();
+				return new IndexIterator<V>(this, values, index, query);
+			}
+			if (useBlocks) {
+				metrics.blockSearch();
+				return new BlockIterator<V>(this, values, blocks, query);
+			}
+			metrics.fullScan();
+			return new StoreIterator<V>(this, values, query, 0, Integer.MAX_VALUE);
 		}
-	}
 
-	@Override
-	public String toString() {
-		final StringBuilder builder = new StringBuilder();
-		builder.append("Value [position=");
-		builder.append(position);
-		builder.append(", tags=");
-		builder.append(tags);
-		builder.append(", shortcuts=");
-		builder.append(shortcuts);
-		builder.append("]");
-		return builder.toString();
 	}
-
-
-}
\ No newline at end of file
+}
@@ -1,151 +1,302 @@
 package athena;
 
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
-
-import com.google.common.collect.AbstractIterator;
-import com.google.common.collect.Maps;
+import java.util.Arrays;
+import java.util.Set;
 
 import athena.Query.QueryIntPair;
 
-public class StoreIterator<V> extends AbstractIterator<V> {
+public class StoreIterator<V> extends SearchIterator<V> {
 
 	/**
-	 * The Store that created this Iterator
+	 * query compiled for the Store's TagStats, which is what we actually
+	 * evaluate against each value
+	 */
+	private final CompiledQuery compiled;
+
+	/**
+	 * Every query in query.trueIfTrue(), the only queries we learn shortcuts
+	 * for
+	 */
+	private final Query[] learning;
+
+	/**
+	 * Each of learning compiled in the same way as query
+	 */
+	private final CompiledQuery[] compiledLearning;
+	/**
+	 * The position we start from, whose value is never tested or returned but
+	 * whose shortcuts let us skip into the values that follow. This is the
+	 * seed value unless we are scanning one segment of the store.
 	 */
-	private final Store<V> parent;
-	private final Query query;
+	private final int anchor;
 	/**
-	 * This indicates the position in the Store.values ArrayList that we are
+	 * The position after the last value we examine, at most size. Shortcuts
+	 * beyond this are cut short, so the shortcuts we add for the values we
+	 * examine end here.
+	 */
+	private final int end;
+	/**
+	 * This indicates the position in Store.values that we are
 	 * currently looking at
 	 */
-	private int position = 0;
+	private int position;
 	public static final boolean verbose = false;
 	/**
-	 * This keeps track of the last Value specific queries matched. We use it to
-	 * retrospecively add shortcuts to those values when we find a new value
-	 * that the query matches.
+	 * This keeps track of the position of the last value each of learning
+	 * matched, or -1. We use it to retrospecively add shortcuts to those
+	 * values when we find a new value that the query matches.
 	 */
-	private final Map<Query, Value<V>> previousMatchMap = Maps.newHashMap();
+	private final int[] previousMatch;
 	private final Store.StoreIterable<V> iterable;
+	/**
+	 * The number of values tested so far. This is kept per-iterator, rather
+	 * than in the StoreIterable, so that concurrent iterators over the same
+	 * Iterable don't interfere with each other.
+	 */
+	private int counter = 0;
+
+	private final StoreMetrics metrics;
+
+	/**
+	 * Work done since we last reported to metrics, see flush()
+	 */
+	private int lookups = 0, hits = 0, created = 0, evicted = 0, flushedCounter = 0;
+
+	/**
+	 * Shortcuts followed since we last reported to metrics, counted by
+	 * StoreMetrics.skipBucket()
+	 */
+	private final int[] skips = new int[StoreMetrics.SKIP_BUCKETS];
 
 	public StoreIterator(final Store.StoreIterable<V> iterable, final Store<V> parent, final Query query) {
+		this(iterable, parent.values, query, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Iterate over the values after anchor and before end, see
+	 * ParallelIterable
+	 */
+	StoreIterator(final Store.StoreIterable<V> iterable, final ValueColumns<V> values, final Query query,
+			final int anchor, final int end) {
+		this(iterable, values, query, anchor, end, values.removals());
+	}
+
+	/**
+	 * Iterate over the values after anchor and before end, as one of several
+	 * iterators searching the store together that took values.removals()
+	 * once between them
+	 */
+	StoreIterator(final Store.StoreIterable<V> iterable, final ValueColumns<V> values, final Query query,
+			final int anchor, final int end, final int removals) {
+		super(query, values, anchor, removals);
 		this.iterable = iterable;
 		iterable.counter = 0;
-		this.parent = parent;
-		this.query = query;
+		this.anchor = anchor;
+		this.end = Math.min(end, size);
+		position = anchor;
+		final TagStats stats = iterable.stats();
+		compiled = stats.compile(query);
+		final Set<Query> trueIfTrue = query.trueIfTrue();
+		learning = trueIfTrue.toArray(new Query[trueIfTrue.size()]);
+		compiledLearning = new CompiledQuery[learning.length];
+		for (int x = 0; x < learning.length; x++) {
+			compiledLearning[x] = stats.compile(learning[x]);
+		}
+		previousMatch = new int[learning.length];
+		Arrays.fill(previousMatch, -1);
+		metrics = iterable.metrics();
 	}
 
 	/**
 	 * To understand what computeNext() does check the documentation for
-	 * AbstractIterator in Google Collections
+	 * SearchIterator
 	 */
 	@Override
 	protected V computeNext() {
 		// We loop until we have run out of Values
-		while (position < parent.values.size()) {
-			Value<V> current = null;
-			/*
-			 * Find the next position in Store.values that isn't null. This
-			 * should only be necessary once we start supporting deletion.
-			 */
-			while (current == null) {
-				current = parent.values.get(position);
-				if (current == null) {
-					position++;
-				}
+		while (!exhausted()) {
+			final int current = step();
+			if (current != -1) {
+				iterable.counter = counter;
+				flush();
+				return found(current);
 			}
+			// The current value didn't match, continue the while() loop
+		}
 
-			if (verbose) {
-				System.out.println("+++++++++++++++++++++++");
-				System.out.println("position: " + position + " examining " + current);
-			}
-			if (current.tags != null) { // Don't do this for the very first
-				// "seed" value as it is a dummy
-				iterable.counter++;
-
-				// For every query in previousMatchMap, if it matches the
-				// current
-				// Value, then add a shortcut to this Value from the last Value
-				// the query matched, and replace that Value in the
-				// previosMatchMap
-				// with the current value.
-				for (final Entry<Query, Value<V>> e : previousMatchMap.entrySet()) {
-					if (e.getKey().match(current.tags)) {
-						// No point in a shortcut that only takes us to the
-						// following value in the ArrayList
-						if (position > e.getValue().position + 1) {
-							e.getValue().shortcuts.put(e.getKey(), position);
-						}
-						previousMatchMap.put(e.getKey(), current);
+		// We've run out of values, point everything in previousMatch to the
+		// position after the end of our range
+		finish();
+		return endOfData();
+	}
+
+	/**
+	 * @return True once there are no more values for step() to examine
+	 */
+	boolean exhausted() {
+		return position >= end;
+	}
+
+	/**
+	 * The position of the value step() will examine next
+	 */
+	int position() {
+		return position;
+	}
+
+	/**
+	 * Examine the value at position, learning whatever shortcuts it proves,
+	 * and move past it, following a shortcut if there is one. computeNext()
+	 * simply repeats this until a value matches, SharedScan interleaves the
+	 * steps of several iterators.
+	 * 
+	 * @return The position examined if its value matches the query,
+	 *         otherwise -1
+	 */
+	int step() {
+		// Removed values remain in place until the Store is compacted
+		final int current = position;
+		final boolean isAnchor = current == anchor;
+
+		if (verbose) {
+			System.out.println("+++++++++++++++++++++++");
+			System.out.println("position: " + position + " examining " + values.toString(current));
+		}
+		if (!isAnchor) { // Don't do this for the anchor, usually the
+			// "seed" value which is a dummy
+			counter++;
+
+			// For every query in previousMatch, if it matches the current
+			// value, then add a shortcut to this value from the last value
+			// the query matched, and replace that value in previousMatch
+			// with the current value.
+			for (int x = 0; x < learning.length; x++) {
+				if (previousMatch[x] != -1 && values.matches(compiledLearning[x], current)) {
+					// No point in a shortcut that only takes us to the
+					// following value
+					if (current > previousMatch[x] + 1) {
+						addShortcut(previousMatch[x], learning[x], current);
 					}
+					previousMatch[x] = current;
 				}
 			}
+		}
 
-			// Add any queries to previousMatchMap that aren't already there and
-			// are implied true by this query, they should point to the current
-			// value
-			for (final Query q : this.query.trueIfTrue()) {
-				if (!previousMatchMap.containsKey(q)) {
-					previousMatchMap.put(q, current);
-				}
+		// Any query that isn't in previousMatch, and is implied true by this
+		// query, should point to the current value
+		for (int x = 0; x < learning.length; x++) {
+			if (previousMatch[x] == -1) {
+				previousMatch[x] = current;
 			}
+		}
 
-			// Try to find a shortcut we can use to skip some values
-			final QueryIntPair bestShortcut = query.findShortCut(current.shortcuts);
+		// Try to find a shortcut we can use to skip some values
+		final QueryIntPair bestShortcut = query.findShortCut(values.shortcuts(current), compiled);
+		lookups++;
 
-			if (bestShortcut.i != -1) {
-				// Yay, we found a shortcut, now we must remove anything from
-				// previousMatchMap that isn't implied false by bestShortcut
-				// being false
-				for (final Iterator<Query> it = previousMatchMap.keySet().iterator(); it.hasNext();) {
-					if (!bestShortcut.q.falseIfFalse().contains(it.next())) {
-						it.remove();
-					}
+		if (bestShortcut.i != -1) {
+			hits++;
+			// Yay, we found a shortcut, now we must remove anything from
+			// previousMatch that isn't implied false by bestShortcut being
+			// false, that is any query that doesn't imply the shortcut's
+			// query.
+			for (int x = 0; x < learning.length; x++) {
+				if (previousMatch[x] != -1 && !learning[x].implies(bestShortcut.q)) {
+					previousMatch[x] = -1;
 				}
-
-				// REMOVEME!!!!
-				// Verify that we should really be skipping
-				// for (int x = position + 1; x < bestShortcut.i; x++) {
-				// if (query.match(parent.values.get(x).tags)) {
-				// System.out
-				// .println("Shortcut: " + bestShortcut.q + " from " + position
-				// + " to " + bestShortcut.i
-				// + " skipped "
-				// + parent.values.get(x).tags + " but they match " + query);
-				// System.out.println(query.toString() + " trueIfTrue: " +
-				// query.trueIfTrue() + " falseIfFalse: "
-				// + query.falseIfFalse());
-				// System.out.println("Shortcuts: " + current.shortcuts);
-				// query.findShortCut(current.shortcuts);
-				// }
-				// }
-
-				// And finally update our position, skipping ahead
-				position = bestShortcut.i;
-
-			} else {
-				// Can't find a shortcut, just move to the next position
-				position++;
 			}
 
-			// If this current Value matches the query, return it
-			if (current.tags != null && query.match(current.tags))
-				return current.value;
+			// REMOVEME!!!!
+			// Verify that we should really be skipping
+			// for (int x = position + 1; x < bestShortcut.i; x++) {
+			// if (query.match(values.tags(x))) {
+			// System.out
+			// .println("Shortcut: " + bestShortcut.q + " from " + position
+			// + " to " + bestShortcut.i
+			// + " skipped "
+			// + values.toString(x) + " but they match " + query);
+			// System.out.println(query.toString() + " trueIfTrue: " +
+			// query.trueIfTrue() + " falseIfFalse: "
+			// + query.falseIfFalse());
+			// System.out.println("Shortcuts: " + values.shortcuts(current));
+			// query.findShortCut(values.shortcuts(current));
+			// }
+			// }
 
-			// The current value didn't match, continue the while() loop
+			// And finally update our position, skipping ahead, but no
+			// further than the end of our range
+			final int target = Math.min(bestShortcut.i, end);
+			skips[StoreMetrics.skipBucket(target - position)]++;
+			position = target;
+
+		} else {
+			// Can't find a shortcut, just move to the next position
+			position++;
 		}
 
-		// We've run out of values, point everything in previousMatchMap to
-		// the position after the end of the ArrayList
-		for (final Entry<Query, Value<V>> e : previousMatchMap.entrySet()) {
-			if (e.getValue().position < position - 1) {
-				e.getValue().shortcuts.put(e.getKey(), position);
+		// If this current Value matches the query, return it. A removed
+		// Value still takes part in shortcut creation above, it just isn't
+		// returned.
+		if (!isAnchor && !removed(current) && values.matches(compiled, current))
+			return current;
+		return -1;
+	}
+
+	/**
+	 * Every value before position has either been tested, or skipped by a
+	 * shortcut whose query implies that the queries left in previousMatch
+	 * don't match it, so each of those queries can have a shortcut from its
+	 * last match to position.
+	 * 
+	 * If we are searching one segment of the store and reached its end, the
+	 * chains end instead at the value before end, which is where the next
+	 * segment's iterator starts, so that a sequential search following them
+	 * carries straight on along the chains the next segment learns. A shortcut
+	 * we cut short at end may have gone further, and a value may already have
+	 * a longer shortcut from a sequential search, so we never replace one.
+	 */
+	@Override
+	public void finish() {
+		final boolean segment = position == end && end < size;
+		final int target = segment ? end - 1 : position;
+		for (int x = 0; x < learning.length; x++) {
+			final int from = previousMatch[x];
+			if (from != -1 && from < target - 1
+					&& !(segment && values.shortcuts(from).peek(learning[x].id()) > target)) {
+				addShortcut(from, learning[x], target);
 			}
 		}
+		Arrays.fill(previousMatch, -1);
+		iterable.counter = counter;
+		flush();
+	}
 
-		return endOfData();
+	private void addShortcut(final int from, final Query q, final int target) {
+		final int id = q.id();
+		// A query the registry had no room for can't have shortcuts
+		if (id == -1)
+			return;
+		created++;
+		final ShortcutTable shortcuts = values.shortcutsToUpdate(from);
+		if (shortcuts.put(id, target)) {
+			evicted++;
+			metrics.evicted(shortcuts);
+		}
+	}
+
+	/**
+	 * Report the work done since the last flush() to metrics. We do this each
+	 * time we return, rather than as we go, to keep the cost of metrics off
+	 * the inner loop.
+	 */
+	private void flush() {
+		metrics.record(counter - flushedCounter, lookups, hits, created, evicted);
+		// Only worth walking the buckets if a shortcut was followed
+		if (hits != 0) {
+			metrics.recordSkips(skips);
+		}
+		flushedCounter = counter;
+		lookups = hits = created = evicted = 0;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,278 @@
+package athena;
+
+/**
+ * Counters describing how well a Store's shortcuts are paying off. They are
+ * always on, so they are kept cheap: iterators count in plain fields and
+ * only add their totals here each time they return a result, and the
+ * counters are StripedCounters so concurrent searches don't contend on them.
+ *
+ * Obtained from Store.metrics(), and can be published through JMX with
+ * Store.registerMetrics().
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+public class StoreMetrics implements StoreMetricsMBean {
+
+	/**
+	 * Skip distances are counted in buckets by powers of two: bucket b counts
+	 * skips of at least 2^b and less than 2^(b+1) positions
+	 */
+	public static final int SKIP_BUCKETS = 32;
+
+	private final Store<?> store;
+
+	private final StripedCounter queries = new StripedCounter();
+	private final StripedCounter valuesTested = new StripedCounter();
+	private final StripedCounter shortcutLookups = new StripedCounter();
+	private final StripedCounter shortcutHits = new StripedCounter();
+	private final StripedCounter shortcutsCreated = new StripedCounter();
+	private final StripedCounter evictions = new StripedCounter();
+	private final StripedCounter evictingValues = new StripedCounter();
+	private final StripedCounter fullScans = new StripedCounter();
+	private final StripedCounter indexSearches = new StripedCounter();
+	private final StripedCounter blockSearches = new StripedCounter();
+	private final StripedCounter cachedSearches = new StripedCounter();
+	private final StripedCounter[] skips = new StripedCounter[SKIP_BUCKETS];
+
+	/**
+	 * Incremented by reset(), so that each ShortcutTable counts towards
+	 * evictingValues once between resets, see ShortcutTable.evictedIn()
+	 */
+	private volatile int epoch = 1;
+
+	StoreMetrics(final Store<?> store) {
+		this.store = store;
+		for (int x = 0; x < SKIP_BUCKETS; x++) {
+			skips[x] = new StripedCounter();
+		}
+	}
+
+	/**
+	 * Record that a search evicted a shortcut from a table to make room for
+	 * another, as well as counting it in record()
+	 */
+	void evicted(final ShortcutTable shortcuts) {
+		if (shortcuts.evictedIn(epoch)) {
+			evictingValues.increment();
+		}
+	}
+
+	/**
+	 * Record the work an iterator has done since it last called this
+	 */
+	void record(final int tested, final int lookups, final int hits, final int created, final int evicted) {
+		if (tested != 0) {
+			valuesTested.add(tested);
+		}
+		if (lookups != 0) {
+			shortcutLookups.add(lookups);
+		}
+		if (hits != 0) {
+			shortcutHits.add(hits);
+		}
+		if (created != 0) {
+			shortcutsCreated.add(created);
+		}
+		if (evicted != 0) {
+			evictions.add(evicted);
+		}
+	}
+
+	/**
+	 * @return The bucket a skip of distance positions, at least 1, is counted
+	 *         in
+	 */
+	static int skipBucket(final int distance) {
+		return 31 - Integer.numberOfLeadingZeros(distance);
+	}
+
+	/**
+	 * Record the shortcuts an iterator has followed since it last called this,
+	 * and clear its counts
+	 *
+	 * @param skips
+	 *            The number followed in each of SKIP_BUCKETS buckets, see
+	 *            skipBucket()
+	 */
+	void recordSkips(final int[] skips) {
+		for (int x = 0; x < SKIP_BUCKETS; x++) {
+			if (skips[x] != 0) {
+				this.skips[x].add(skips[x]);
+				skips[x] = 0;
+			}
+		}
+	}
+
+	void queryStarted() {
+		queries.increment();
+	}
+
+	/**
+	 * A query with no shortcuts from the seed value is about to be answered by
+	 * testing every value
+	 */
+	void fullScan() {
+		fullScans.increment();
+	}
+
+	void indexSearch() {
+		indexSearches.increment();
+	}
+
+	void blockSearch() {
+		blockSearches.increment();
+	}
+
+	/**
+	 * A query is about to be answered from the Store's ResultCache
+	 */
+	void cachedSearch() {
+		cachedSearches.increment();
+	}
+
+	/**
+	 * @return The number of searches started
+	 */
+	@Override
+	public long getQueries() {
+		return queries.sum();
+	}
+
+	@Override
+	public long getValuesTested() {
+		return valuesTested.sum();
+	}
+
+	@Override
+	public double getValuesTestedPerQuery() {
+		final long q = getQueries();
+		return q == 0 ? 0 : (double) getValuesTested() / q;
+	}
+
+	/**
+	 * @return The number of times a StoreIterator has looked for a shortcut
+	 *         from a value
+	 */
+	@Override
+	public long getShortcutLookups() {
+		return shortcutLookups.sum();
+	}
+
+	/**
+	 * @return The number of those lookups which found a shortcut
+	 */
+	@Override
+	public long getShortcutHits() {
+		return shortcutHits.sum();
+	}
+
+	@Override
+	public double getShortcutHitRate() {
+		final long lookups = getShortcutLookups();
+		return lookups == 0 ? 0 : (double) getShortcutHits() / lookups;
+	}
+
+	/**
+	 * @return The number of shortcuts followed by distance, see SKIP_BUCKETS
+	 */
+	@Override
+	public long[] getSkipHistogram() {
+		final long[] ret = new long[SKIP_BUCKETS];
+		for (int x = 0; x < SKIP_BUCKETS; x++) {
+			ret[x] = skips[x].sum();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The number of shortcuts added or updated by searches
+	 */
+	@Override
+	public long getShortcutsCreated() {
+		return shortcutsCreated.sum();
+	}
+
+	/**
+	 * @return The number of shortcuts evicted to make room for others, since a
+	 *         value's table was full
+	 */
+	@Override
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return The fraction of values whose ShortcutTable has had to evict a
+	 *         shortcut to make room for another, a sign that maxShortcuts is
+	 *         too small for them. Values that have since been compacted away
+	 *         still count, so this is only exact until compact() is next
+	 *         called.
+	 */
+	@Override
+	public double getEvictingValueFraction() {
+		final int size = store.size();
+		return size == 0 ? 0 : Math.min(1, (double) evictingValues.sum() / size);
+	}
+
+	/**
+	 * @return The number of searches which had to examine every value, since
+	 *         the query had no shortcuts and neither a TagIndex nor TagBlocks
+	 *         looked cheaper
+	 */
+	@Override
+	public long getFullScans() {
+		return fullScans.sum();
+	}
+
+	@Override
+	public long getIndexSearches() {
+		return indexSearches.sum();
+	}
+
+	@Override
+	public long getBlockSearches() {
+		return blockSearches.sum();
+	}
+
+	@Override
+	public long getCachedSearches() {
+		return cachedSearches.sum();
+	}
+
+	/**
+	 * @return The estimated memory all the store's shortcuts take, in bytes
+	 */
+	@Override
+	public long getShortcutMemory() {
+		return store.shortcutMemory();
+	}
+
+	/**
+	 * @return The number of shortcuts evicted to keep within the store's
+	 *         shortcut budget, which reset() doesn't affect
+	 */
+	@Override
+	public long getBudgetEvictions() {
+		return store.budgetEvictions();
+	}
+
+	@Override
+	public void reset() {
+		queries.reset();
+		valuesTested.reset();
+		shortcutLookups.reset();
+		shortcutHits.reset();
+		shortcutsCreated.reset();
+		evictions.reset();
+		evictingValues.reset();
+		epoch++;
+		fullScans.reset();
+		indexSearches.reset();
+		blockSearches.reset();
+		cachedSearches.reset();
+		for (final StripedCounter skip : skips) {
+			skip.reset();
+		}
+	}
+}
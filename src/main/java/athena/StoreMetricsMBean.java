@@ -0,0 +1,44 @@
+package athena;
+
+/**
+ * The JMX view of StoreMetrics, see Store.registerMetrics()
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+public interface StoreMetricsMBean {
+
+	long getQueries();
+
+	long getValuesTested();
+
+	double getValuesTestedPerQuery();
+
+	long getShortcutLookups();
+
+	long getShortcutHits();
+
+	double getShortcutHitRate();
+
+	long[] getSkipHistogram();
+
+	long getShortcutsCreated();
+
+	long getEvictions();
+
+	double getEvictingValueFraction();
+
+	long getFullScans();
+
+	long getIndexSearches();
+
+	long getBlockSearches();
+
+	long getCachedSearches();
+
+	long getShortcutMemory();
+
+	long getBudgetEvictions();
+
+	void reset();
+}
@@ -0,0 +1,56 @@
+package athena;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which many threads can add to without contending, by giving each
+ * thread (or rather, each of a small number of groups of threads) its own
+ * cell and only summing the cells when the counter is read. Each cell is
+ * padded onto its own cache line, so that threads updating neighbouring
+ * cells don't slow each other down through false sharing.
+ *
+ * Reads are only approximate while adds are in progress, which is fine for
+ * the statistics in StoreMetrics.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+final class StripedCounter {
+
+	/**
+	 * The number of longs between cells, enough to fill a 64 byte cache line
+	 */
+	private static final int PADDING = 8;
+
+	private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	private static int stripe() {
+		final long id = Thread.currentThread().getId();
+		final int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (STRIPES - 1);
+	}
+
+	void add(final long delta) {
+		cells.addAndGet(stripe() * PADDING, delta);
+	}
+
+	void increment() {
+		add(1);
+	}
+
+	long sum() {
+		long ret = 0;
+		for (int x = 0; x < STRIPES; x++) {
+			ret += cells.get(x * PADDING);
+		}
+		return ret;
+	}
+
+	void reset() {
+		for (int x = 0; x < STRIPES; x++) {
+			cells.set(x * PADDING, 0);
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package athena;
+
+/**
+ * Receives the values added to a Store that match a standing query, see
+ * Store.subscribe().
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ *            The type of the values stored
+ */
+public interface Subscriber<V> {
+
+	/**
+	 * Called by Store.add() for each value added that matches the query
+	 * subscribed to, on the thread adding it and while holding the Store's
+	 * lock, so this should return quickly and must not modify the Store.
+	 * 
+	 * The value has already been added, and can be found, by the time this is
+	 * called. A RuntimeException thrown from here is logged and otherwise
+	 * ignored: add() still returns the value's handle, and the value is still
+	 * passed to the other subscribers.
+	 */
+	void added(V value);
+}
@@ -0,0 +1,84 @@
+package athena;
+
+/**
+ * A standing query registered by Store.subscribe(), which passes every value
+ * added afterwards that matches it to a Subscriber, until cancel() is called.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ *            The type of the values stored
+ */
+public final class Subscription<V> {
+
+	final Query query;
+
+	/**
+	 * Compiled again while provisional, see compiled(). Guarded by index.
+	 */
+	private CompiledQuery compiled;
+
+	final Subscriber<? super V> subscriber;
+
+	/**
+	 * Query.triggers() as it was when we subscribed, or null if every value
+	 * added must be tested
+	 */
+	final int[] triggers;
+
+	private final SubscriptionIndex<V> index;
+
+	/**
+	 * The Store's dictionary, which we compile our query for
+	 */
+	private final TagDictionary dictionary;
+
+	/**
+	 * The generation of SubscriptionIndex in which we were last tested, so
+	 * that a value with several of our triggers is only tested once. Guarded
+	 * by index.
+	 */
+	int tested = -1;
+
+	Subscription(final SubscriptionIndex<V> index, final Query query, final int[] triggers,
+			final TagDictionary dictionary, final Subscriber<? super V> subscriber) {
+		this.index = index;
+		this.query = query;
+		this.dictionary = dictionary;
+		compiled = new CompiledQuery(query, dictionary);
+		this.triggers = triggers;
+		this.subscriber = subscriber;
+	}
+
+	/**
+	 * @return Our query compiled, compiling it again if it was compiled
+	 *         before one of its tags was known
+	 */
+	CompiledQuery compiled() {
+		CompiledQuery ret = compiled;
+		if (ret.provisional) {
+			ret = compiled = new CompiledQuery(query, dictionary);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The query subscribed to, in canonical form
+	 */
+	public Query query() {
+		return query;
+	}
+
+	/**
+	 * Stop passing values to the Subscriber. A value being added at the same
+	 * time may still be passed to it.
+	 */
+	public void cancel() {
+		index.remove(this);
+	}
+
+	@Override
+	public String toString() {
+		return "Subscription [query=" + query + "]";
+	}
+}
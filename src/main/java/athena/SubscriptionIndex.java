@@ -0,0 +1,174 @@
+package athena;
+
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The subscriptions to a Store, indexed so that Store.add() doesn't have to
+ * test every one against each value it adds. Each subscription is filed under
+ * its query's triggers (see Query.triggers()), tags of which any value the
+ * query matches must have at least one. A new value is then only tested
+ * against the subscriptions filed under the tags it has, along with the few
+ * whose query could match a value without any particular tag, such as (NOT
+ * "a").
+ *
+ * Where a query has a choice of triggers, as with the operands of an And, we
+ * take those fewest values have according to the Store's TagStats when it
+ * subscribes, so that it is tested as rarely as possible.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ */
+class SubscriptionIndex<V> {
+
+	private static final Logger log = Logger.getLogger(SubscriptionIndex.class);
+
+	/**
+	 * The subscriptions filed under each tag, indexed by tag id. Guarded by
+	 * this, as are the other fields. The lists are replaced rather than
+	 * modified, so that a Subscriber can cancel its Subscription while we are
+	 * iterating over them.
+	 */
+	private final ArrayList<ArrayList<Subscription<V>>> byTag = new ArrayList<ArrayList<Subscription<V>>>();
+
+	/**
+	 * Subscriptions whose query has no triggers, tested against every value,
+	 * or null if there are none. Replaced like the lists in byTag.
+	 */
+	private ArrayList<Subscription<V>> untriggered = null;
+
+	/**
+	 * Incremented for each value tested, see Subscription.tested
+	 */
+	private int generation = 0;
+
+	private int size = 0;
+
+	/**
+	 * @param query
+	 *            A canonical query
+	 */
+	synchronized Subscription<V> add(final Query query, final TagStats stats, final Subscriber<? super V> subscriber) {
+		final Subscription<V> ret = new Subscription<V>(this, query, query.triggers(stats), stats.dictionary,
+				subscriber);
+		if (ret.triggers == null) {
+			untriggered = with(untriggered, ret);
+		} else {
+			for (final int tag : ret.triggers) {
+				while (byTag.size() <= tag) {
+					byTag.add(null);
+				}
+				final ArrayList<Subscription<V>> subscriptions = byTag.get(tag);
+				// An Or can give the same trigger twice
+				if (subscriptions == null || !subscriptions.contains(ret)) {
+					byTag.set(tag, with(subscriptions, ret));
+				}
+			}
+		}
+		size++;
+		return ret;
+	}
+
+	synchronized void remove(final Subscription<V> subscription) {
+		boolean removed = false;
+		if (subscription.triggers == null) {
+			if (untriggered != null && untriggered.contains(subscription)) {
+				untriggered = without(untriggered, subscription);
+				removed = true;
+			}
+		} else {
+			for (final int tag : subscription.triggers) {
+				final ArrayList<Subscription<V>> subscriptions = byTag.get(tag);
+				if (subscriptions != null && subscriptions.contains(subscription)) {
+					byTag.set(tag, without(subscriptions, subscription));
+					removed = true;
+				}
+			}
+		}
+		if (removed) {
+			size--;
+		}
+	}
+
+	private static <V> ArrayList<Subscription<V>> with(final ArrayList<Subscription<V>> list,
+			final Subscription<V> subscription) {
+		final ArrayList<Subscription<V>> ret = list == null ? new ArrayList<Subscription<V>>(1)
+				: new ArrayList<Subscription<V>>(list);
+		ret.add(subscription);
+		return ret;
+	}
+
+	/**
+	 * @return A copy of list without subscription, or null if that leaves it
+	 *         empty
+	 */
+	private static <V> ArrayList<Subscription<V>> without(final ArrayList<Subscription<V>> list,
+			final Subscription<V> subscription) {
+		final ArrayList<Subscription<V>> ret = new ArrayList<Subscription<V>>(list);
+		ret.remove(subscription);
+		return ret.isEmpty() ? null : ret;
+	}
+
+	/**
+	 * @return The number of subscriptions
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Pass a value that has just been added to every subscriber whose query
+	 * it matches
+	 *
+	 * @param tags
+	 *            The value's sorted tag ids
+	 * @return The number of subscriptions tested
+	 */
+	synchronized int added(final int[] tags, final V value) {
+		if (size == 0)
+			return 0;
+		final int generation = ++this.generation;
+		int tested = 0;
+		for (final int tag : tags) {
+			if (tag >= byTag.size())
+				break;
+			final ArrayList<Subscription<V>> subscriptions = byTag.get(tag);
+			if (subscriptions == null)
+				continue;
+			for (int x = 0; x < subscriptions.size(); x++) {
+				final Subscription<V> subscription = subscriptions.get(x);
+				if (subscription.tested != generation) {
+					subscription.tested = generation;
+					tested++;
+					if (subscription.compiled().match(tags)) {
+						pass(subscription, value);
+					}
+				}
+			}
+		}
+		final ArrayList<Subscription<V>> untriggered = this.untriggered;
+		for (int x = 0; untriggered != null && x < untriggered.size(); x++) {
+			final Subscription<V> subscription = untriggered.get(x);
+			tested++;
+			if (subscription.compiled().match(tags)) {
+				pass(subscription, value);
+			}
+		}
+		return tested;
+	}
+
+	/**
+	 * Pass a value to a subscriber. The value has already been added, so if
+	 * the subscriber throws we log it and carry on, rather than fail the add()
+	 * and keep the value from the subscribers after it.
+	 */
+	private static <V> void pass(final Subscription<V> subscription, final V value) {
+		try {
+			subscription.subscriber.added(value);
+		} catch (final RuntimeException e) {
+			log.warn(subscription + " threw on being passed " + value, e);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package athena;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tag membership stored column-wise in blocks of 64 values: for every tag
+ * there is an array of longs in which bit b of word w is set if the value at
+ * position 64w + b has the tag. A query can then be evaluated against 64
+ * values at a time using bitwise operations, see Query.match(TagBlocks, int).
+ *
+ * Unlike TagIndex this isn't compressed, so evaluating a query always touches
+ * every word of each tag it mentions. That makes it a poor choice for queries
+ * on rare tags, but far cheaper than testing values one at a time for queries
+ * that match a large fraction of the store, and it copes with Not without any
+ * special effort.
+ *
+ * Like Store.values, this is only modified by Store.add(), and Store.compact()
+ * replaces it rather than modifying it. Since add() may run while blocks are
+ * being evaluated, add() holds the lock on this, and so must anything reading
+ * the words, such as BlockIterator.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+class TagBlocks {
+
+	/**
+	 * The values these blocks describe, so that a reader can check
+	 * that it has the blocks and values from the same generation
+	 */
+	final ValueColumns<?> values;
+
+	/**
+	 * The words for each tag, indexed by tag id. A column may be shorter than
+	 * the store, in which case the missing words are all zero.
+	 */
+	private final ArrayList<long[]> columns = new ArrayList<long[]>();
+
+	/**
+	 * The number of positions (including the seed) described
+	 */
+	private volatile int size = 1;
+
+	private static final long[] EMPTY = new long[0];
+
+	TagBlocks(final ValueColumns<?> values) {
+		this.values = values;
+		for (int x = 1; x < values.size(); x++) {
+			add(x, values.tags(x));
+		}
+	}
+
+	/**
+	 * Record the tags of the value at position, which must be the position
+	 * following the last one added
+	 */
+	synchronized void add(final int position, final int[] tags) {
+		final int word = position >>> 6;
+		for (final int tag : tags) {
+			while (columns.size() <= tag) {
+				columns.add(EMPTY);
+			}
+			long[] column = columns.get(tag);
+			if (column.length <= word) {
+				column = Arrays.copyOf(column, Math.max(word + 1, column.length * 3 / 2));
+				columns.set(tag, column);
+			}
+			column[word] |= 1L << position;
+		}
+		size = position + 1;
+	}
+
+	/**
+	 * @return The number of words needed to cover every position
+	 */
+	int blockCount() {
+		return (size + 63) >>> 6;
+	}
+
+	/**
+	 * @return The mask for a tag in a block
+	 */
+	long word(final int tag, final int block) {
+		if (tag < 0 || tag >= columns.size())
+			return 0;
+		final long[] column = columns.get(tag);
+		return block < column.length ? column[block] : 0;
+	}
+
+	/**
+	 * @return A mask with a bit set for every real value in a block, which
+	 *         excludes the seed value and positions beyond the end of the
+	 *         store. Not is evaluated against this.
+	 */
+	long valid(final int block) {
+		long mask = -1L;
+		if (block == 0) {
+			mask &= ~1L;
+		}
+		if (block == (size - 1) >>> 6 && (size & 63) != 0) {
+			mask &= (1L << size) - 1;
+		}
+		return mask;
+	}
+
+	/**
+	 * @return A rough estimate of the work involved in evaluating a query, and
+	 *         all the queries it implies so that their shortcuts can be
+	 *         learned, over every block, in units comparable to testing a
+	 *         single value
+	 */
+	long cost(final Query query) {
+		long leaves = 0;
+		for (final Query q : query.trueIfTrue()) {
+			leaves += q.compile().length();
+		}
+		return leaves * blockCount();
+	}
+}
@@ -0,0 +1,187 @@
+package athena;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns tags to small ints so that matching a Query against a Value compares
+ * ints rather than hashing and comparing Strings.
+ *
+ * Each Store has its own dictionary, see Store.dictionary(), since the
+ * queries searching it are compiled for it anyway, see TagStats.compile(), so
+ * nothing is gained by sharing one. A Query resolves its tags in whichever
+ * dictionary it is compiled for. Queries only look their tags up, they never
+ * intern them: a tag that hasn't been interned can't be in any value, so
+ * until the Store is given a value with it, a query for it matches nothing,
+ * and looks it up again each time it is compiled.
+ *
+ * Tags are never forgotten: every tag a Store has been given, or a
+ * subscription has been made for, keeps its id for the life of the Store,
+ * since any of its values or subscriptions may still refer to it. A Store
+ * only saves the tags its own values have, though, so loading it interns only
+ * those. setCapacity() bounds a dictionary, and so the tags of its Store.
+ * Once it is full, adding a value with a new tag to that Store, or
+ * subscribing to one, is refused with an IllegalStateException, while
+ * searches for a new tag simply find nothing. Other Stores are unaffected.
+ *
+ * shared is only used by Query.compile() and Query.match(int[]), which
+ * evaluate queries outside any Store.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+public class TagDictionary {
+
+	/**
+	 * The dictionary of tag ids passed to Query.match(int[]) and
+	 * Query.compile(), which no Store uses
+	 */
+	public static final TagDictionary shared = new TagDictionary();
+
+	/**
+	 * Returned by lookup() for a tag that has never been interned
+	 */
+	public static final int UNKNOWN = -1;
+
+	private static final int[] NO_TAGS = new int[0];
+
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * The inverse of ids, the tag with id x is at position x. Guarded by this.
+	 */
+	private final ArrayList<String> tags = new ArrayList<String>();
+
+	/**
+	 * Guarded by this
+	 */
+	private int capacity = Integer.MAX_VALUE;
+
+	/**
+	 * Is id present in a sorted array of tag ids? Tag sets are typically small
+	 * so we don't bother with anything cleverer than a binary search.
+	 */
+	public static boolean contains(final int[] sortedTags, final int id) {
+		return Arrays.binarySearch(sortedTags, id) >= 0;
+	}
+
+	/**
+	 * Is id present among the sorted tag ids from (inclusive) to to
+	 * (exclusive) of an array, such as the packed tags of ValueColumns?
+	 */
+	static boolean contains(final int[] tags, final int from, final int to, final int id) {
+		return Arrays.binarySearch(tags, from, to, id) >= 0;
+	}
+
+	/**
+	 * @return The tag associated with id
+	 */
+	public synchronized String decode(final int id) {
+		return tags.get(id);
+	}
+
+	/**
+	 * @return The tags associated with the ids, in the same order
+	 */
+	public synchronized String[] decode(final int[] ids) {
+		final String[] ret = new String[ids.length];
+		for (int x = 0; x < ids.length; x++) {
+			ret[x] = tags.get(ids[x]);
+		}
+		return ret;
+	}
+
+	/**
+	 * Intern every tag in a set, returning their ids as a sorted array
+	 */
+	public int[] encode(final Set<String> tagSet) {
+		if (tagSet.isEmpty())
+			return NO_TAGS;
+		final int[] ret = new int[tagSet.size()];
+		int x = 0;
+		for (final String tag : tagSet) {
+			ret[x++] = intern(tag);
+		}
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * @return The most tags that will be interned
+	 */
+	public synchronized int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Limit the number of tags interned, see the class comment. Tags already
+	 * interned keep their ids even if there are more of them.
+	 *
+	 * @param capacity
+	 *            At least 1
+	 */
+	public synchronized void setCapacity(final int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive, not " + capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return The id of this tag, allocating a new one if necessary
+	 * @throws IllegalStateException
+	 *             If the tag is new and capacity() tags have already been
+	 *             interned
+	 */
+	public int intern(final String tag) {
+		final Integer id = ids.get(tag);
+		if (id != null)
+			return id;
+		synchronized (this) {
+			Integer newId = ids.get(tag);
+			if (newId == null) {
+				if (tags.size() >= capacity)
+					throw new IllegalStateException("Can't intern \"" + tag + "\", " + capacity
+							+ " tags are already interned");
+				newId = tags.size();
+				tags.add(tag);
+				ids.put(tag, newId);
+			}
+			return newId;
+		}
+	}
+
+	/**
+	 * @return The id of this tag, or UNKNOWN if it has never been interned
+	 */
+	public int lookup(final String tag) {
+		final Integer id = ids.get(tag);
+		return id == null ? UNKNOWN : id;
+	}
+
+	/**
+	 * Like encode(), but without interning. Tags that have never been seen
+	 * can't be matched by any Query so they are simply dropped.
+	 */
+	public int[] lookup(final Set<String> tagSet) {
+		final int[] ret = new int[tagSet.size()];
+		int x = 0;
+		for (final String tag : tagSet) {
+			final int id = lookup(tag);
+			if (id != UNKNOWN) {
+				ret[x++] = id;
+			}
+		}
+		final int[] known = x == ret.length ? ret : Arrays.copyOf(ret, x);
+		Arrays.sort(known);
+		return known;
+	}
+
+	/**
+	 * @return The number of distinct tags interned so far
+	 */
+	public synchronized int size() {
+		return tags.size();
+	}
+}
@@ -0,0 +1,104 @@
+package athena;
+
+import java.util.ArrayList;
+
+/**
+ * An inverted index over a Store, recording for each tag the positions of the
+ * values which have it, as a CompressedBitmap. A query can then be answered
+ * by combining bitmaps, in time related to the number of values with the
+ * query's tags rather than the size of the store.
+ *
+ * This is what Store uses for queries it hasn't seen before, where the
+ * alternative would be a StoreIterator scanning every value. Once a query has
+ * shortcuts, a StoreIterator is usually cheaper.
+ *
+ * Like Store.values, this is only modified by Store.add(), and Store.compact()
+ * replaces it rather than modifying it. Since add() may run while it is being
+ * read, add() holds the lock on the index, and posting() and all() return a
+ * snapshot taken under the lock (see CompressedBitmap.snapshot()), which
+ * costs at most one chunk. Query.evaluate(TagIndex) can therefore combine
+ * them without holding the lock, so a search never holds up add() for more
+ * than a copy. A snapshot taken later may include values added since an
+ * earlier one, so readers must ignore positions beyond the size they took
+ * first.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+class TagIndex {
+
+	/**
+	 * The values this indexes, so that a reader can check that it has
+	 * the index and values from the same generation
+	 */
+	final ValueColumns<?> values;
+
+	/**
+	 * The positions of the values with each tag, indexed by tag id
+	 */
+	private final ArrayList<CompressedBitmap> postings = new ArrayList<CompressedBitmap>();
+
+	/**
+	 * The positions of every value other than the seed, which is what Not is
+	 * evaluated against
+	 */
+	private final CompressedBitmap all = new CompressedBitmap();
+
+	private static final CompressedBitmap EMPTY = new CompressedBitmap();
+
+	TagIndex(final ValueColumns<?> values) {
+		this.values = values;
+		for (int x = 1; x < values.size(); x++) {
+			add(x, values.tags(x));
+		}
+	}
+
+	/**
+	 * Record the tags of the value at position, which must be greater than any
+	 * previous position
+	 */
+	synchronized void add(final int position, final int[] tags) {
+		all.add(position);
+		for (final int tag : tags) {
+			while (postings.size() <= tag) {
+				postings.add(null);
+			}
+			CompressedBitmap posting = postings.get(tag);
+			if (posting == null) {
+				posting = new CompressedBitmap();
+				postings.set(tag, posting);
+			}
+			posting.add(position);
+		}
+	}
+
+	/**
+	 * @return A snapshot of the positions of every value other than the seed
+	 */
+	synchronized CompressedBitmap all() {
+		return all.snapshot();
+	}
+
+	/**
+	 * @return The number of values indexed
+	 */
+	synchronized int count() {
+		return all.cardinality();
+	}
+
+	/**
+	 * @return A snapshot of the positions of the values with a tag
+	 */
+	synchronized CompressedBitmap posting(final int tag) {
+		final CompressedBitmap posting = tag >= 0 && tag < postings.size() ? postings.get(tag) : null;
+		return posting == null ? EMPTY : posting.snapshot();
+	}
+
+	/**
+	 * @return The number of values with a tag
+	 */
+	synchronized int frequency(final int tag) {
+		final CompressedBitmap posting = tag >= 0 && tag < postings.size() ? postings.get(tag) : null;
+		return posting == null ? 0 : posting.cardinality();
+	}
+}
@@ -0,0 +1,227 @@
+package athena;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How often each tag occurs in a Store, and optionally how often pairs of tags
+ * occur together, kept up to date as values are added and removed. Query.selectivity()
+ * uses these to estimate the fraction of values a query matches, and compile()
+ * uses that to produce a CompiledQuery for this Store which tests the operands
+ * of an And that are least likely to match first, and the operands of an Or
+ * that are most likely to match first, so that evaluation short-circuits as
+ * early as possible.
+ *
+ * Pair counts are kept in a count-min sketch, a few rows of counters each
+ * indexed by a different hash of the pair, of which we take the smallest. This
+ * can overestimate but never underestimates, and costs a fixed amount of
+ * memory however many distinct pairs there are.
+ *
+ * Counts are only updated by Store.add(), Store.remove() and friends, under
+ * the Store's lock, and are read without locking. A reader may see slightly
+ * stale counts, which is fine for an estimate.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ */
+class TagStats {
+
+	private static final int SKETCH_DEPTH = 4, SKETCH_WIDTH = 4096;
+
+	/**
+	 * A compiled query is recompiled once the store has grown to this
+	 * multiple of its size when it was compiled
+	 */
+	private static final int RECOMPILE_GROWTH = 2;
+
+	/**
+	 * The most compiled queries we keep. Once there are this many, the whole
+	 * cache is dropped and refilled by the queries searched for after that,
+	 * so a long tail of queries searched for once can't grow it without
+	 * bound, while the queries searched for often are soon compiled again.
+	 */
+	private static final int MAX_COMPILED = 4096;
+
+	/**
+	 * The Store's dictionary, whose tag ids we count and compile queries for
+	 */
+	final TagDictionary dictionary;
+
+	/**
+	 * Occurrences of each tag, indexed by tag id. Replaced when it needs to
+	 * grow.
+	 */
+	private volatile int[] frequencies = new int[16];
+
+	/**
+	 * The number of values counted
+	 */
+	private volatile int count = 0;
+
+	/**
+	 * The pair sketch, SKETCH_DEPTH rows of SKETCH_WIDTH counters, or null if
+	 * we aren't counting pairs
+	 */
+	private final int[] pairs;
+
+	/**
+	 * Queries compiled by compile(), with the count they were compiled at
+	 */
+	private final ConcurrentHashMap<Query, Compiled> compiled = new ConcurrentHashMap<Query, Compiled>();
+
+	private static final class Compiled {
+		final CompiledQuery query;
+		final int count;
+
+		Compiled(final CompiledQuery query, final int count) {
+			this.query = query;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * @param pairs
+	 *            Whether to count pairs of tags as well as tags
+	 */
+	TagStats(final boolean pairs, final TagDictionary dictionary) {
+		this.pairs = pairs ? new int[SKETCH_DEPTH * SKETCH_WIDTH] : null;
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * Count every value except the seed value and removed values, for a Store
+	 * that has just been compacted or reordered
+	 */
+	TagStats(final boolean pairs, final ValueColumns<?> values) {
+		this(pairs, values.dictionary);
+		for (int x = 1; x < values.size(); x++) {
+			if (!values.removed(x)) {
+				add(values.tags(x));
+			}
+		}
+	}
+
+	boolean countsPairs() {
+		return pairs != null;
+	}
+
+	/**
+	 * Count the tags of a value being added
+	 *
+	 * @param tags
+	 *            Sorted tag ids
+	 */
+	void add(final int[] tags) {
+		int[] frequencies = this.frequencies;
+		if (tags.length > 0 && tags[tags.length - 1] >= frequencies.length) {
+			frequencies = Arrays.copyOf(frequencies,
+					Math.max(frequencies.length * 2, Integer.highestOneBit(tags[tags.length - 1]) << 1));
+		}
+		for (final int tag : tags) {
+			frequencies[tag]++;
+		}
+		this.frequencies = frequencies;
+		if (pairs != null) {
+			for (int x = 0; x < tags.length; x++) {
+				for (int y = x + 1; y < tags.length; y++) {
+					for (int row = 0; row < SKETCH_DEPTH; row++) {
+						pairs[slot(row, tags[x], tags[y])]++;
+					}
+				}
+			}
+		}
+		count++;
+	}
+
+	/**
+	 * Stop counting the tags of a value being removed, which must have been
+	 * counted by add()
+	 *
+	 * @param tags
+	 *            Sorted tag ids
+	 */
+	void remove(final int[] tags) {
+		final int[] frequencies = this.frequencies;
+		for (final int tag : tags) {
+			frequencies[tag]--;
+		}
+		if (pairs != null) {
+			for (int x = 0; x < tags.length; x++) {
+				for (int y = x + 1; y < tags.length; y++) {
+					for (int row = 0; row < SKETCH_DEPTH; row++) {
+						pairs[slot(row, tags[x], tags[y])]--;
+					}
+				}
+			}
+		}
+		count--;
+	}
+
+	private static int slot(final int row, final int a, final int b) {
+		int h = (a * 0x9E3779B9 + b) * (0x85EBCA6B + row * 0x6A09E667);
+		h ^= h >>> 15;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 13;
+		return row * SKETCH_WIDTH + (h & (SKETCH_WIDTH - 1));
+	}
+
+	/**
+	 * @return The number of values counted
+	 */
+	int count() {
+		return count;
+	}
+
+	/**
+	 * @return The number of values counted with this tag
+	 */
+	int frequency(final int tag) {
+		final int[] frequencies = this.frequencies;
+		return tag >= 0 && tag < frequencies.length ? frequencies[tag] : 0;
+	}
+
+	/**
+	 * @return An estimate, possibly high, of the number of values counted with
+	 *         both tags, or -1 if we aren't counting pairs
+	 */
+	int cooccurrence(final int a, final int b) {
+		if (pairs == null)
+			return -1;
+		if (a < 0 || b < 0)
+			return 0;
+		if (a == b)
+			return frequency(a);
+		final int low = Math.min(a, b), high = Math.max(a, b);
+		int ret = Integer.MAX_VALUE;
+		for (int row = 0; row < SKETCH_DEPTH; row++) {
+			ret = Math.min(ret, pairs[slot(row, low, high)]);
+		}
+		return Math.min(ret, Math.min(frequency(a), frequency(b)));
+	}
+
+	/**
+	 * @return The estimated fraction of values a query matches
+	 */
+	double selectivity(final Query query) {
+		return query.selectivity(this);
+	}
+
+	/**
+	 * @return A CompiledQuery for query, testing the ids of our dictionary,
+	 *         ordered using these statistics. The result is cached, and
+	 *         recompiled once the store has grown enough that the statistics
+	 *         may have changed.
+	 */
+	CompiledQuery compile(final Query query) {
+		final int count = this.count;
+		final Compiled existing = compiled.get(query);
+		if (existing != null && !existing.query.provisional && count < existing.count * RECOMPILE_GROWTH + 64)
+			return existing.query;
+		final CompiledQuery ret = new CompiledQuery(query, this);
+		if (existing == null && compiled.size() >= MAX_COMPILED) {
+			compiled.clear();
+		}
+		compiled.put(query, new Compiled(ret, count));
+		return ret;
+	}
+}
@@ -0,0 +1,133 @@
+package athena;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Store.findTopK(): finds the k values with the highest scores that match a
+ * query, without examining every match. The store is divided into segments of
+ * ValueColumns.SCORE_SEGMENT positions, for each of which ValueColumns keeps
+ * the highest score in it. Segments are searched from the highest bound to
+ * the lowest, each by a StoreIterator confined to the segment, as in
+ * ParallelIterable, so the search still follows and learns shortcuts. Once we
+ * have k matches and the next segment's bound is below the lowest of them, no
+ * remaining segment can contribute and we stop.
+ *
+ * This stops soonest where high scores are concentrated in a few segments,
+ * for instance where values are added roughly in order of score.
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ */
+class TopKSearch<V> {
+
+	private final Store<V> store;
+
+	private final Query query;
+
+	private final int k;
+
+	/**
+	 * Searched even if the store is compacted while we run
+	 */
+	private final ValueColumns<V> values;
+
+	/**
+	 * The number of values tested by the segments searched so far
+	 */
+	int counter = 0;
+
+	/**
+	 * The number of segments searched so far
+	 */
+	int segmentsSearched = 0;
+
+	/**
+	 * Orders positions from the worst result to the best: by score, and among
+	 * equal scores the later position first
+	 */
+	private final Comparator<Integer> worstFirst = new Comparator<Integer>() {
+		@Override
+		public int compare(final Integer a, final Integer b) {
+			final int c = Double.compare(values.score(a), values.score(b));
+			return c != 0 ? c : b.compareTo(a);
+		}
+	};
+
+	/**
+	 * @param query
+	 *            A canonical query
+	 */
+	TopKSearch(final Store<V> store, final Query query, final int k) {
+		this.store = store;
+		this.query = query;
+		this.k = k;
+		values = store.values;
+	}
+
+	/**
+	 * @return Up to k values, the highest score first, ties going to the
+	 *         value stored first
+	 */
+	List<V> run() {
+		store.metrics().queryStarted();
+		if (k == 0)
+			return Lists.newArrayList();
+		final int size = values.size();
+		// Every segment skips the same removed values
+		final int removals = values.removals();
+		final int segments = (size + ValueColumns.SCORE_SEGMENT - 1) / ValueColumns.SCORE_SEGMENT;
+		// Highest bound first, ties broken by segment
+		final double[] bounds = new double[segments];
+		for (int s = 0; s < segments; s++) {
+			bounds[s] = values.maxScore(s * ValueColumns.SCORE_SEGMENT);
+		}
+		final Integer[] order = new Integer[segments];
+		for (int s = 0; s < segments; s++) {
+			order[s] = s;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				final int c = Double.compare(bounds[b], bounds[a]);
+				return c != 0 ? c : a.compareTo(b);
+			}
+		});
+
+		final PriorityQueue<Integer> best = new PriorityQueue<Integer>(Math.min(k, 1024), worstFirst);
+		for (final int s : order) {
+			if (best.size() == k && bounds[s] < values.score(best.peek())) {
+				break;
+			}
+			// Segment 0 starts at the seed value, the others after the last
+			// value of the previous segment
+			final int start = s * ValueColumns.SCORE_SEGMENT;
+			final int anchor = Math.max(start - 1, 0);
+			final int end = Math.min(start + ValueColumns.SCORE_SEGMENT, size);
+			final Store.StoreIterable<V> iterable = new Store.StoreIterable<V>(store, query);
+			for (final StoreIterator<V> it = new StoreIterator<V>(iterable, values, query, anchor, end,
+					removals); it.hasNext();) {
+				it.next();
+				best.add(it.current());
+				if (best.size() > k) {
+					best.poll();
+				}
+			}
+			counter += iterable.counter;
+			segmentsSearched++;
+		}
+
+		final Integer[] found = best.toArray(new Integer[best.size()]);
+		Arrays.sort(found, worstFirst);
+		final List<V> ret = Lists.newArrayListWithCapacity(found.length);
+		for (int x = found.length - 1; x >= 0; x--) {
+			ret.add(values.value(found[x]));
+		}
+		return ret;
+	}
+}
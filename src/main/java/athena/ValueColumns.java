@@ -0,0 +1,718 @@
+package athena;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The values in a Store, held column-wise rather than as one object per value.
+ * Each column is divided into chunks of CHUNK_SIZE positions: a chunk of
+ * payloads, a chunk of handles, a chunk of scores, a chunk recording when
+ * each value was removed, a chunk of ShortcutTables, and the tags of every
+ * value in the chunk packed one after another into a single int[], with the
+ * offset at which each value's tags end. Walking the store therefore reads a few contiguous arrays
+ * rather than chasing a pointer to every value and another to its tags, and a
+ * value costs a few words plus its tags.
+ *
+ * Every chunk but the first is allocated at its full size. The first starts
+ * with room for FIRST_CHUNK_SIZE positions and is copied into one twice the
+ * size whenever it fills, until it reaches CHUNK_SIZE, so that a Store holding
+ * only a few values doesn't pay for thousands.
+ *
+ * A value's ShortcutTable is only created when the first shortcut is added to
+ * it, through shortcutsToUpdate(). Until then shortcuts() returns an empty
+ * table shared by every value, which must never be modified. A ValueColumns
+ * read by Store.load() also has the SavedShortcuts of the file, and a value's
+ * table is built from those the first time shortcuts() or shortcutsToUpdate()
+ * is called for it. Code that merely accounts for tables that already exist,
+ * such as the ShortcutBudget, uses existingShortcuts() so as not to build
+ * them all.
+ *
+ * Values are only ever appended, by add(), and Store.compact() builds a new
+ * ValueColumns rather than modifying this one, so a search can keep using the
+ * ValueColumns it started with. add() may run concurrently with any number of
+ * readers, without either waiting for the other, as long as only one thread
+ * adds at a time. A value is written in full before size() is increased to
+ * include it, and arrays that have to grow are copied and the copy published
+ * through a volatile field, never modified in place. A reader that takes
+ * size() when it starts, and never looks beyond it, therefore sees a
+ * consistent snapshot however many values are added meanwhile.
+ *
+ * Removals are numbered in the order they are made, each value recording the
+ * number of its removal, and removals() is increased only once that is
+ * written. A reader that also takes removals() when it starts, and ignores any
+ * removal numbered beyond it, sees the values removed since as still there,
+ * see removed(int, int).
+ *
+ * Positions are normally in the order values were added, which is also the
+ * order of their handles. Store.recluster() builds a ValueColumns in another
+ * order, which also keeps the positions in handle order as a secondary index,
+ * so that anchor() can still find a handle. Values added afterwards are
+ * appended in handle order, after every value in another order, see
+ * clustered().
+ *
+ * @author Ian Clarke <ian@sensearray.com>
+ *
+ * @param <V>
+ */
+final class ValueColumns<V> {
+
+	private static final int CHUNK_BITS = 12;
+
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/**
+	 * The number of positions the first chunk has room for to begin with
+	 */
+	static final int FIRST_CHUNK_SIZE = 16;
+
+	private static final int SCORE_SEGMENT_BITS = 10;
+
+	/**
+	 * The number of consecutive positions maxScore() gives a bound for, see
+	 * TopKSearch. A chunk holds a whole number of these segments.
+	 */
+	static final int SCORE_SEGMENT = 1 << SCORE_SEGMENT_BITS;
+
+	/**
+	 * What shortcuts() returns for a value that has no ShortcutTable yet
+	 */
+	private static final ShortcutTable NONE = new ShortcutTable(0);
+
+	/**
+	 * The columns for CHUNK_SIZE consecutive positions, or fewer while the
+	 * first chunk is growing
+	 */
+	private static final class Chunk {
+		final Object[] payloads;
+
+		/**
+		 * The tags of every value in the chunk, each value's sorted, one value
+		 * after another. Replaced when it needs to grow, and trimmed once the
+		 * chunk is full.
+		 */
+		volatile int[] tags;
+
+		/**
+		 * tagEnds[i] is the offset in tags after the last tag of the i'th
+		 * value. Its tags start where the previous value's end, or at 0.
+		 */
+		final int[] tagEnds;
+
+		final int[] handles;
+
+		final double[] scores;
+
+		/**
+		 * The highest score in each SCORE_SEGMENT of the chunk, including
+		 * removed values
+		 */
+		final double[] maxScores;
+
+		/**
+		 * The number remove() gave each value's removal, or 0 if it hasn't
+		 * been removed
+		 */
+		final int[] removedAt;
+
+		/**
+		 * Null until a value's first shortcut is added. Atomic so that a table
+		 * created by shortcutsToUpdate() is safely published to readers that
+		 * don't lock, and so that two threads can't both create one.
+		 */
+		final AtomicReferenceArray<ShortcutTable> shortcuts;
+
+		Chunk(final int capacity, final int tagCapacity) {
+			payloads = new Object[capacity];
+			tags = new int[tagCapacity];
+			tagEnds = new int[capacity];
+			handles = new int[capacity];
+			scores = new double[capacity];
+			maxScores = new double[(capacity + SCORE_SEGMENT - 1) >>> SCORE_SEGMENT_BITS];
+			removedAt = new int[capacity];
+			shortcuts = new AtomicReferenceArray<ShortcutTable>(capacity);
+		}
+
+		/**
+		 * A copy of a full chunk with room for capacity positions
+		 */
+		Chunk(final Chunk old, final int capacity) {
+			payloads = Arrays.copyOf(old.payloads, capacity);
+			tags = old.tags;
+			tagEnds = Arrays.copyOf(old.tagEnds, capacity);
+			handles = Arrays.copyOf(old.handles, capacity);
+			scores = Arrays.copyOf(old.scores, capacity);
+			maxScores = Arrays.copyOf(old.maxScores, (capacity + SCORE_SEGMENT - 1) >>> SCORE_SEGMENT_BITS);
+			removedAt = Arrays.copyOf(old.removedAt, capacity);
+			shortcuts = new AtomicReferenceArray<ShortcutTable>(capacity);
+			for (int x = 0; x < old.capacity(); x++) {
+				shortcuts.set(x, old.shortcuts.get(x));
+			}
+		}
+
+		int capacity() {
+			return handles.length;
+		}
+
+		int tagStart(final int index) {
+			return index == 0 ? 0 : tagEnds[index - 1];
+		}
+	}
+
+	private final int maxShortcuts;
+
+	/**
+	 * Accounts for the memory of the ShortcutTables we create
+	 */
+	private final ShortcutBudget budget;
+
+	/**
+	 * Replaced, never modified, when it needs to grow
+	 */
+	private volatile Chunk[] chunks = new Chunk[1];
+
+	/**
+	 * Only written by add(), after the value it adds has been written
+	 */
+	private volatile int size = 0;
+
+	/**
+	 * The number of values removed, only written by remove(), after the
+	 * value it removes has been marked
+	 */
+	private volatile int removals = 0;
+
+	/**
+	 * The Store's dictionary, which the tag ids of the values are from. A
+	 * Store keeps the same one when it replaces its ValueColumns.
+	 */
+	final TagDictionary dictionary;
+
+	/**
+	 * Whether positions are in some order other than that of handles
+	 */
+	private final boolean reordered;
+
+	/**
+	 * If reordered, the position of every value but the seed, in handle
+	 * order, once indexHandles() has been called. Appended to by add() and
+	 * replaced when it needs to grow, like the other columns.
+	 */
+	private volatile int[] byHandle;
+
+	/**
+	 * If reordered, the position after the last value that may be out of
+	 * handle order, see clustered()
+	 */
+	private int clustered;
+
+	/**
+	 * If reordered, the matches of recent queries among the values before
+	 * clustered, in handle order, see InsertionOrderIterator
+	 */
+	private ResultCache inHandleOrder;
+
+	/**
+	 * The shortcuts Store.load() found in the file, for values whose
+	 * ShortcutTable hasn't been built yet, or null
+	 */
+	private volatile SavedShortcuts saved;
+
+	/**
+	 * @param maxShortcuts
+	 *            The maximum size of each ShortcutTable
+	 * @param dictionary
+	 *            The dictionary the tag ids of the values are from
+	 */
+	ValueColumns(final int maxShortcuts, final ShortcutBudget budget, final TagDictionary dictionary) {
+		this(maxShortcuts, budget, false, dictionary);
+	}
+
+	/**
+	 * @param reordered
+	 *            Whether values will be added in some order other than that
+	 *            of their handles, in which case indexHandles() must be called
+	 *            once they have been
+	 */
+	ValueColumns(final int maxShortcuts, final ShortcutBudget budget, final boolean reordered,
+			final TagDictionary dictionary) {
+		this.maxShortcuts = maxShortcuts;
+		this.budget = budget;
+		this.reordered = reordered;
+		this.dictionary = dictionary;
+		QueryRegistry.shared.track(this);
+	}
+
+	boolean reordered() {
+		return reordered;
+	}
+
+	/**
+	 * Build the handle order index of a reordered ValueColumns, after the
+	 * values initially in it have been added and before it is published
+	 * 
+	 * @param clustered
+	 *            The position after the last value that may be out of handle
+	 *            order. Every value from there on must be in handle order, and
+	 *            have a greater handle than any value before it.
+	 */
+	void indexHandles(final int clustered) {
+		this.clustered = clustered;
+		final long[] pairs = new long[size - 1];
+		for (int x = 1; x < size; x++) {
+			pairs[x - 1] = ((long) handle(x) << 32) | x;
+		}
+		Arrays.sort(pairs);
+		final int[] byHandle = new int[Math.max(pairs.length, 16)];
+		for (int x = 0; x < pairs.length; x++) {
+			byHandle[x] = (int) pairs[x];
+		}
+		this.byHandle = byHandle;
+		inHandleOrder = new ResultCache(Math.max(clustered, 1));
+	}
+
+	/**
+	 * @return The position to resume a search from after the value with a
+	 *         handle, that is the position of the last value whose handle is
+	 *         at most handle. If reordered, the value with that exact handle
+	 *         must still be here, otherwise this returns -1.
+	 */
+	int anchor(final int handle) {
+		final int size = this.size;
+		if (!reordered) {
+			// Handles increase with position, so we can binary search for it
+			int low = 0, high = size - 1;
+			while (low < high) {
+				final int mid = (low + high + 1) >>> 1;
+				if (handle(mid) <= handle) {
+					low = mid;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return low;
+		}
+		if (handle == -1)
+			return 0;
+		final int index = handleOrderAfter(handle, size);
+		if (index > 0) {
+			final int position = inHandleOrder(index - 1);
+			if (handle(position) == handle)
+				return position;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return For a reordered ValueColumns, the position after the last value
+	 *         that may be out of handle order. The values from there on were
+	 *         added since it was reordered, so they are in handle order, and
+	 *         follow every value before them in handle order too.
+	 */
+	int clustered() {
+		return clustered;
+	}
+
+	/**
+	 * @return For a reordered ValueColumns, the matches InsertionOrderIterator
+	 *         has sorted into handle order for recent queries, each entry's
+	 *         positions being every match before clustered(), in handle
+	 *         order. It holds at most as many positions as there are
+	 *         reordered values, so costs no more than the handle order index.
+	 */
+	ResultCache matchesInHandleOrder() {
+		return inHandleOrder;
+	}
+
+	/**
+	 * For a reordered ValueColumns, find where to resume walking the values in
+	 * handle order, see InsertionOrderIterator
+	 *
+	 * @param size
+	 *            The size() the caller took, the values in handle order being
+	 *            the size - 1 other than the seed
+	 * @return The index in handle order of the first value whose handle is
+	 *         greater than handle, or size - 1 if there is none
+	 */
+	int handleOrderAfter(final int handle, final int size) {
+		final int[] byHandle = this.byHandle;
+		int low = 0, high = size - 1;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (handle(byHandle[mid]) <= handle) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return The position of the value at index in handle order, which must
+	 *         be less than the caller's size() - 1
+	 */
+	int inHandleOrder(final int index) {
+		return byHandle[index];
+	}
+
+	/**
+	 * @return The number of positions, including the seed value and removed
+	 *         values. Readers should take this once, and ignore any position
+	 *         beyond it.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of removals made so far. Searches should take this
+	 *         once, along with size(), and pass it to removed(int, int).
+	 */
+	int removals() {
+		return removals;
+	}
+
+	private Chunk chunk(final int position) {
+		return chunks[position >>> CHUNK_BITS];
+	}
+
+	/**
+	 * Append a value. Only one thread may add at a time.
+	 *
+	 * @param tags
+	 *            Sorted tag ids
+	 * @param handle
+	 *            The handle Store.add() returned for it, -1 for the seed value
+	 * @return Its position
+	 */
+	int add(final int[] tags, final V value, final int handle) {
+		return add(tags, value, handle, 0);
+	}
+
+	/**
+	 * Append a value with a score, see Store.findTopK()
+	 *
+	 * @return Its position
+	 */
+	int add(final int[] tags, final V value, final int handle, final double score) {
+		return add(tags, 0, tags.length, value, handle, score, null);
+	}
+
+	/**
+	 * Append a copy of a value from the ValueColumns Store.compact() is
+	 * replacing, moving its shortcuts to their new positions
+	 *
+	 * @param remap
+	 *            Maps old positions to new positions
+	 * @return Its new position
+	 */
+	int add(final ValueColumns<V> old, final int position, final int[] remap) {
+		final Chunk chunk = old.chunk(position);
+		final int index = position & CHUNK_MASK;
+		final ShortcutTable oldShortcuts = old.shortcuts(position);
+		return add(chunk.tags, chunk.tagStart(index), chunk.tagEnds[index], old.value(position),
+				chunk.handles[index], chunk.scores[index],
+				oldShortcuts == NONE ? null : new ShortcutTable(oldShortcuts, size, remap));
+	}
+
+	private int add(final int[] tags, final int from, final int to, final V value, final int handle,
+			final double score, final ShortcutTable shortcuts) {
+		final int position = size;
+		final int index = position & CHUNK_MASK;
+		if (index == 0) {
+			addChunk(position >>> CHUNK_BITS, to - from);
+		} else if (position == chunks[0].capacity()) {
+			growFirstChunk();
+		}
+		final Chunk chunk = chunk(position);
+		final int start = chunk.tagStart(index), end = start + to - from;
+		int[] pool = chunk.tags;
+		if (end > pool.length) {
+			pool = Arrays.copyOf(pool, Math.max(end, pool.length * 2));
+		}
+		System.arraycopy(tags, from, pool, start, to - from);
+		if (index == CHUNK_MASK && end < pool.length) {
+			pool = Arrays.copyOf(pool, end);
+		}
+		// Readers only look at the tags of positions before size, which
+		// are the same in either copy
+		chunk.tags = pool;
+		chunk.tagEnds[index] = end;
+		chunk.payloads[index] = value;
+		chunk.handles[index] = handle;
+		chunk.scores[index] = score;
+		final int segment = index >>> SCORE_SEGMENT_BITS;
+		if ((index & (SCORE_SEGMENT - 1)) == 0 || score > chunk.maxScores[segment]) {
+			chunk.maxScores[segment] = score;
+		}
+		chunk.shortcuts.set(index, shortcuts);
+		int[] byHandle = this.byHandle;
+		if (byHandle != null) {
+			// Values added after reordering get the highest handles yet
+			if (position - 1 == byHandle.length) {
+				byHandle = Arrays.copyOf(byHandle, byHandle.length * 2);
+			}
+			byHandle[position - 1] = position;
+			this.byHandle = byHandle;
+		}
+		// Publish the value
+		size = position + 1;
+		return position;
+	}
+
+	/**
+	 * Start a new chunk, growing the array of chunks if necessary
+	 *
+	 * @param firstTags
+	 *            The number of tags the first value in it has, so we can
+	 *            guess how many the chunk will need
+	 */
+	private void addChunk(final int chunk, final int firstTags) {
+		Chunk[] chunks = this.chunks;
+		if (chunk == chunks.length) {
+			chunks = Arrays.copyOf(chunks, chunk * 2);
+		}
+		// The previous chunk's total is a better guess, if there is one
+		chunks[chunk] = chunk == 0 ? new Chunk(FIRST_CHUNK_SIZE, Math.max(firstTags * FIRST_CHUNK_SIZE,
+				FIRST_CHUNK_SIZE)) : new Chunk(CHUNK_SIZE, Math.max(chunks[chunk - 1].tagEnds[CHUNK_MASK], CHUNK_SIZE));
+		this.chunks = chunks;
+	}
+
+	/**
+	 * Replace the full first chunk with a copy twice the size. A reader may
+	 * create a ShortcutTable in the old chunk while we copy it, so once the
+	 * copy is published we carry over any that appeared meanwhile, and
+	 * create() carries over its own if it finds the chunk replaced.
+	 */
+	private void growFirstChunk() {
+		final Chunk old = chunks[0];
+		final Chunk grown = new Chunk(old, old.capacity() * 2);
+		final Chunk[] chunks = this.chunks.clone();
+		chunks[0] = grown;
+		this.chunks = chunks;
+		for (int x = 0; x < old.capacity(); x++) {
+			final ShortcutTable created = old.shortcuts.get(x);
+			if (created != null) {
+				grown.shortcuts.compareAndSet(x, null, created);
+			}
+		}
+	}
+
+	/**
+	 * @return The payload stored at position
+	 */
+	@SuppressWarnings("unchecked")
+	V value(final int position) {
+		return (V) chunk(position).payloads[position & CHUNK_MASK];
+	}
+
+	int handle(final int position) {
+		return chunk(position).handles[position & CHUNK_MASK];
+	}
+
+	double score(final int position) {
+		return chunk(position).scores[position & CHUNK_MASK];
+	}
+
+	/**
+	 * @return The highest score of any value in the segment of SCORE_SEGMENT
+	 *         positions containing position, counting only values before
+	 *         size() when this is called and any added since
+	 */
+	double maxScore(final int position) {
+		return chunk(position).maxScores[(position & CHUNK_MASK) >>> SCORE_SEGMENT_BITS];
+	}
+
+	/**
+	 * @return A copy of the sorted tag ids of the value at position
+	 */
+	int[] tags(final int position) {
+		final Chunk chunk = chunk(position);
+		final int index = position & CHUNK_MASK;
+		return Arrays.copyOfRange(chunk.tags, chunk.tagStart(index), chunk.tagEnds[index]);
+	}
+
+	/**
+	 * @return True if the value at position has the tags query requires,
+	 *         without copying them
+	 */
+	boolean matches(final CompiledQuery query, final int position) {
+		final Chunk chunk = chunk(position);
+		final int index = position & CHUNK_MASK;
+		return query.match(chunk.tags, chunk.tagStart(index), chunk.tagEnds[index]);
+	}
+
+	/**
+	 * A removed value is never returned by a search, but otherwise behaves
+	 * exactly like any other value until it is compacted away, so shortcuts
+	 * to, from and over it remain valid.
+	 */
+	boolean removed(final int position) {
+		return chunk(position).removedAt[position & CHUNK_MASK] != 0;
+	}
+
+	/**
+	 * @param removals
+	 *            What removals() returned when the search started
+	 * @return True if the value at position had already been removed when the
+	 *         search started
+	 */
+	boolean removed(final int position, final int removals) {
+		final int removedAt = chunk(position).removedAt[position & CHUNK_MASK];
+		return removedAt != 0 && removedAt <= removals;
+	}
+
+	/**
+	 * Mark the value at position removed. Only one thread may remove at a
+	 * time, and a value may only be removed once.
+	 */
+	void remove(final int position) {
+		final int removal = removals + 1;
+		chunk(position).removedAt[position & CHUNK_MASK] = removal;
+		// Publish the removal
+		removals = removal;
+	}
+
+	/**
+	 * Give a ValueColumns read by Store.load() the shortcuts saved with it,
+	 * before it is published
+	 */
+	void setSaved(final SavedShortcuts saved) {
+		this.saved = saved;
+	}
+
+	/**
+	 * @return The shortcuts from the value at position, which must only be
+	 *         read, use shortcutsToUpdate() to add to them
+	 */
+	ShortcutTable shortcuts(final int position) {
+		final ShortcutTable ret = chunk(position).shortcuts.get(position & CHUNK_MASK);
+		if (ret != null)
+			return ret;
+		return saved == null ? NONE : create(position, false);
+	}
+
+	/**
+	 * @return The shortcuts from the value at position if its ShortcutTable
+	 *         has been created, without building it from any SavedShortcuts
+	 */
+	ShortcutTable existingShortcuts(final int position) {
+		final ShortcutTable ret = chunk(position).shortcuts.get(position & CHUNK_MASK);
+		return ret == null ? NONE : ret;
+	}
+
+	/**
+	 * @return The number of shortcuts from the value at position, counting
+	 *         any saved ones without building its ShortcutTable
+	 */
+	int shortcutCount(final int position) {
+		final ShortcutTable ret = chunk(position).shortcuts.get(position & CHUNK_MASK);
+		if (ret != null)
+			return ret.size();
+		final SavedShortcuts saved = this.saved;
+		return saved == null ? 0 : saved.count(position);
+	}
+
+	/**
+	 * @return The shortcuts from the value at position as alternating query
+	 *         ids and targets, for Store.save(), without building its
+	 *         ShortcutTable
+	 */
+	int[] shortcutEntries(final int position) {
+		final ShortcutTable ret = chunk(position).shortcuts.get(position & CHUNK_MASK);
+		if (ret != null)
+			return ret.entries();
+		final SavedShortcuts saved = this.saved;
+		return saved == null ? NONE.entries() : saved.entries(position);
+	}
+
+	/**
+	 * @return The shortcuts from the value at position, creating its
+	 *         ShortcutTable if it doesn't have one yet
+	 */
+	ShortcutTable shortcutsToUpdate(final int position) {
+		final ShortcutTable ret = chunk(position).shortcuts.get(position & CHUNK_MASK);
+		return ret != null ? ret : create(position, true);
+	}
+
+	/**
+	 * Create the ShortcutTable of the value at position, with any shortcuts
+	 * saved for it
+	 *
+	 * @param empty
+	 *            Whether to create it even if no shortcuts were saved,
+	 *            otherwise NONE is returned
+	 */
+	private ShortcutTable create(final int position, final boolean empty) {
+		final SavedShortcuts saved = this.saved;
+		final int[] entries = saved == null ? null : saved.entries(position);
+		if (!empty && (entries == null || entries.length == 0))
+			return NONE;
+		final ShortcutTable created = new ShortcutTable(maxShortcuts, position, budget, QueryRegistry.shared);
+		if (entries != null) {
+			for (int x = 0; x < entries.length; x += 2) {
+				created.put(entries[x], entries[x + 1]);
+			}
+		}
+		// If another thread got there first, use its table. Ours is garbage,
+		// so forget the memory it was charged.
+		final int index = position & CHUNK_MASK;
+		Chunk chunk = chunk(position);
+		ShortcutTable ret = chunk.shortcuts.compareAndSet(index, null, created) ? created : chunk.shortcuts.get(index);
+		// If the first chunk grew meanwhile the copy may have missed the
+		// table, see growFirstChunk()
+		for (Chunk current; (current = chunk(position)) != chunk; chunk = current) {
+			ret = current.shortcuts.compareAndSet(index, null, ret) ? ret : current.shortcuts.get(index);
+		}
+		if (ret != created) {
+			created.detach();
+		}
+		return ret;
+	}
+
+	/**
+	 * Remove every shortcut, including those saved, see
+	 * Store.resetShortcuts()
+	 */
+	void clearShortcuts() {
+		saved = null;
+		final int size = this.size;
+		for (int position = 0; position < size; position++) {
+			existingShortcuts(position).clear();
+		}
+	}
+
+	/**
+	 * Remove every shortcut for a query that has been purged, see
+	 * QueryRegistry.purge()
+	 */
+	void purgeShortcuts(final QueryRegistry registry) {
+		final int size = this.size;
+		for (int position = 0; position < size; position++) {
+			final ShortcutTable shortcuts = chunk(position).shortcuts.get(position & CHUNK_MASK);
+			if (shortcuts != null) {
+				shortcuts.purge(registry);
+			}
+		}
+	}
+
+	/**
+	 * @return A description of the value at position, for debugging
+	 */
+	String toString(final int position) {
+		final StringBuilder builder = new StringBuilder();
+		builder.append("Value [position=");
+		builder.append(position);
+		builder.append(", tags=");
+		builder.append(Arrays.toString(dictionary.decode(tags(position))));
+		if (removed(position)) {
+			builder.append(", removed");
+		}
+		builder.append(", shortcuts=");
+		builder.append(shortcuts(position));
+		builder.append("]");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,291 @@
+package athena;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class TestConcurrency {
+
+	@Test
+	public void concurrentSearchesAgreeWithExhaustiveScan() throws Exception {
+		final Random r = new Random(0);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 5000, 20);
+		final Store<Set<String>> store = new Store<Set<String>>(4);
+		for (final Set<String> tagSet : tagSets) {
+			store.add(tagSet, tagSet);
+		}
+
+		final List<Query> queries = Lists.newArrayList();
+		final List<Integer> expected = Lists.newArrayList();
+		for (int x = 0; x < 20; x++) {
+			final Query q = TestQuery.randomQuery(r, 5, 20);
+			int count = 0;
+			for (final Set<String> tagSet : tagSets) {
+				if (q.match(tagSet)) {
+					count++;
+				}
+			}
+			queries.add(q);
+			expected.add(count);
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<Void>> futures = Lists.newArrayList();
+			for (int t = 0; t < 4; t++) {
+				final Random threadRandom = new Random(t);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int x = 0; x < 50; x++) {
+							final int q = threadRandom.nextInt(queries.size());
+							if (Iterables.size(store.find(queries.get(q))) != expected.get(q))
+								Assert.fail("Wrong result count for " + queries.get(q));
+						}
+						return null;
+					}
+				}));
+			}
+			for (final Future<Void> f : futures) {
+				f.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertTrue(store.checkIntegrity());
+	}
+
+	@Test
+	public void parallelSearchesAgreeWithSequentialSearches() throws Exception {
+		final Random r = new Random(1);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 5000, 20);
+		final Store<Integer> store = new Store<Integer>(4);
+		for (int x = 0; x < tagSets.size(); x++) {
+			store.add(tagSets.get(x), x);
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int x = 0; x < 20; x++) {
+				final Query q = TestQuery.randomQuery(r, 5, 20);
+				final List<Integer> expected = Lists.newArrayList();
+				for (int y = 0; y < tagSets.size(); y++) {
+					if (q.match(tagSets.get(y))) {
+						expected.add(y);
+					}
+				}
+				for (int pass = 0; pass < 2; pass++) {
+					Assert.assertEquals(Lists.newArrayList(store.findParallel(q, executor, 700, true)), expected);
+					final List<Integer> unordered = Lists.newArrayList(store.findParallel(q, executor, 700, false));
+					Collections.sort(unordered);
+					Assert.assertEquals(unordered, expected);
+				}
+				// Sequential searches follow the chains the segments left
+				Assert.assertEquals(Lists.newArrayList(store.find(q)), expected);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertTrue(store.checkIntegrity());
+	}
+
+	@Test
+	public void parallelSearchesKeepSequentialShortcuts() throws Exception {
+		final Store<Integer> store = new Store<Integer>(4);
+		for (int x = 0; x < 50000; x++) {
+			store.add(x % 5000 == 0 ? Sets.newHashSet("parallel-rare") : Sets.newHashSet("parallel-common"), x);
+		}
+		final Query q = Query.tag("parallel-rare");
+		Lists.newArrayList(store.find(q));
+		final Store.StoreIterable<Integer> warm = store.find(q);
+		Assert.assertEquals(Lists.newArrayList(warm).size(), 10);
+		Assert.assertTrue(warm.counter() <= 10, warm.counter() + " values tested");
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Assert.assertEquals(Lists.newArrayList(store.findParallel(q, executor, 1000, true)).size(), 10);
+		} finally {
+			executor.shutdown();
+		}
+		// The segments' chains join up, and don't shorten the longer
+		// shortcuts the sequential search learned
+		final Store.StoreIterable<Integer> after = store.find(q);
+		Assert.assertEquals(Lists.newArrayList(after).size(), 10);
+		Assert.assertTrue(after.counter() <= 10, after.counter() + " values tested");
+		Assert.assertTrue(store.checkIntegrity());
+	}
+
+	@Test
+	public void searchesSeeASnapshotWhileValuesAreAdded() throws Exception {
+		final Random r = new Random(2);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 20000, 20);
+		final Store<Integer> store = new Store<Integer>(4, Store.INDEXED | Store.BLOCKED);
+		store.cacheResults(100000);
+		final List<Query> queries = Lists.newArrayList();
+		final List<List<Integer>> expected = Lists.newArrayList();
+		for (int x = 0; x < 10; x++) {
+			final Query q = TestQuery.randomQuery(r, 4, 20);
+			final List<Integer> matches = Lists.newArrayList();
+			for (int y = 0; y < tagSets.size(); y++) {
+				if (q.match(tagSets.get(y))) {
+					matches.add(y);
+				}
+			}
+			queries.add(q);
+			expected.add(matches);
+		}
+
+		final AtomicInteger added = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<Void>> futures = Lists.newArrayList();
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int x = 0; x < tagSets.size(); x++) {
+						store.add(tagSets.get(x), x);
+						added.set(x + 1);
+					}
+					return null;
+				}
+			}));
+			for (int t = 0; t < 3; t++) {
+				final Random threadRandom = new Random(t);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						while (added.get() < tagSets.size()) {
+							final int q = threadRandom.nextInt(queries.size());
+							final int before = added.get();
+							final List<Integer> results = Lists.newArrayList(store.find(queries.get(q)));
+							// Every match added before the search started, and
+							// no gaps: the results are the matches in some
+							// prefix of the store
+							final List<Integer> all = expected.get(q);
+							Assert.assertEquals(results, all.subList(0, results.size()));
+							Assert.assertTrue(results.size() == all.size() || all.get(results.size()) >= before,
+									"Missed " + all.get(Math.min(results.size(), all.size() - 1)) + " with "
+											+ before + " added");
+						}
+						return null;
+					}
+				}));
+			}
+			for (final Future<Void> f : futures) {
+				f.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		for (int q = 0; q < queries.size(); q++) {
+			Assert.assertEquals(Lists.newArrayList(store.find(queries.get(q))), expected.get(q));
+		}
+		Assert.assertTrue(store.checkIntegrity());
+	}
+
+	/**
+	 * Readers and a writer take turns in rounds, so that every search has
+	 * exactly one right answer however the threads are scheduled. In each
+	 * round every reader starts a search and takes some of its results, then
+	 * the writer adds and removes values, compacts the store and sometimes
+	 * reclusters it, while the readers take the rest. Each search must return
+	 * exactly what the store held when it started.
+	 */
+	@Test
+	public void searchesSeeASnapshotWhileTheStoreIsRewritten() throws Exception {
+		final Random r = new Random(3);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 4000, 20);
+		final Store<Integer> store = new Store<Integer>(4, Store.INDEXED | Store.BLOCKED);
+		store.cacheResults(100000);
+		final List<Query> queries = Lists.newArrayList();
+		for (int x = 0; x < 10; x++) {
+			queries.add(TestQuery.randomQuery(r, 4, 20).canonical());
+		}
+		final int readers = 3, rounds = 100, perRound = tagSets.size() / rounds;
+		// Written by the writer only between the barrier's second and first
+		// trips, and read by the readers only between its first and second
+		final boolean[] live = new boolean[tagSets.size()];
+		final CyclicBarrier barrier = new CyclicBarrier(readers + 1);
+		final ExecutorService executor = Executors.newFixedThreadPool(readers + 1);
+		try {
+			final List<Future<Void>> futures = Lists.newArrayList();
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					final Random writerRandom = new Random(4);
+					final List<Integer> handles = Lists.newArrayList();
+					for (int round = 0; round < rounds; round++) {
+						barrier.await(10, TimeUnit.SECONDS);
+						barrier.await(10, TimeUnit.SECONDS);
+						for (int x = round * perRound; x < (round + 1) * perRound; x++) {
+							handles.add(store.add(tagSets.get(x), x));
+							live[x] = true;
+							final int v = writerRandom.nextInt(x + 1);
+							if (store.remove(handles.get(v))) {
+								live[v] = false;
+							}
+						}
+						store.compact();
+						if (round % 10 == 9) {
+							store.recluster(round % 20 == 9, 2);
+						}
+					}
+					return null;
+				}
+			}));
+			for (int t = 0; t < readers; t++) {
+				final Random threadRandom = new Random(t);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (int round = 0; round < rounds; round++) {
+							barrier.await(10, TimeUnit.SECONDS);
+							final Query q = queries.get(threadRandom.nextInt(queries.size()));
+							final List<Integer> expected = Lists.newArrayList();
+							for (int x = 0; x < live.length; x++) {
+								if (live[x] && q.match(tagSets.get(x))) {
+									expected.add(x);
+								}
+							}
+							final Iterator<Integer> it = store.find(q).iterator();
+							final List<Integer> found = Lists.newArrayList();
+							while (found.size() < expected.size() / 2 && it.hasNext()) {
+								found.add(it.next());
+							}
+							barrier.await(10, TimeUnit.SECONDS);
+							while (it.hasNext()) {
+								found.add(it.next());
+							}
+							Collections.sort(found);
+							Assert.assertEquals(found, expected, q + " in round " + round);
+						}
+						return null;
+					}
+				}));
+			}
+			for (final Future<Void> f : futures) {
+				f.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		Assert.assertTrue(store.checkIntegrity());
+	}
+}
@@ -0,0 +1,111 @@
+package athena;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestCursor {
+
+	private static Cursor roundTrip(final Cursor cursor) throws IOException, ClassNotFoundException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(cursor);
+		out.close();
+		return (Cursor) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+	}
+
+	@Test
+	public void serializedQueriesResolveToCanonicalInstances() throws Exception {
+		final Random r = new Random(8);
+		for (int x = 0; x < 50; x++) {
+			final Query q = TestQuery.randomQuery(r, 5, 20).canonical();
+			final Cursor cursor = roundTrip(Cursor.start(q));
+			Assert.assertSame(cursor.query(), q);
+			Assert.assertEquals(cursor, Cursor.start(q));
+		}
+	}
+
+	@Test
+	public void pagesConcatenateToTheFullResults() throws Exception {
+		final Random r = new Random(9);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 5000, 20);
+		for (final int options : new int[] { 0, Store.INDEXED | Store.BLOCKED }) {
+			final Store<Integer> store = new Store<Integer>(4, options);
+			for (int x = 0; x < tagSets.size(); x++) {
+				store.add(tagSets.get(x), x);
+			}
+			for (int x = 0; x < 20; x++) {
+				final Query q = TestQuery.randomQuery(r, 4, 20);
+				final List<Integer> expected = Lists.newArrayList();
+				for (int y = 0; y < tagSets.size(); y++) {
+					if (q.match(tagSets.get(y))) {
+						expected.add(y);
+					}
+				}
+				// Page through twice, the second time with warm shortcuts
+				for (int pass = 0; pass < 2; pass++) {
+					final List<Integer> all = Lists.newArrayList();
+					for (Cursor cursor = Cursor.start(q); cursor != null;) {
+						final Page<Integer> page = store.page(roundTrip(cursor), 7);
+						Assert.assertTrue(page.values.size() == 7 || page.next == null);
+						all.addAll(page.values);
+						cursor = page.next;
+					}
+					Assert.assertEquals(all, expected, q.toString());
+				}
+			}
+			Assert.assertTrue(store.checkIntegrity());
+		}
+	}
+
+	@Test
+	public void cursorsSurviveRemovalAndCompaction() {
+		final Random r = new Random(10);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 3000, 10);
+		final Store<Integer> store = new Store<Integer>(4);
+		final List<Integer> handles = Lists.newArrayList();
+		for (int x = 0; x < tagSets.size(); x++) {
+			handles.add(store.add(tagSets.get(x), x));
+		}
+		final Query q = Query.or("1", "2");
+		final List<Integer> expected = Lists.newArrayList();
+		for (int y = 0; y < tagSets.size(); y++) {
+			if (q.match(tagSets.get(y))) {
+				expected.add(y);
+			}
+		}
+
+		final Page<Integer> first = store.page(Cursor.start(q), 10);
+		Assert.assertEquals(first.values, expected.subList(0, 10));
+		// Remove the last value returned, and the next two that would have
+		// been, then compact so that every position changes
+		store.remove(handles.get(expected.get(0)));
+		store.remove(handles.get(expected.get(9)));
+		store.remove(handles.get(expected.get(10)));
+		store.remove(handles.get(expected.get(11)));
+		store.compact();
+
+		final SearchIterator<Integer> it = store.find(q, first.next).iterator();
+		Assert.assertEquals(it.next(), expected.get(12));
+		Assert.assertEquals(it.next(), expected.get(13));
+		final Cursor cursor = it.cursor();
+		// hasNext() looks ahead, but the cursor stays after the last value
+		// next() returned
+		Assert.assertTrue(it.hasNext());
+		Assert.assertEquals(it.cursor(), cursor);
+		it.finish();
+		Assert.assertEquals(Lists.newArrayList(store.find(q, cursor)), expected.subList(14, expected.size()));
+		Assert.assertTrue(store.checkIntegrity());
+	}
+}
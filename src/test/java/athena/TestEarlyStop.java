@@ -0,0 +1,61 @@
+package athena;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestEarlyStop {
+
+	@Test
+	public void countExistsAndLimitAgreeWithExhaustiveScan() {
+		final Random r = new Random(6);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 5000, 20);
+		for (final int options : new int[] { 0, Store.INDEXED, Store.BLOCKED }) {
+			final Store<Set<String>> store = new Store<Set<String>>(4, options);
+			for (final Set<String> tagSet : tagSets) {
+				store.add(tagSet, tagSet);
+			}
+			for (int x = 0; x < 30; x++) {
+				final Query q = TestQuery.randomQuery(r, 5, 20);
+				final List<Set<String>> expected = Lists.newArrayList();
+				for (final Set<String> tagSet : tagSets) {
+					if (q.match(tagSet)) {
+						expected.add(tagSet);
+					}
+				}
+				// Stop early first, so the full searches that follow have to
+				// cope with whatever shortcuts the partial ones left
+				Assert.assertEquals(store.exists(q), !expected.isEmpty());
+				Assert.assertEquals(store.find(q, 10), expected.subList(0, Math.min(10, expected.size())));
+				Assert.assertEquals(store.count(q), expected.size());
+				Assert.assertEquals(store.find(q, 0), expected.subList(0, 0));
+				Assert.assertEquals(Lists.newArrayList(store.find(q)), expected);
+			}
+			Assert.assertTrue(store.checkIntegrity());
+		}
+	}
+
+	@Test
+	public void stoppingEarlyKeepsWhatWasLearned() {
+		final Random r = new Random(7);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 5000, 20);
+		final Store<Set<String>> store = new Store<Set<String>>(4);
+		for (final Set<String> tagSet : tagSets) {
+			store.add(tagSet, tagSet);
+		}
+		final Query q = Query.and("1", "2");
+		final List<Set<String>> first = store.find(q, 10);
+		Assert.assertEquals(first.size(), 10);
+		final long tested = store.metrics().getValuesTested();
+		Assert.assertEquals(store.find(q, 10), first);
+		// The second search follows shortcuts straight from match to match
+		Assert.assertEquals(store.metrics().getValuesTested() - tested, 10);
+		Assert.assertTrue(store.checkIntegrity());
+	}
+}
@@ -0,0 +1,132 @@
+package athena;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestIndex {
+
+	private static BitSet randomBitSet(final Random r, final int size, final double density) {
+		final BitSet ret = new BitSet();
+		for (int x = 0; x < size; x++) {
+			if (r.nextDouble() < density) {
+				ret.set(x);
+			}
+		}
+		return ret;
+	}
+
+	private static CompressedBitmap toBitmap(final BitSet bits) {
+		final CompressedBitmap ret = new CompressedBitmap();
+		for (int x = bits.nextSetBit(0); x >= 0; x = bits.nextSetBit(x + 1)) {
+			ret.add(x);
+		}
+		return ret;
+	}
+
+	private static void assertSame(final CompressedBitmap bitmap, final BitSet expected) {
+		Assert.assertEquals(bitmap.cardinality(), expected.cardinality());
+		int y = expected.nextSetBit(0);
+		for (final int x : bitmap.toArray()) {
+			Assert.assertEquals(x, y);
+			Assert.assertTrue(bitmap.contains(x));
+			y = expected.nextSetBit(y + 1);
+		}
+	}
+
+	@Test
+	public void bitmapOperationsAgreeWithBitSet() {
+		final Random r = new Random(0);
+		// Mix sparse and dense chunks so that every combination of chunk
+		// representations gets exercised
+		final double[] densities = { 0.001, 0.05, 0.5 };
+		for (final double densityA : densities) {
+			for (final double densityB : densities) {
+				final BitSet a = randomBitSet(r, 300000, densityA), b = randomBitSet(r, 200000, densityB);
+				final CompressedBitmap bitmapA = toBitmap(a), bitmapB = toBitmap(b);
+				assertSame(bitmapA, a);
+
+				final BitSet and = (BitSet) a.clone();
+				and.and(b);
+				assertSame(CompressedBitmap.and(bitmapA, bitmapB), and);
+
+				final BitSet or = (BitSet) a.clone();
+				or.or(b);
+				assertSame(CompressedBitmap.or(bitmapA, bitmapB), or);
+
+				final BitSet andNot = (BitSet) a.clone();
+				andNot.andNot(b);
+				assertSame(CompressedBitmap.andNot(bitmapA, bitmapB), andNot);
+			}
+		}
+	}
+
+	@Test
+	public void snapshotsAreUnaffectedByLaterAdds() {
+		final Random r = new Random(1);
+		for (final double density : new double[] { 0.001, 0.5 }) {
+			final BitSet bits = randomBitSet(r, 200000, density);
+			final CompressedBitmap bitmap = new CompressedBitmap();
+			final BitSet prefix = new BitSet();
+			CompressedBitmap snapshot = bitmap.snapshot();
+			for (int x = bits.nextSetBit(0); x >= 0; x = bits.nextSetBit(x + 1)) {
+				bitmap.add(x);
+				if (r.nextInt(500) == 0) {
+					assertSame(snapshot, prefix);
+					prefix.set(0, x + 1);
+					prefix.and(bits);
+					snapshot = bitmap.snapshot();
+				}
+			}
+			assertSame(snapshot, prefix);
+		}
+	}
+
+	@Test
+	public void indexedStoreAgreesWithExhaustiveScan() {
+		agreesWithExhaustiveScan(Store.INDEXED);
+	}
+
+	@Test
+	public void blockedStoreAgreesWithExhaustiveScan() {
+		agreesWithExhaustiveScan(Store.BLOCKED);
+		agreesWithExhaustiveScan(Store.INDEXED | Store.BLOCKED);
+	}
+
+	private static void agreesWithExhaustiveScan(final int options) {
+		final Random r = new Random(2);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 5000, 30);
+		final Store<Set<String>> store = new Store<Set<String>>(4, options);
+		final List<Integer> handles = Lists.newArrayList();
+		for (final Set<String> tagSet : tagSets) {
+			handles.add(store.add(tagSet, tagSet));
+		}
+		final List<Query> queries = Lists.newArrayList();
+		for (int x = 0; x < 30; x++) {
+			queries.add(TestQuery.randomQuery(r, 5, 30));
+		}
+		for (int x = 0; x < handles.size(); x += 3) {
+			store.remove(handles.get(x));
+		}
+		for (int pass = 0; pass < 3; pass++) {
+			for (final Query q : queries) {
+				final List<Set<String>> expected = Lists.newArrayList();
+				for (int x = 0; x < tagSets.size(); x++) {
+					if (x % 3 != 0 && q.match(tagSets.get(x))) {
+						expected.add(tagSets.get(x));
+					}
+				}
+				Assert.assertEquals(Lists.newArrayList(store.find(q)), expected, q.toString());
+			}
+			Assert.assertTrue(store.checkIntegrity());
+			store.compact();
+		}
+	}
+}
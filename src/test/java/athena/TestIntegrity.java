@@ -4,6 +4,7 @@ import static athena.Query.and;
 import static athena.Query.not;
 import static athena.Query.or;
 
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
@@ -11,6 +12,7 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 public class TestIntegrity {
@@ -42,10 +44,65 @@ public class TestIntegrity {
 		search(qB);
 		search(qB);
 		for (int t = 0; t < store.values.size(); t++) {
-			System.out.println(t + " : " + store.values.get(t));
+			System.out.println(t + " : " + store.values.toString(t));
 		}
 	}
 
+	@Test
+	public void removalAndCompaction() {
+		final Random r = new Random(1);
+		final List<Set<String>> tagSets = TestQuery.randomTagSets(r, 3000, 10);
+		final List<Query> queries = Lists.newArrayList();
+		for (int x = 0; x < 20; x++) {
+			queries.add(TestQuery.randomQuery(r, 4, 10));
+		}
+		store = new Store<Set<String>>(4);
+		final List<Integer> handles = Lists.newArrayList();
+		for (final Set<String> tagSet : tagSets) {
+			handles.add(store.add(tagSet, tagSet));
+		}
+		verify(queries, tagSets);
+
+		final boolean[] removed = new boolean[tagSets.size()];
+		final List<Set<String>> remaining = Lists.newArrayList();
+		for (int x = 0; x < tagSets.size(); x++) {
+			if (r.nextInt(3) == 0) {
+				Assert.assertTrue(store.remove(handles.get(x)));
+				Assert.assertFalse(store.remove(handles.get(x)));
+				removed[x] = true;
+			} else {
+				remaining.add(tagSets.get(x));
+			}
+		}
+		verify(queries, remaining);
+
+		final int shortcutsBefore = store.shortcutCount();
+		store.compact();
+		Assert.assertEquals(store.size(), remaining.size());
+		Assert.assertTrue(store.shortcutCount() > shortcutsBefore / 2, "Compaction discarded most shortcuts");
+		Assert.assertTrue(store.checkIntegrity());
+		verify(queries, remaining);
+
+		// Handles remain valid across compaction
+		for (int x = 0; x < tagSets.size(); x++) {
+			Assert.assertEquals(store.remove(handles.get(x)), !removed[x]);
+		}
+		Assert.assertEquals(Iterables.size(store.find(queries.get(0))), 0);
+	}
+
+	private void verify(final List<Query> queries, final List<Set<String>> expected) {
+		for (final Query q : queries) {
+			final List<Set<String>> matches = Lists.newArrayList();
+			for (final Set<String> tagSet : expected) {
+				if (q.match(tagSet)) {
+					matches.add(tagSet);
+				}
+			}
+			Assert.assertEquals(Lists.newArrayList(store.find(q)), matches, q.toString());
+		}
+		Assert.assertTrue(store.checkIntegrity());
+	}
+
 	private void search(final Query q) {
 		final Store.StoreIterable<Set<String>> results4 = store.find(q);
 		System.out.println("Query: " + q + ", Found " + Iterables.size(results4) + " results with "
@@ -0,0 +1,87 @@
+package athena;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class TestMetrics {
+
+	@Test
+	public void metricsTrackSearches() throws Exception {
+		final Random r = new Random(5);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 5000, 20);
+		final Store<Set<String>> store = new Store<Set<String>>(2);
+		for (final Set<String> tagSet : tagSets) {
+			store.add(tagSet, tagSet);
+		}
+		final StoreMetrics metrics = store.metrics();
+
+		final Query q = TestQuery.randomQuery(r, 4, 20);
+		final Store.StoreIterable<Set<String>> cold = store.find(q);
+		Lists.newArrayList(cold);
+		Assert.assertEquals(metrics.getQueries(), 1);
+		Assert.assertEquals(metrics.getFullScans(), 1);
+		Assert.assertEquals(metrics.getValuesTested(), cold.counter());
+		Assert.assertTrue(metrics.getShortcutsCreated() > 0);
+
+		final Store.StoreIterable<Set<String>> warm = store.find(q);
+		Lists.newArrayList(warm);
+		Assert.assertEquals(metrics.getQueries(), 2);
+		Assert.assertEquals(metrics.getFullScans(), 1);
+		Assert.assertEquals(metrics.getValuesTested(), cold.counter() + warm.counter());
+		Assert.assertEquals(metrics.getValuesTestedPerQuery(), (cold.counter() + warm.counter()) / 2.0);
+		Assert.assertTrue(metrics.getShortcutHits() > 0);
+		Assert.assertTrue(metrics.getShortcutHits() <= metrics.getShortcutLookups());
+		// Every hit is followed, and so lands in the histogram
+		long skips = 0;
+		for (final long bucket : metrics.getSkipHistogram()) {
+			skips += bucket;
+		}
+		Assert.assertEquals(skips, metrics.getShortcutHits());
+
+		// With only two shortcuts per value, other queries will push some out
+		final List<Query> others = Lists.newArrayList();
+		for (int x = 0; x < 20; x++) {
+			others.add(TestQuery.randomQuery(r, 4, 20));
+		}
+		for (final Query other : others) {
+			Lists.newArrayList(store.find(other));
+		}
+		Assert.assertTrue(metrics.getEvictions() > 0);
+		// Each value that has evicted has done so at least once
+		final double evicting = metrics.getEvictingValueFraction() * store.size();
+		Assert.assertTrue(evicting >= 1);
+		Assert.assertTrue(evicting <= metrics.getEvictions() + 0.5, evicting + " values evicting");
+
+		metrics.reset();
+		Assert.assertEquals(metrics.getQueries(), 0);
+		Assert.assertEquals(metrics.getValuesTested(), 0);
+		Assert.assertEquals(metrics.getEvictingValueFraction(), 0.0);
+	}
+
+	@Test
+	public void metricsArePublishedThroughJmx() throws Exception {
+		final Store<String> store = new Store<String>(4);
+		store.add(Sets.newHashSet("a"), "a");
+		Lists.newArrayList(store.find(Query.tag("a")));
+		final ObjectName name = store.registerMetrics("test");
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			Assert.assertEquals(server.getAttribute(name, "Queries"), 1L);
+			Assert.assertEquals(server.getAttribute(name, "FullScans"), 1L);
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package athena;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class TestPersistence {
+
+	static final Serializer<Integer> INTEGERS = new Serializer<Integer>() {
+		@Override
+		public void write(final Integer value, final DataOutput out) throws IOException {
+			out.writeInt(value);
+		}
+
+		@Override
+		public Integer read(final DataInput in) throws IOException {
+			return in.readInt();
+		}
+	};
+
+	@Test
+	public void loadedStoreKeepsValuesAndShortcuts() throws IOException {
+		final Random r = new Random(3);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 5000, 20);
+		// Enough shortcuts that none are evicted, so the loaded store should
+		// search exactly as the original did
+		final Store<Integer> store = new Store<Integer>(64, Store.INDEXED);
+		final List<Integer> handles = Lists.newArrayList();
+		for (int x = 0; x < tagSets.size(); x++) {
+			handles.add(store.add(tagSets.get(x), x));
+		}
+		// Leave some values compacted away, and some merely removed
+		for (int x = 0; x < 1000; x += 2) {
+			store.remove(handles.get(x));
+		}
+		store.compact();
+		for (int x = 1000; x < 2000; x += 2) {
+			store.remove(handles.get(x));
+		}
+
+		final List<Query> queries = Lists.newArrayList();
+		final List<List<Integer>> expected = Lists.newArrayList();
+		for (int x = 0; x < 10; x++) {
+			final Query q = TestQuery.randomQuery(r, 5, 20);
+			queries.add(q);
+			expected.add(Lists.newArrayList(store.find(q)));
+		}
+
+		final File file = File.createTempFile("athena", ".store");
+		try {
+			store.save(file, INTEGERS);
+			final Store<Integer> loaded = Store.load(file, INTEGERS);
+			Assert.assertEquals(loaded.size(), store.size());
+			Assert.assertEquals(loaded.shortcutCount(), store.shortcutCount());
+			// The shortcuts stay in the file until a search needs them
+			Assert.assertEquals(loaded.shortcutMemory(), 0);
+			Assert.assertEquals(Lists.newArrayList(loaded.find(queries.get(0))), expected.get(0));
+			Assert.assertTrue(loaded.shortcutMemory() > 0);
+			Assert.assertTrue(loaded.shortcutMemory() < store.shortcutMemory());
+
+			// Saving a store that hasn't built its tables yet keeps them
+			final File again = File.createTempFile("athena", ".store");
+			try {
+				loaded.save(again, INTEGERS);
+				Assert.assertEquals(Store.load(again, INTEGERS).shortcutCount(), store.shortcutCount());
+			} finally {
+				again.delete();
+			}
+
+			Assert.assertTrue(loaded.checkIntegrity());
+			for (int x = 0; x < queries.size(); x++) {
+				final Store.StoreIterable<Integer> original = store.find(queries.get(x));
+				Assert.assertEquals(Lists.newArrayList(original), expected.get(x));
+				final Store.StoreIterable<Integer> found = loaded.find(queries.get(x));
+				Assert.assertEquals(Lists.newArrayList(found), expected.get(x));
+				Assert.assertEquals(found.counter(), original.counter());
+			}
+
+			// Handles still work after loading
+			Assert.assertFalse(loaded.remove(handles.get(0)));
+			Assert.assertFalse(loaded.remove(handles.get(1000)));
+			Assert.assertTrue(loaded.remove(handles.get(1001)));
+			final int shortcuts = loaded.shortcutCount();
+			loaded.compact();
+			Assert.assertEquals(loaded.size(), 5000 - 1001);
+			// Compaction builds the tables it keeps
+			Assert.assertTrue(loaded.shortcutCount() > shortcuts / 2);
+			Assert.assertEquals(loaded.add(tagSets.get(0), -1), (int) handles.get(handles.size() - 1) + 1);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void queriesForUnknownTagsAreSaved() throws IOException {
+		final Store<Integer> store = new Store<Integer>(8);
+		for (int x = 0; x < 100; x++) {
+			store.add(Sets.newHashSet("persisted-" + x % 3), x);
+		}
+		// Learns a shortcut over the whole store for a tag no value has
+		final Query missing = Query.or("persistence-missing", "persisted-9");
+		Assert.assertTrue(Lists.newArrayList(store.find(missing)).isEmpty());
+		Assert.assertEquals(store.dictionary().lookup("persistence-missing"), TagDictionary.UNKNOWN);
+		final File file = File.createTempFile("athena", ".store");
+		try {
+			store.save(file, INTEGERS);
+			final Store<Integer> loaded = Store.load(file, INTEGERS);
+			Assert.assertEquals(loaded.shortcutCount(), store.shortcutCount());
+			final Store.StoreIterable<Integer> found = loaded.find(missing);
+			Assert.assertTrue(Lists.newArrayList(found).isEmpty());
+			Assert.assertTrue(found.counter() < 10, found.counter() + " values tested");
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void onlyTheStoresOwnTagsAreSaved() throws IOException {
+		final Store<Integer> elsewhere = new Store<Integer>(8);
+		elsewhere.add(Sets.newHashSet("persist-elsewhere"), 0);
+		final Store<Integer> store = new Store<Integer>(8);
+		for (int x = 0; x < 100; x++) {
+			store.add(Sets.newHashSet("persist-own-" + x % 2), x);
+		}
+		// A query with a tag only the other store has is saved in full
+		final Query q = Query.or("persist-elsewhere", "persist-own-1");
+		final List<Integer> expected = Lists.newArrayList(store.find(q));
+		final File file = File.createTempFile("athena", ".store");
+		try {
+			store.save(file, INTEGERS);
+			final DataInputStream in = new DataInputStream(new FileInputStream(file));
+			final List<String> tags = Lists.newArrayList();
+			try {
+				// Magic, version, maxShortcuts and options
+				for (int x = 0; x < 4; x++) {
+					in.readInt();
+				}
+				for (int x = in.readInt(); x > 0; x--) {
+					tags.add(in.readUTF());
+				}
+			} finally {
+				in.close();
+			}
+			Assert.assertEquals(tags, Lists.newArrayList("persist-own-0", "persist-own-1"));
+			final Store<Integer> loaded = Store.load(file, INTEGERS);
+			Assert.assertEquals(loaded.shortcutCount(), store.shortcutCount());
+			Assert.assertEquals(Lists.newArrayList(loaded.find(q)), expected);
+			Assert.assertEquals(Lists.newArrayList(loaded.find(Query.tag("persist-own-0"))).size(), 50);
+		} finally {
+			file.delete();
+		}
+	}
+}
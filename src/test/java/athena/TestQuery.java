@@ -0,0 +1,161 @@
+package athena;
+
+import static athena.Query.and;
+import static athena.Query.not;
+import static athena.Query.or;
+import static athena.Query.tag;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import athena.Query.And;
+import athena.Query.Contains;
+import athena.Query.Not;
+import athena.Query.Or;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class TestQuery {
+
+	static Query randomQuery(final Random r, final int maxDepth, final int tagCount) {
+		if (maxDepth == 1)
+			return new Contains("" + r.nextInt(tagCount));
+		final int sel = r.nextInt(8);
+		if (sel < 4)
+			return new And(randomQuery(r, maxDepth - 1, tagCount), randomQuery(r, maxDepth - 1, tagCount));
+		if (sel < 6)
+			return new Or(randomQuery(r, maxDepth - 1, tagCount), randomQuery(r, maxDepth - 1, tagCount));
+		if (sel == 6)
+			return new Not(randomQuery(r, maxDepth - 1, tagCount));
+		return new Contains("" + r.nextInt(tagCount));
+	}
+
+	static ArrayList<Set<String>> randomTagSets(final Random r, final int count, final int tagCount) {
+		final ArrayList<Set<String>> ret = Lists.newArrayList();
+		for (int x = 0; x < count; x++) {
+			final Set<String> tagSet = Sets.newHashSet();
+			for (int y = 0; y < tagCount; y++) {
+				if (r.nextDouble() < 0.3) {
+					tagSet.add("" + y);
+				}
+			}
+			ret.add(tagSet);
+		}
+		return ret;
+	}
+
+	@Test
+	public void equivalentQueriesShareACanonicalInstance() {
+		Assert.assertSame(and("a", "b"), and("b", "a"));
+		Assert.assertSame(or("a", "b"), or("b", "a"));
+		Assert.assertSame(and("a", and("b", "c")), and(and("c", "b"), "a"));
+		Assert.assertSame(and("a", "a"), tag("a"));
+		Assert.assertSame(not(not("a")), tag("a"));
+		Assert.assertSame(new And(new Contains("b"), new Not(new Not(new Contains("a")))).canonical(), and("a", "b"));
+		Assert.assertEquals(and("a", "b").id(), new And(new Contains("b"), new Contains("a")).id());
+		Assert.assertNotSame(and("a", "b"), or("a", "b"));
+		Assert.assertFalse(new And(new Contains("a"), new Contains("b")).equals(new And(new Contains("b"),
+				new Contains("a"))));
+	}
+
+	@Test
+	public void canonicalQueriesAreEquivalent() {
+		final Random r = new Random(1);
+		final ArrayList<Set<String>> tagSets = randomTagSets(r, 200, 10);
+		for (int x = 0; x < 200; x++) {
+			final Query q = randomQuery(r, 6, 10);
+			final Query canonical = q.canonical();
+			Assert.assertSame(canonical.canonical(), canonical);
+			for (final Set<String> tagSet : tagSets) {
+				Assert.assertEquals(canonical.match(tagSet), q.match(tagSet), q + " against " + tagSet);
+			}
+		}
+	}
+
+	@Test
+	public void compiledQueriesAgreeWithTree() {
+		final Random r = new Random(0);
+		final ArrayList<Set<String>> tagSets = randomTagSets(r, 200, 10);
+		// Encoded first, since a query with a tag the dictionary hasn't seen
+		// is only compiled provisionally, and so isn't cached
+		final ArrayList<int[]> encoded = Lists.newArrayList();
+		for (final Set<String> tagSet : tagSets) {
+			encoded.add(TagDictionary.shared.encode(tagSet));
+		}
+		for (int x = 0; x < 200; x++) {
+			final Query q = randomQuery(r, 6, 10);
+			final CompiledQuery compiled = q.compile();
+			Assert.assertSame(q.compile(), compiled);
+			for (int y = 0; y < tagSets.size(); y++) {
+				final int[] tags = encoded.get(y);
+				Assert.assertEquals(compiled.match(tags), q.match(tags), q + " against " + tagSets.get(y));
+			}
+		}
+	}
+
+	@Test
+	public void impliesRecognisesSubsumptionAndNegation() {
+		Assert.assertTrue(and("a", "c").implies(or("a", "b")));
+		Assert.assertTrue(tag("a").implies(new Not(new Not(new Contains("a")))));
+		Assert.assertTrue(new Not(new Not(new Contains("a"))).implies(tag("a")));
+		// De Morgan
+		Assert.assertTrue(not(or("a", "b")).implies(not("a")));
+		Assert.assertTrue(not(or("a", "b")).implies(and(not("b"), not("a"))));
+		Assert.assertTrue(and(not("b"), not("a")).implies(not(or("a", "b"))));
+		Assert.assertTrue(not("a").implies(not(and("a", "b"))));
+		Assert.assertTrue(or(and("a", "b"), and("a", "c")).implies(tag("a")));
+		Assert.assertFalse(or("a", "b").implies(tag("a")));
+		Assert.assertFalse(tag("a").implies(not("a")));
+		Assert.assertFalse(not(and("a", "b")).implies(not("a")));
+	}
+
+	@Test
+	public void impliesIsSound() {
+		final Random r = new Random(3);
+		final ArrayList<Set<String>> tagSets = randomTagSets(r, 200, 4);
+		int implied = 0;
+		for (int x = 0; x < 2000; x++) {
+			final Query p = randomQuery(r, 4, 4).canonical();
+			final Query q = randomQuery(r, 4, 4).canonical();
+			// Ask twice, since the second answer is remembered
+			if (p.implies(q) && p.implies(q)) {
+				implied++;
+				for (final Set<String> tagSet : tagSets) {
+					Assert.assertTrue(!p.match(tagSet) || q.match(tagSet), p + " doesn't imply " + q);
+				}
+			}
+		}
+		Assert.assertTrue(implied > 0);
+	}
+
+	@Test
+	public void shortcutsForImpliedQueriesAreUsed() {
+		final Random r = new Random(4);
+		final ArrayList<Set<String>> tagSets = randomTagSets(r, 5000, 10);
+		final Store<Set<String>> store = new Store<Set<String>>(4);
+		for (final Set<String> tagSet : tagSets) {
+			store.add(tagSet, tagSet);
+		}
+		int matchesAOrB = 0;
+		for (final Set<String> tagSet : tagSets) {
+			if (tagSet.contains("1") || tagSet.contains("2")) {
+				matchesAOrB++;
+			}
+		}
+		Lists.newArrayList(store.find(or("1", "2")));
+		// Never searched for, but it implies ("1" OR "2"), so it needn't look
+		// at values that don't match that
+		final Store.StoreIterable<Set<String>> it = store.find(and("1", "3"));
+		final ArrayList<Set<String>> results = Lists.newArrayList(it);
+		Assert.assertTrue(it.counter() <= matchesAOrB, it.counter() + " > " + matchesAOrB);
+		for (final Set<String> result : results) {
+			Assert.assertTrue(result.contains("1") && result.contains("3"));
+		}
+		Assert.assertTrue(store.checkIntegrity());
+	}
+}
@@ -0,0 +1,294 @@
+package athena;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class TestRecluster {
+
+	/**
+	 * Tag sets in which tags are correlated, as they usually are: each value
+	 * has one of a few topics, and tags mostly from that topic
+	 */
+	private static ArrayList<Set<String>> topicalTagSets(final Random r, final int count) {
+		final ArrayList<Set<String>> ret = Lists.newArrayList();
+		for (int x = 0; x < count; x++) {
+			final int topic = r.nextInt(8);
+			final Set<String> tagSet = Sets.newHashSet("t" + topic);
+			for (int y = 0; y < 3; y++) {
+				tagSet.add(r.nextInt(10) < 8 ? topic + "." + r.nextInt(4) : "" + r.nextInt(20));
+			}
+			ret.add(tagSet);
+		}
+		return ret;
+	}
+
+	private static List<Query> topicalQueries(final Random r, final int count) {
+		final List<Query> ret = Lists.newArrayList();
+		for (int x = 0; x < count; x++) {
+			final int topic = r.nextInt(8);
+			ret.add(r.nextBoolean() ? Query.and("t" + topic, topic + "." + r.nextInt(4)) : Query.or("t" + topic,
+					"t" + r.nextInt(8)));
+		}
+		return ret;
+	}
+
+	private static List<Integer> expected(final Query q, final List<Set<String>> tagSets) {
+		final List<Integer> ret = Lists.newArrayList();
+		for (int x = 0; x < tagSets.size(); x++) {
+			if (q.match(tagSets.get(x))) {
+				ret.add(x);
+			}
+		}
+		return ret;
+	}
+
+	private static List<Integer> sorted(final Iterable<Integer> values) {
+		final List<Integer> ret = Lists.newArrayList(values);
+		Collections.sort(ret);
+		return ret;
+	}
+
+	@Test
+	public void reclusteringShortensShortcutChains() {
+		final Random r = new Random(24);
+		final ArrayList<Set<String>> tagSets = topicalTagSets(r, 5000);
+		final List<Query> queries = topicalQueries(r, 30);
+		final Store<Integer> store = new Store<Integer>(8);
+		for (int x = 0; x < tagSets.size(); x++) {
+			store.add(tagSets.get(x), x);
+		}
+		for (final Query q : queries) {
+			Assert.assertEquals(Lists.newArrayList(store.find(q)), expected(q, tagSets));
+		}
+		final int before = store.shortcutCount();
+
+		store.recluster(false, 0);
+		Assert.assertEquals(store.shortcutCount(), 0);
+		Assert.assertEquals(store.shortcutMemory(), 0);
+		for (final Query q : queries) {
+			Assert.assertEquals(sorted(store.find(q)), expected(q, tagSets), q.toString());
+		}
+		Assert.assertTrue(store.shortcutCount() * 2 < before, store.shortcutCount() + " vs " + before);
+		Assert.assertTrue(store.checkIntegrity());
+
+		// Paging through the new order still returns every value once
+		for (final Query q : queries.subList(0, 5)) {
+			final List<Integer> all = Lists.newArrayList();
+			for (Cursor cursor = Cursor.start(q); cursor != null;) {
+				final Page<Integer> page = store.page(cursor, 50);
+				all.addAll(page.values);
+				cursor = page.next;
+			}
+			Assert.assertEquals(sorted(all), expected(q, tagSets));
+		}
+	}
+
+	@Test
+	public void insertionOrderCanBeKept() throws Exception {
+		final Random r = new Random(25);
+		final ArrayList<Set<String>> tagSets = topicalTagSets(r, 4000);
+		final List<Query> queries = topicalQueries(r, 20);
+		final Store<Integer> store = new Store<Integer>(8, Store.INDEXED | Store.BLOCKED);
+		final List<Integer> handles = Lists.newArrayList();
+		for (int x = 0; x < 3000; x++) {
+			handles.add(store.add(tagSets.get(x), x));
+		}
+		// Enough searches for the first query to be sampled by the query log
+		for (int x = 0; x < QueryLog.DEFAULT_SAMPLE_RATE * 2; x++) {
+			store.count(queries.get(0));
+		}
+		store.remove(handles.get(5));
+		store.recluster(true, 1);
+		Assert.assertTrue(store.shortcutCount() > 0);
+		Assert.assertEquals(store.size(), 2999);
+
+		// Values added and removed afterwards, and compaction, are all seen
+		for (int x = 3000; x < tagSets.size(); x++) {
+			handles.add(store.add(tagSets.get(x), x));
+		}
+		store.remove(handles.get(7));
+		store.remove(handles.get(3500));
+		store.compact();
+		tagSets.set(5, Sets.<String> newHashSet());
+		tagSets.set(7, Sets.<String> newHashSet());
+		tagSets.set(3500, Sets.<String> newHashSet());
+
+		for (final Query q : queries) {
+			final List<Integer> expected = expected(q, tagSets);
+			Assert.assertEquals(Lists.newArrayList(store.find(q)), expected, q.toString());
+			final List<Integer> all = Lists.newArrayList();
+			for (Cursor cursor = Cursor.start(q); cursor != null;) {
+				final Page<Integer> page = store.page(cursor, 100);
+				all.addAll(page.values);
+				cursor = page.next;
+			}
+			Assert.assertEquals(all, expected, q.toString());
+		}
+		Assert.assertTrue(store.checkIntegrity());
+
+		// And so is the order, once saved and loaded
+		final File file = File.createTempFile("athena", ".store");
+		try {
+			store.save(file, TestPersistence.INTEGERS);
+			final Store<Integer> loaded = Store.load(file, TestPersistence.INTEGERS);
+			for (final Query q : queries) {
+				Assert.assertEquals(Lists.newArrayList(loaded.find(q)), expected(q, tagSets), q.toString());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void insertionOrderPagesReuseSortedMatches() {
+		final Random r = new Random(28);
+		final ArrayList<Set<String>> tagSets = topicalTagSets(r, 4000);
+		final Store<Integer> store = new Store<Integer>(8);
+		final List<Integer> handles = Lists.newArrayList();
+		for (int x = 0; x < 3500; x++) {
+			handles.add(store.add(tagSets.get(x), x));
+		}
+		store.recluster(true, 0);
+		for (int x = 3500; x < tagSets.size(); x++) {
+			handles.add(store.add(tagSets.get(x), x));
+		}
+		final Query q = Query.or("t3", "t5").canonical();
+		final List<Integer> expected = expected(q, tagSets);
+		final Page<Integer> first = store.page(Cursor.start(q), 20);
+		Assert.assertEquals(first.values, expected.subList(0, 20));
+
+		// The next page only searches the values added since reclustering,
+		// and skips values removed since the matches were sorted
+		store.remove(handles.get(expected.get(25)));
+		final Store.StoreIterable<Integer> rest = store.find(q, first.next);
+		final List<Integer> remaining = Lists.newArrayList(expected.subList(20, expected.size()));
+		remaining.remove(expected.get(25));
+		Assert.assertEquals(Lists.newArrayList(rest), remaining);
+		Assert.assertTrue(rest.counter() <= tagSets.size() - 3500, rest.counter() + " values tested");
+	}
+
+	@Test
+	public void insertionOrderSearchesFollowShortcuts() {
+		final Random r = new Random(26);
+		final ArrayList<Set<String>> tagSets = topicalTagSets(r, 4000);
+		final Store<Integer> store = new Store<Integer>(8);
+		final List<Integer> handles = Lists.newArrayList();
+		for (int x = 0; x < 3500; x++) {
+			handles.add(store.add(tagSets.get(x), x));
+		}
+		store.recluster(true, 0);
+		for (int x = 3500; x < tagSets.size(); x++) {
+			handles.add(store.add(tagSets.get(x), x));
+		}
+		final Query q = Query.and("t3", "3.1").canonical();
+		final List<Integer> expected = expected(q, tagSets);
+		Assert.assertTrue(expected.size() * 10 < tagSets.size(), expected.size() + " matches");
+		// The first search learns the query's shortcuts
+		Assert.assertEquals(Lists.newArrayList(store.find(q)), expected);
+
+		final Store.StoreIterable<Integer> firstPage = store.find(q, Cursor.start(q));
+		final Page<Integer> first = store.page(Cursor.start(q), 20);
+		Assert.assertEquals(first.values, expected.subList(0, 20));
+		Assert.assertEquals(Lists.newArrayList(firstPage), expected);
+		Assert.assertTrue(firstPage.counter() * 4 < store.size(), firstPage.counter() + " values tested");
+
+		// The value the cursor is after can be compacted away
+		store.remove(handles.get(expected.get(19)));
+		store.compact();
+		final Store.StoreIterable<Integer> iterable = store.find(q, first.next);
+		final SearchIterator<Integer> it = iterable.iterator();
+		final List<Integer> second = Lists.newArrayList();
+		while (second.size() < 20 && it.hasNext()) {
+			second.add(it.next());
+		}
+		it.finish();
+		Assert.assertEquals(second, expected.subList(20, 40));
+		Assert.assertTrue(iterable.counter() * 4 < store.size(), iterable.counter() + " values tested");
+
+		// Resuming among the values added since reclustering
+		final int last = expected.size() - 1;
+		Assert.assertTrue(expected.get(last - 1) >= 3500);
+		final Cursor cursor = new Cursor(q, handles.get(expected.get(last - 1)));
+		final Store.StoreIterable<Integer> tail = store.find(q, cursor);
+		Assert.assertEquals(Lists.newArrayList(tail), expected.subList(last, last + 1));
+		Assert.assertTrue(tail.counter() * 4 < store.size(), tail.counter() + " values tested");
+	}
+
+	@Test
+	public void addsAndRemovesDuringReclusterAreKept() throws InterruptedException {
+		final Random r = new Random(31);
+		final ArrayList<Set<String>> tagSets = topicalTagSets(r, 40000);
+		final Store<Integer> store = new Store<Integer>(8, Store.INDEXED);
+		final List<Integer> handles = Lists.newArrayList();
+		final Set<Integer> live = Sets.newHashSet();
+		for (int x = 0; x < 20000; x++) {
+			handles.add(store.add(tagSets.get(x), x));
+			live.add(x);
+		}
+		final Thread reclustering = new Thread() {
+			@Override
+			public void run() {
+				store.recluster(true, 0);
+			}
+		};
+		reclustering.start();
+		// Keep adding and removing until it has finished, and a little after
+		int added = 20000;
+		for (int after = 0; after < 100 && added < tagSets.size(); added++) {
+			handles.add(store.add(tagSets.get(added), added));
+			live.add(added);
+			final int removed = r.nextInt(added);
+			Assert.assertEquals(store.remove(handles.get(removed)), live.remove(removed));
+			if (!reclustering.isAlive()) {
+				after++;
+			}
+		}
+		reclustering.join();
+
+		for (final Query q : topicalQueries(r, 10)) {
+			final List<Integer> expected = Lists.newArrayList();
+			for (final int x : expected(q, tagSets.subList(0, added))) {
+				if (live.contains(x)) {
+					expected.add(x);
+				}
+			}
+			Assert.assertEquals(Lists.newArrayList(store.find(q)), expected);
+		}
+		Assert.assertTrue(store.checkIntegrity());
+		// Every handle still finds its value, or knows it was removed
+		for (int x = 0; x < added; x++) {
+			Assert.assertEquals(store.remove(handles.get(x)), live.contains(x));
+		}
+	}
+
+	@Test
+	public void valuesWithMoreOfTheFrequentTagsComeFirst() {
+		final TagDictionary dictionary = new TagDictionary();
+		final int a = dictionary.intern("cluster-a"), b = dictionary.intern("cluster-b");
+		final int[][] tagSets = { { a }, { a, b }, { a }, { b } };
+		final ValueColumns<Integer> values = new ValueColumns<Integer>(8, null, dictionary);
+		final TagStats stats = new TagStats(false, dictionary);
+		values.add(new int[0], null, -1);
+		for (int x = 0; x < tagSets.length; x++) {
+			final int[] tags = tagSets[x].clone();
+			Arrays.sort(tags);
+			values.add(tags, x, x);
+			stats.add(tags);
+		}
+		// "cluster-a" is the more frequent, so ["cluster-a"] is a prefix of
+		// ["cluster-a", "cluster-b"], which comes before it
+		final int[] order = ClusterOrder.order(values, values.size(), values.removals(), stats);
+		Assert.assertEquals(Arrays.toString(order), "[2, 1, 3, 4]");
+	}
+}
@@ -0,0 +1,110 @@
+package athena;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class TestResultCache {
+
+	private static List<Integer> expected(final Query q, final List<Set<String>> tagSets, final boolean[] removed) {
+		final List<Integer> ret = Lists.newArrayList();
+		for (int y = 0; y < tagSets.size(); y++) {
+			if (!removed[y] && q.match(tagSets.get(y))) {
+				ret.add(y);
+			}
+		}
+		return ret;
+	}
+
+	@Test
+	public void cachedResultsTrackAddsRemovesAndCompaction() {
+		final Random r = new Random(12);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 6000, 20);
+		final boolean[] removed = new boolean[tagSets.size()];
+		for (final int options : new int[] { 0, Store.INDEXED | Store.BLOCKED }) {
+			final Store<Integer> store = new Store<Integer>(4, options);
+			store.cacheResults(100000);
+			final StoreMetrics metrics = store.metrics();
+			final List<Integer> handles = Lists.newArrayList();
+			for (int x = 0; x < 3000; x++) {
+				handles.add(store.add(tagSets.get(x), x));
+			}
+			final List<Query> queries = Lists.newArrayList();
+			for (int x = 0; x < 20; x++) {
+				queries.add(TestQuery.randomQuery(r, 4, 20));
+			}
+			for (final Query q : queries) {
+				Assert.assertEquals(Lists.newArrayList(store.find(q)), expected(q, tagSets.subList(0, 3000), removed));
+			}
+
+			// Cached queries only search the values added since
+			for (int x = 3000; x < tagSets.size(); x++) {
+				handles.add(store.add(tagSets.get(x), x));
+			}
+			metrics.reset();
+			for (final Query q : queries) {
+				final Store.StoreIterable<Integer> it = store.find(q);
+				Assert.assertEquals(Lists.newArrayList(it), expected(q, tagSets, removed), q.toString());
+				Assert.assertTrue(it.counter() <= 3000);
+			}
+			Assert.assertEquals(metrics.getCachedSearches(), queries.size());
+
+			// And now they are up to date, nothing at all
+			metrics.reset();
+			for (final Query q : queries) {
+				Assert.assertEquals(Lists.newArrayList(store.find(q)), expected(q, tagSets, removed));
+			}
+			Assert.assertEquals(metrics.getValuesTested(), 0);
+
+			// Removed values are skipped, and compaction moves the cache
+			for (int x = 0; x < tagSets.size(); x += 3) {
+				removed[x] = true;
+				store.remove(handles.get(x));
+			}
+			for (final Query q : queries) {
+				Assert.assertEquals(Lists.newArrayList(store.find(q)), expected(q, tagSets, removed));
+			}
+			store.compact();
+			metrics.reset();
+			for (final Query q : queries) {
+				Assert.assertEquals(Lists.newArrayList(store.find(q)), expected(q, tagSets, removed));
+			}
+			Assert.assertEquals(metrics.getCachedSearches(), queries.size());
+			Assert.assertEquals(metrics.getValuesTested(), 0);
+			Assert.assertTrue(store.checkIntegrity());
+			Arrays.fill(removed, false);
+		}
+	}
+
+	@Test
+	public void resultsNotUsedRecentlyAreEvicted() {
+		final Store<Integer> store = new Store<Integer>(4);
+		for (int x = 0; x < 100; x++) {
+			store.add(Sets.newHashSet(x % 2 == 0 ? "even" : "odd"), x);
+		}
+		// Room for one query's 50 results, but not two
+		store.cacheResults(80);
+		final StoreMetrics metrics = store.metrics();
+		Lists.newArrayList(store.find(Query.tag("even")));
+		Lists.newArrayList(store.find(Query.tag("even")));
+		Assert.assertEquals(metrics.getCachedSearches(), 1);
+		Lists.newArrayList(store.find(Query.tag("odd")));
+		Lists.newArrayList(store.find(Query.tag("even")));
+		Assert.assertEquals(metrics.getCachedSearches(), 1);
+		Lists.newArrayList(store.find(Query.tag("even")));
+		Assert.assertEquals(metrics.getCachedSearches(), 2);
+		// Too many results to ever cache
+		store.cacheResults(10);
+		Lists.newArrayList(store.find(Query.tag("even")));
+		Lists.newArrayList(store.find(Query.tag("even")));
+		Assert.assertEquals(metrics.getCachedSearches(), 2);
+	}
+}
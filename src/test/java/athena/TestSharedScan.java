@@ -0,0 +1,72 @@
+package athena;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestSharedScan {
+
+	@Test
+	public void sharedScanAgreesWithExhaustiveScan() {
+		final Random r = new Random(11);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 5000, 20);
+		final Store<Integer> store = new Store<Integer>(4);
+		for (int x = 0; x < tagSets.size(); x++) {
+			store.add(tagSets.get(x), x);
+		}
+		final List<Query> queries = Lists.newArrayList();
+		for (int x = 0; x < 30; x++) {
+			queries.add(TestQuery.randomQuery(r, 4, 20));
+		}
+		// An equivalent query in the same batch is only searched once
+		queries.add(queries.get(0).canonical());
+
+		long firstPass = 0;
+		for (int pass = 0; pass < 3; pass++) {
+			final StoreMetrics metrics = store.metrics();
+			metrics.reset();
+			final List<List<Integer>> results = store.findAll(queries);
+			Assert.assertEquals(results.size(), queries.size());
+			Assert.assertEquals(metrics.getQueries(), queries.size() - 1);
+			// But it gets its own List
+			Assert.assertNotSame(results.get(queries.size() - 1), results.get(0));
+			for (int x = 0; x < queries.size(); x++) {
+				final List<Integer> expected = Lists.newArrayList();
+				for (int y = 0; y < tagSets.size(); y++) {
+					if (queries.get(x).match(tagSets.get(y))) {
+						expected.add(y);
+					}
+				}
+				Assert.assertEquals(results.get(x), expected, queries.get(x).toString());
+			}
+			if (pass == 0) {
+				firstPass = metrics.getValuesTested();
+			} else {
+				// Every query learned its shortcuts during the first pass
+				Assert.assertTrue(metrics.getValuesTested() < firstPass / 2, metrics.getValuesTested() + " vs "
+						+ firstPass);
+			}
+		}
+		Assert.assertTrue(store.checkIntegrity());
+		// And an ordinary search benefits from what the batch learned
+		final Store.StoreIterable<Integer> it = store.find(queries.get(1));
+		Lists.newArrayList(it);
+		Assert.assertTrue(it.counter() < tagSets.size() / 2);
+	}
+
+	@Test
+	public void emptyBatchesAndStores() {
+		final Store<Integer> store = new Store<Integer>(4);
+		Assert.assertTrue(store.findAll(new ArrayList<Query>()).isEmpty());
+		final List<List<Integer>> results = store.findAll(Lists.newArrayList(Query.tag("a"), Query.tag("b")));
+		Assert.assertEquals(results.size(), 2);
+		Assert.assertTrue(results.get(0).isEmpty());
+		Assert.assertTrue(results.get(1).isEmpty());
+	}
+}
@@ -0,0 +1,99 @@
+package athena;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestShortcutBudget {
+
+	private static long tableMemory(final Store<?> store) {
+		long ret = 0;
+		for (int x = 0; x < store.values.size(); x++) {
+			ret += store.values.shortcuts(x).memory();
+		}
+		return ret;
+	}
+
+	@Test
+	public void memoryStaysWithinBudget() {
+		final Random r = new Random(14);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 10000, 20);
+		final Store<Integer> store = new Store<Integer>(16);
+		final List<Integer> handles = Lists.newArrayList();
+		for (int x = 0; x < tagSets.size(); x++) {
+			handles.add(store.add(tagSets.get(x), x));
+		}
+		final List<Query> queries = Lists.newArrayList();
+		for (int x = 0; x < 100; x++) {
+			queries.add(TestQuery.randomQuery(r, 4, 20));
+		}
+		for (final Query q : queries) {
+			Lists.newArrayList(store.find(q));
+		}
+		final long unlimited = store.shortcutMemory();
+		Assert.assertTrue(unlimited > 0);
+		Assert.assertEquals(unlimited, tableMemory(store));
+
+		final long budget = unlimited / 4;
+		store.setShortcutBudget(budget);
+		Assert.assertTrue(store.shortcutMemory() <= budget, store.shortcutMemory() + " > " + budget);
+		Assert.assertTrue(store.metrics().getBudgetEvictions() > 0);
+		Assert.assertEquals(store.shortcutMemory(), tableMemory(store));
+
+		// Searching keeps within it, and searches are still correct
+		for (int pass = 0; pass < 3; pass++) {
+			for (final Query q : queries) {
+				final ArrayList<Integer> results = Lists.newArrayList(store.find(q));
+				for (final int result : results) {
+					Assert.assertTrue(q.match(tagSets.get(result)));
+				}
+				Assert.assertTrue(store.shortcutMemory() <= budget);
+			}
+		}
+		Assert.assertTrue(store.checkIntegrity());
+
+		// Compaction and resetting shortcuts keep the accounting right
+		for (int x = 0; x < handles.size(); x += 2) {
+			store.remove(handles.get(x));
+		}
+		store.compact();
+		Assert.assertEquals(store.shortcutMemory(), tableMemory(store));
+		store.resetShortcuts();
+		Assert.assertEquals(store.shortcutMemory(), 0);
+	}
+
+	@Test
+	public void frequentQueriesKeepTheirShortcuts() {
+		final Random r = new Random(15);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 10000, 20);
+		final Store<Integer> store = new Store<Integer>(16);
+		for (int x = 0; x < tagSets.size(); x++) {
+			store.add(tagSets.get(x), x);
+		}
+		final Query hot = Query.and("1", "2");
+		Lists.newArrayList(store.find(hot));
+		final Store.StoreIterable<Integer> warm = store.find(hot);
+		Lists.newArrayList(warm);
+		final int warmCount = warm.counter();
+
+		store.setShortcutBudget(store.shortcutMemory() * 4);
+		// Lots of queries that are each searched for once, with the hot query
+		// in between
+		for (int x = 0; x < 300; x++) {
+			Lists.newArrayList(store.find(TestQuery.randomQuery(r, 4, 20)));
+			if (x % 10 == 0) {
+				Lists.newArrayList(store.find(hot));
+			}
+		}
+		Assert.assertTrue(store.metrics().getBudgetEvictions() > 0);
+		final Store.StoreIterable<Integer> after = store.find(hot);
+		Lists.newArrayList(after);
+		Assert.assertTrue(after.counter() < warmCount * 2, after.counter() + " vs " + warmCount);
+	}
+}
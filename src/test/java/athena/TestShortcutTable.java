@@ -0,0 +1,137 @@
+package athena;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Maps;
+
+public class TestShortcutTable {
+
+	@Test
+	public void boundedTableNeverLosesLiveEntries() {
+		final Random r = new Random(0);
+		final ShortcutTable table = new ShortcutTable(8);
+		// Everything put into the table should either be retrievable with its
+		// latest target or have been evicted, and the table should never
+		// exceed its maximum size
+		final Map<Integer, Integer> latest = Maps.newHashMap();
+		for (int x = 0; x < 10000; x++) {
+			final int queryId = r.nextInt(40);
+			final int target = r.nextInt(1000);
+			table.put(queryId, target);
+			latest.put(queryId, target);
+			Assert.assertTrue(table.size() <= 8);
+			Assert.assertEquals(table.get(queryId), target);
+			int found = 0;
+			for (final Map.Entry<Integer, Integer> e : latest.entrySet()) {
+				final int got = table.get(e.getKey());
+				if (got != ShortcutTable.NOT_FOUND) {
+					Assert.assertEquals(got, (int) e.getValue());
+					found++;
+				}
+			}
+			Assert.assertEquals(found, table.size());
+		}
+	}
+
+	@Test
+	public void unboundedTableGrows() {
+		final ShortcutTable table = new ShortcutTable(Integer.MAX_VALUE);
+		for (int x = 0; x < 1000; x++) {
+			table.put(x, x * 2);
+		}
+		Assert.assertEquals(table.size(), 1000);
+		for (int x = 0; x < 1000; x++) {
+			Assert.assertEquals(table.get(x), x * 2);
+		}
+		Assert.assertEquals(table.get(1000), ShortcutTable.NOT_FOUND);
+		table.clear();
+		Assert.assertEquals(table.get(0), ShortcutTable.NOT_FOUND);
+	}
+
+	@Test
+	public void leastBeneficialEntryIsEvicted() {
+		final ShortcutTable table = new ShortcutTable(2, 10, null);
+		table.put(1, 100);
+		table.put(2, 20);
+		table.put(3, 30);
+		// 1 skips furthest, so 2 goes
+		Assert.assertEquals(table.get(1), 100);
+		Assert.assertEquals(table.get(2), ShortcutTable.NOT_FOUND);
+		Assert.assertEquals(table.get(3), 30);
+		// 3 skips less far, but is used often enough to be worth more
+		for (int x = 0; x < 100; x++) {
+			table.get(3);
+		}
+		table.put(4, 500);
+		Assert.assertEquals(table.get(1), ShortcutTable.NOT_FOUND);
+		Assert.assertEquals(table.get(3), 30);
+		Assert.assertEquals(table.get(4), 500);
+	}
+
+	@Test
+	public void queriesWithoutAValidIdGetNoShortcuts() {
+		final ShortcutTable table = new ShortcutTable(8);
+		Assert.assertFalse(table.put(ShortcutTable.MAX_QUERY_ID + 1, 10));
+		Assert.assertFalse(table.put(-1, 10));
+		Assert.assertEquals(table.size(), 0);
+		Assert.assertFalse(table.put(ShortcutTable.MAX_QUERY_ID, 10));
+		Assert.assertEquals(table.get(ShortcutTable.MAX_QUERY_ID), 10);
+		Assert.assertEquals(table.get(-1), ShortcutTable.NOT_FOUND);
+
+		// A full registry canonicalizes queries without registering them
+		final QueryRegistry registry = new QueryRegistry();
+		Assert.assertEquals(registry.capacity(), QueryRegistry.DEFAULT_CAPACITY);
+		Assert.assertTrue(QueryRegistry.DEFAULT_CAPACITY < ShortcutTable.MAX_QUERY_ID + 1);
+		registry.setCapacity(2);
+		final Query r1 = registry.intern(new Query.Contains("r1"));
+		final Query r2 = registry.intern(new Query.Contains("r2"));
+		Assert.assertEquals(r1.id, 0);
+		Assert.assertEquals(r2.id, 1);
+		final Query unregistered = new Query.Contains("r3");
+		Assert.assertSame(registry.intern(unregistered), unregistered);
+		Assert.assertEquals(unregistered.id(), -1);
+		Assert.assertEquals(registry.size(), 2);
+	}
+
+	@Test
+	public void purgedQueriesAreForgottenAndTheirIdsReused() {
+		final QueryRegistry registry = new QueryRegistry();
+		registry.setCapacity(4);
+		final ShortcutTable table = new ShortcutTable(Integer.MAX_VALUE, 0, null, registry);
+		final Query a = registry.intern(new Query.Contains("kept-a"));
+		final Query kept = registry.intern(new Query.And(a, registry.intern(new Query.Contains("kept-b"))));
+		final Query forgotten = registry.intern(new Query.Contains("forgotten"));
+		final int forgottenId = forgotten.id;
+		table.put(kept.id, 1);
+		table.put(forgottenId, 2);
+		final Query refused = registry.intern(new Query.Contains("refused"));
+		Assert.assertEquals(refused.id, -1);
+
+		// Nothing is forgotten until a purge, and then only what wasn't used
+		kept.use();
+		Assert.assertEquals(registry.purge(), 1);
+		Assert.assertEquals(registry.size(), 3);
+		Assert.assertSame(registry.get(kept.id), kept);
+		Assert.assertSame(registry.get(a.id), a);
+		Assert.assertNull(registry.get(forgottenId));
+		Assert.assertEquals(forgotten.id, -1);
+		// As purge() does for the tables of every Store
+		table.purge(registry);
+		Assert.assertEquals(table.get(kept.id), 1);
+		Assert.assertEquals(table.get(forgottenId), ShortcutTable.NOT_FOUND);
+
+		// The purged id stays dead until the next purge
+		table.put(forgottenId, 3);
+		Assert.assertEquals(table.size(), 1);
+		final Query fresh = registry.intern(new Query.Contains("fresh"));
+		Assert.assertTrue(fresh.id != forgottenId && fresh.id != -1);
+		registry.purge();
+		final Query recycled = registry.intern(new Query.Contains("recycled"));
+		Assert.assertEquals(recycled.id, forgottenId);
+		Assert.assertEquals(table.get(recycled.id), ShortcutTable.NOT_FOUND);
+	}
+}
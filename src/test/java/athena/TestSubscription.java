@@ -0,0 +1,106 @@
+package athena;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class TestSubscription {
+
+	private static class Collector implements Subscriber<Integer> {
+		final List<Integer> values = Lists.newArrayList();
+
+		@Override
+		public void added(final Integer value) {
+			values.add(value);
+		}
+	}
+
+	@Test
+	public void subscribersReceiveExactlyTheMatchingValuesAdded() {
+		final Random r = new Random(23);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 3000, 20);
+		final Store<Integer> store = new Store<Integer>(4);
+		for (int x = 0; x < 1000; x++) {
+			store.add(tagSets.get(x), x);
+		}
+		final List<Query> queries = Lists.newArrayList();
+		final List<Collector> collectors = Lists.newArrayList();
+		final List<Subscription<Integer>> subscriptions = Lists.newArrayList();
+		for (int x = 0; x < 200; x++) {
+			final Query q = TestQuery.randomQuery(r, 4, 20);
+			final Collector collector = new Collector();
+			queries.add(q);
+			collectors.add(collector);
+			subscriptions.add(store.subscribe(q, collector));
+		}
+		for (int x = 1000; x < 2000; x++) {
+			store.add(tagSets.get(x), x);
+		}
+		// Cancelled subscriptions receive nothing more
+		for (int x = 0; x < subscriptions.size(); x += 2) {
+			subscriptions.get(x).cancel();
+		}
+		for (int x = 2000; x < tagSets.size(); x++) {
+			store.add(tagSets.get(x), x);
+		}
+		for (int q = 0; q < queries.size(); q++) {
+			final List<Integer> expected = Lists.newArrayList();
+			final int end = q % 2 == 0 ? 2000 : tagSets.size();
+			for (int x = 1000; x < end; x++) {
+				if (queries.get(q).match(tagSets.get(x))) {
+					expected.add(x);
+				}
+			}
+			Assert.assertEquals(collectors.get(q).values, expected, queries.get(q).toString());
+		}
+	}
+
+	@Test
+	public void valuesAreOnlyTestedAgainstQueriesTheyCouldMatch() {
+		final SubscriptionIndex<Integer> index = new SubscriptionIndex<Integer>();
+		final TagDictionary dictionary = new TagDictionary();
+		final TagStats stats = new TagStats(false, dictionary);
+		final Collector collector = new Collector();
+		// A thousand queries that each need tags no other query mentions
+		for (int x = 0; x < 1000; x++) {
+			index.add(Query.and("s" + x, Query.or("t" + x, "u" + x)).canonical(), stats, collector);
+		}
+		// And one that matches values without any particular tag
+		index.add(Query.not("s0").canonical(), stats, collector);
+		final int[] tags = dictionary.encode(Sets.newHashSet("s7", "u7"));
+		Assert.assertEquals(index.added(tags, 7), 2);
+		Assert.assertEquals(collector.values, Lists.newArrayList(7, 7));
+
+		// Or triggers on either operand, and is only tested once
+		final Subscription<Integer> either = index.add(Query.or("v", "w").canonical(), stats, collector);
+		Assert.assertEquals(either.triggers.length, 2);
+		Assert.assertEquals(index.added(dictionary.encode(Sets.newHashSet("v", "w")), 8), 2);
+		Assert.assertEquals(collector.values, Lists.newArrayList(7, 7, 8, 8));
+		either.cancel();
+		Assert.assertEquals(index.size(), 1001);
+	}
+
+	@Test
+	public void aFailingSubscriberDoesNotFailTheAdd() {
+		final Store<Integer> store = new Store<Integer>(4);
+		store.subscribe(Query.tag("failing"), new Subscriber<Integer>() {
+			@Override
+			public void added(final Integer value) {
+				throw new IllegalStateException("Subscriber failed on purpose");
+			}
+		});
+		final Collector after = new Collector();
+		store.subscribe(Query.tag("failing"), after);
+		final int handle = store.add(Sets.newHashSet("failing"), 1);
+		Assert.assertEquals(after.values, Lists.newArrayList(1));
+		Assert.assertEquals(Lists.newArrayList(store.find(Query.tag("failing"))), Lists.newArrayList(1));
+		Assert.assertTrue(store.remove(handle));
+	}
+}
@@ -0,0 +1,82 @@
+package athena;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class TestTagDictionary {
+
+	@Test
+	public void fullDictionaryRefusesNewTags() {
+		final TagDictionary dictionary = new TagDictionary();
+		dictionary.setCapacity(2);
+		final int a = dictionary.intern("a");
+		final int b = dictionary.intern("b");
+		try {
+			dictionary.intern("c");
+			Assert.fail("A third tag was interned");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+		// Tags already interned are unaffected
+		Assert.assertEquals(dictionary.intern("a"), a);
+		Assert.assertEquals(dictionary.intern("b"), b);
+		Assert.assertEquals(dictionary.lookup("c"), TagDictionary.UNKNOWN);
+		Assert.assertEquals(dictionary.size(), 2);
+
+		dictionary.setCapacity(3);
+		Assert.assertEquals(dictionary.intern("c"), 2);
+	}
+
+	@Test
+	public void queriesDoNotInternTheirTags() {
+		final Query unseen = Query.and("dictionary-unseen", "dictionary-a");
+		final Query negated = Query.not("dictionary-unseen");
+
+		final Store<Integer> store = new Store<Integer>(8, Store.INDEXED);
+		store.add(Sets.newHashSet("dictionary-a"), 1);
+		Assert.assertTrue(Lists.newArrayList(store.find(unseen)).isEmpty());
+		Assert.assertEquals(Lists.newArrayList(store.find(negated)), Lists.newArrayList(1));
+		Assert.assertEquals(store.dictionary().lookup("dictionary-unseen"), TagDictionary.UNKNOWN);
+		Assert.assertEquals(store.dictionary().size(), 1);
+
+		// Once a value has the tag, the same queries find it
+		store.add(Sets.newHashSet("dictionary-a", "dictionary-unseen"), 2);
+		Assert.assertEquals(Lists.newArrayList(store.find(unseen)), Lists.newArrayList(2));
+		Assert.assertEquals(Lists.newArrayList(store.find(negated)), Lists.newArrayList(1));
+		final int[] without = TagDictionary.shared.encode(Sets.newHashSet("dictionary-a"));
+		Assert.assertFalse(unseen.compile().match(without));
+		final int[] with = TagDictionary.shared.encode(Sets.newHashSet("dictionary-a", "dictionary-unseen"));
+		Assert.assertTrue(unseen.compile().match(with));
+	}
+
+	@Test
+	public void eachStoreHasItsOwnDictionary() {
+		final Store<Integer> full = new Store<Integer>(8);
+		full.dictionary().setCapacity(1);
+		full.add(Sets.newHashSet("own-a"), 1);
+		try {
+			full.add(Sets.newHashSet("own-b"), 2);
+			Assert.fail("A second tag was added to a full store");
+		} catch (final IllegalStateException e) {
+			// Expected
+		}
+
+		// Another store is unaffected, and numbers its tags independently
+		final Store<Integer> other = new Store<Integer>(8);
+		other.add(Sets.newHashSet("own-b"), 2);
+		other.add(Sets.newHashSet("own-a", "own-b"), 3);
+		Assert.assertEquals(other.dictionary().lookup("own-b"), 0);
+		Assert.assertEquals(full.dictionary().lookup("own-a"), 0);
+
+		// So the same query finds the right values in each
+		final Query a = Query.tag("own-a");
+		Assert.assertEquals(Lists.newArrayList(full.find(a)), Lists.newArrayList(1));
+		Assert.assertEquals(Lists.newArrayList(other.find(a)), Lists.newArrayList(3));
+		Assert.assertEquals(Lists.newArrayList(other.find(Query.not("own-a"))), Lists.newArrayList(2));
+		Assert.assertTrue(full.checkIntegrity());
+		Assert.assertTrue(other.checkIntegrity());
+	}
+}
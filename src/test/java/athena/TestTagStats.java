@@ -0,0 +1,131 @@
+package athena;
+
+import static athena.Query.and;
+import static athena.Query.or;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Sets;
+
+public class TestTagStats {
+
+	@Test
+	public void statisticsCountTagsAndPairs() {
+		final TagDictionary dictionary = new TagDictionary();
+		final TagStats stats = new TagStats(true, dictionary);
+		final int a = dictionary.intern("stats-a"), b = dictionary.intern("stats-b");
+		final int c = dictionary.intern("stats-c");
+		for (int x = 0; x < 100; x++) {
+			final Set<Integer> tags = Sets.newTreeSet();
+			tags.add(a);
+			if (x % 2 == 0) {
+				tags.add(b);
+			}
+			if (x % 10 == 0) {
+				tags.add(c);
+			}
+			final int[] sorted = new int[tags.size()];
+			int y = 0;
+			for (final int tag : tags) {
+				sorted[y++] = tag;
+			}
+			stats.add(sorted);
+		}
+		Assert.assertEquals(stats.count(), 100);
+		Assert.assertEquals(stats.frequency(a), 100);
+		Assert.assertEquals(stats.frequency(b), 50);
+		Assert.assertEquals(stats.frequency(c), 10);
+		// With so few pairs the sketch is exact
+		Assert.assertEquals(stats.cooccurrence(a, b), 50);
+		Assert.assertEquals(stats.cooccurrence(c, b), 10);
+		Assert.assertEquals(stats.selectivity(and("stats-b", "stats-c")), 0.1, 1e-9);
+		Assert.assertEquals(stats.selectivity(or("stats-b", "stats-c")), 0.55, 1e-9);
+		Assert.assertEquals(new TagStats(false, dictionary).cooccurrence(a, b), -1);
+	}
+
+	@Test
+	public void removedValuesAreNoLongerCounted() {
+		final Store<Integer> store = new Store<Integer>(4, Store.PAIR_STATISTICS);
+		final int[] handles = new int[100];
+		for (int x = 0; x < 100; x++) {
+			handles[x] = store.add(x % 2 == 0 ? Sets.newHashSet("removed-a", "removed-b") : Sets
+					.newHashSet("removed-a"), x);
+		}
+		for (int x = 0; x < 40; x++) {
+			store.remove(handles[x]);
+		}
+		final int a = store.dictionary().lookup("removed-a"), b = store.dictionary().lookup("removed-b");
+		TagStats stats = store.find(Query.tag("removed-a")).stats();
+		Assert.assertEquals(stats.count(), 60);
+		Assert.assertEquals(stats.frequency(a), 60);
+		Assert.assertEquals(stats.frequency(b), 30);
+		Assert.assertEquals(stats.cooccurrence(a, b), 30);
+
+		// Nor once the store is reordered, which rebuilds the statistics
+		store.recluster(false, 0);
+		stats = store.find(Query.tag("removed-a")).stats();
+		Assert.assertEquals(stats.count(), 60);
+		Assert.assertEquals(stats.frequency(b), 30);
+	}
+
+	@Test
+	public void orProbeOrderBelongsToEachStore() {
+		final Store<Integer> first = new Store<Integer>(4), second = new Store<Integer>(4);
+		for (int x = 0; x < 100; x++) {
+			first.add(Sets.newHashSet(x % 10 == 0 ? "probe-a" : "probe-b"), x);
+			second.add(Sets.newHashSet(x % 10 == 0 ? "probe-b" : "probe-a"), x);
+		}
+		final Query.Or q = (Query.Or) or("probe-a", "probe-b").canonical();
+		final CompiledQuery inFirst = first.find(q).stats().compile(q);
+		final CompiledQuery inSecond = second.find(q).stats().compile(q);
+		// Each probes its rarer operand first, whichever was compiled last
+		Assert.assertTrue(inFirst.probesBFirst(q) != inSecond.probesBFirst(q));
+		Assert.assertEquals(first.count(q), 100);
+		Assert.assertEquals(second.count(q), 100);
+	}
+
+	@Test
+	public void rareAndOperandsAreTestedFirst() {
+		final Store<Integer> store = new Store<Integer>(4);
+		for (int x = 0; x < 1000; x++) {
+			final Set<String> tags = Sets.newHashSet("stats-common");
+			if (x % 100 == 0) {
+				tags.add("stats-rare");
+			}
+			store.add(tags, x);
+		}
+		final Store.StoreIterable<Integer> it = store.find(Query.tag("stats-rare"));
+		final TagStats stats = it.stats();
+		Assert.assertTrue(stats.compile(and("stats-common", "stats-rare")).toString().startsWith("1: test stats-rare"));
+		Assert.assertTrue(stats.compile(or("stats-common", "stats-rare")).toString().startsWith("1: test stats-common"));
+	}
+
+	@Test
+	public void orderedQueriesAgreeWithTree() {
+		final Random r = new Random(13);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 2000, 10);
+		final Store<Set<String>> store = new Store<Set<String>>(4, Store.PAIR_STATISTICS);
+		for (final Set<String> tagSet : tagSets) {
+			store.add(tagSet, tagSet);
+		}
+		final TagStats stats = store.find(Query.tag("0")).stats();
+		for (int x = 0; x < 200; x++) {
+			final Query q = TestQuery.randomQuery(r, 6, 10).canonical();
+			final CompiledQuery compiled = stats.compile(q);
+			Assert.assertSame(stats.compile(q), compiled);
+			for (final Set<String> tagSet : tagSets) {
+				Assert.assertEquals(compiled.match(store.dictionary().encode(tagSet)), q.match(tagSet), q + " against "
+						+ tagSet);
+			}
+			for (final Set<String> result : store.find(q)) {
+				Assert.assertTrue(q.match(result));
+			}
+		}
+		Assert.assertTrue(store.checkIntegrity());
+	}
+}
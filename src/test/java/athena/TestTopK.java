@@ -0,0 +1,102 @@
+package athena;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class TestTopK {
+
+	private static List<Integer> expected(final Query q, final List<Set<String>> tagSets, final double[] scores,
+			final Set<Integer> removed, final int k) {
+		final List<Integer> ret = Lists.newArrayList();
+		for (int x = 0; x < tagSets.size(); x++) {
+			if (!removed.contains(x) && q.match(tagSets.get(x))) {
+				ret.add(x);
+			}
+		}
+		// Stable, so equal scores stay in the order they were added
+		Collections.sort(ret, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				return Double.compare(scores[b], scores[a]);
+			}
+		});
+		return ret.subList(0, Math.min(k, ret.size()));
+	}
+
+	@Test
+	public void topKMatchesSortingEveryMatch() {
+		final Random r = new Random(25);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 10000, 20);
+		final double[] scores = new double[tagSets.size()];
+		final Store<Integer> store = new Store<Integer>(4);
+		final List<Integer> handles = Lists.newArrayList();
+		for (int x = 0; x < tagSets.size(); x++) {
+			// Some ties, and some values added without a score
+			scores[x] = x % 10 == 0 ? 0 : r.nextInt(1000) - 100;
+			handles.add(scores[x] == 0 ? store.add(tagSets.get(x), x) : store.add(tagSets.get(x), x, scores[x]));
+		}
+		final Set<Integer> removed = Sets.newHashSet();
+		for (int pass = 0; pass < 2; pass++) {
+			for (int x = 0; x < 30; x++) {
+				final Query q = TestQuery.randomQuery(r, 4, 20);
+				for (final int k : new int[] { 0, 1, 10, 100 }) {
+					Assert.assertEquals(store.findTopK(q, k), expected(q, tagSets, scores, removed, k), q.toString());
+				}
+			}
+			Assert.assertTrue(store.checkIntegrity());
+			// Scores survive removal and compaction
+			for (int x = 0; x < tagSets.size(); x += 7) {
+				store.remove(handles.get(x));
+				removed.add(x);
+			}
+			store.compact();
+		}
+	}
+
+	@Test
+	public void searchStopsOnceNoSegmentCanCompete() {
+		final Random r = new Random(26);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, ValueColumns.SCORE_SEGMENT * 20, 10);
+		final double[] scores = new double[tagSets.size()];
+		final Store<Integer> store = new Store<Integer>(4);
+		for (int x = 0; x < tagSets.size(); x++) {
+			// Scores rise through the store, as they would if added over time
+			scores[x] = x + r.nextInt(ValueColumns.SCORE_SEGMENT);
+			store.add(tagSets.get(x), x, scores[x]);
+		}
+		final Query q = Query.or("1", "2");
+		final TopKSearch<Integer> search = new TopKSearch<Integer>(store, q, 10);
+		Assert.assertEquals(search.run(), expected(q, tagSets, scores, Collections.<Integer> emptySet(), 10));
+		Assert.assertTrue(search.segmentsSearched <= 2, search.segmentsSearched + " segments searched");
+		Assert.assertTrue(search.counter < ValueColumns.SCORE_SEGMENT * 2);
+	}
+
+	@Test
+	public void topKSearchesKeepSequentialShortcuts() {
+		final Store<Integer> store = new Store<Integer>(4);
+		for (int x = 0; x < ValueColumns.SCORE_SEGMENT * 20; x++) {
+			final boolean rare = x % (ValueColumns.SCORE_SEGMENT * 2) == 0;
+			store.add(Sets.newHashSet(rare ? "topk-rare" : "topk-common"), x, x % 7);
+		}
+		final Query q = Query.tag("topk-rare");
+		Lists.newArrayList(store.find(q));
+		final Store.StoreIterable<Integer> warm = store.find(q);
+		Assert.assertEquals(Lists.newArrayList(warm).size(), 10);
+		Assert.assertTrue(warm.counter() <= 10, warm.counter() + " values tested");
+		Assert.assertEquals(store.findTopK(q, 3).size(), 3);
+		final Store.StoreIterable<Integer> after = store.find(q);
+		Assert.assertEquals(Lists.newArrayList(after).size(), 10);
+		Assert.assertTrue(after.counter() <= 10, after.counter() + " values tested");
+		Assert.assertTrue(store.checkIntegrity());
+	}
+}
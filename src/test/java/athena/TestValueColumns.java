@@ -0,0 +1,90 @@
+package athena;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestValueColumns {
+
+	private static int[] randomTags(final Random r) {
+		final int[] ret = new int[r.nextInt(6)];
+		for (int x = 0; x < ret.length; x++) {
+			ret[x] = r.nextInt(50);
+		}
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	@Test
+	public void valuesSurviveChunkBoundaries() {
+		final Random r = new Random(21);
+		final ValueColumns<String> values = new ValueColumns<String>(4, null, TagDictionary.shared);
+		final int size = ValueColumns.CHUNK_SIZE * 3 + 17;
+		final int[][] tags = new int[size][];
+		for (int x = 0; x < size; x++) {
+			tags[x] = randomTags(r);
+			Assert.assertEquals(values.add(tags[x], "v" + x, x * 2), x);
+		}
+		Assert.assertEquals(values.size(), size);
+		for (int x = 0; x < size; x += 3) {
+			values.remove(x);
+		}
+		final CompiledQuery query = Query.and("1", Query.not("2")).compile();
+		for (int x = 0; x < size; x++) {
+			Assert.assertTrue(Arrays.equals(values.tags(x), tags[x]));
+			Assert.assertEquals(values.value(x), "v" + x);
+			Assert.assertEquals(values.handle(x), x * 2);
+			Assert.assertEquals(values.removed(x), x % 3 == 0);
+			Assert.assertEquals(values.matches(query, x), query.match(tags[x]));
+		}
+	}
+
+	@Test
+	public void shortcutTablesAreCreatedWhenFirstUpdated() {
+		final ValueColumns<String> values = new ValueColumns<String>(4, null, TagDictionary.shared);
+		for (int x = 0; x < 10; x++) {
+			values.add(new int[0], "v" + x, x);
+		}
+		Assert.assertEquals(values.shortcuts(3).get(7), ShortcutTable.NOT_FOUND);
+		values.shortcutsToUpdate(3).put(7, 9);
+		Assert.assertSame(values.shortcutsToUpdate(3), values.shortcuts(3));
+		Assert.assertEquals(values.shortcuts(3).get(7), 9);
+		Assert.assertEquals(values.shortcuts(4).size(), 0);
+
+		// Copying moves the shortcut to the new positions
+		values.remove(5);
+		final int[] remap = { 0, 1, 2, 3, 4, 5, 5, 6, 7, 8, 9 };
+		final ValueColumns<String> copy = new ValueColumns<String>(4, null, TagDictionary.shared);
+		for (int x = 0; x < values.size(); x++) {
+			if (!values.removed(x)) {
+				copy.add(values, x, remap);
+			}
+		}
+		Assert.assertEquals(copy.size(), 9);
+		Assert.assertEquals(copy.value(5), "v6");
+		Assert.assertEquals(copy.shortcuts(3).get(7), 8);
+	}
+
+	@Test
+	public void firstChunkKeepsShortcutsAndRemovalsAsItGrows() {
+		final ValueColumns<String> values = new ValueColumns<String>(4, null, TagDictionary.shared);
+		for (int x = 0; x < ValueColumns.FIRST_CHUNK_SIZE; x++) {
+			values.add(new int[] { x }, "v" + x, x, x);
+		}
+		values.shortcutsToUpdate(2).put(7, 9);
+		values.remove(3);
+		for (int x = ValueColumns.FIRST_CHUNK_SIZE; x < ValueColumns.CHUNK_SIZE + 1; x++) {
+			values.add(new int[] { x }, "v" + x, x, x);
+		}
+		Assert.assertEquals(values.shortcuts(2).get(7), 9);
+		Assert.assertTrue(values.removed(3));
+		Assert.assertFalse(values.removed(4));
+		Assert.assertEquals(values.maxScore(0), (double) ValueColumns.SCORE_SEGMENT - 1);
+		for (int x = 0; x < values.size(); x++) {
+			Assert.assertTrue(Arrays.equals(values.tags(x), new int[] { x }));
+			Assert.assertEquals(values.value(x), "v" + x);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package athena;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestWarmer {
+
+	@Test
+	public void queryLogFavoursFrequentQueries() {
+		final QueryLog log = new QueryLog(2, 64);
+		final Query frequent = Query.tag("frequent"), occasional = Query.tag("occasional");
+		for (int x = 0; x < 1000; x++) {
+			log.record(frequent);
+			if (x % 10 == 0) {
+				log.record(occasional);
+			}
+			log.record(Query.tag("rare" + x));
+		}
+		final List<Query> top = log.top(2);
+		Assert.assertEquals(top.get(0), frequent);
+		Assert.assertEquals(top.get(1), occasional);
+		// Decay keeps the log from growing without bound
+		Assert.assertTrue(log.size() < 200, "Log has " + log.size() + " queries");
+	}
+
+	@Test
+	public void warmerCompletesShortcutsForNewValues() throws InterruptedException {
+		final Random r = new Random(4);
+		final ArrayList<Set<String>> tagSets = TestQuery.randomTagSets(r, 6000, 20);
+		final Store<Set<String>> store = new Store<Set<String>>(16);
+		for (final Set<String> tagSet : tagSets.subList(0, 3000)) {
+			store.add(tagSet, tagSet);
+		}
+		final List<Query> queries = Lists.newArrayList();
+		for (int x = 0; x < 5; x++) {
+			queries.add(TestQuery.randomQuery(r, 4, 20).canonical());
+		}
+		// Search often enough that every query is sampled
+		for (int x = 0; x < 20 * QueryLog.DEFAULT_SAMPLE_RATE; x++) {
+			Lists.newArrayList(store.find(queries.get(x % queries.size())));
+		}
+
+		final ShortcutWarmer<Set<String>> warmer = store.startWarmer(queries.size(), 1, 10);
+		try {
+			for (final Set<String> tagSet : tagSets.subList(3000, 6000)) {
+				store.add(tagSet, tagSet);
+			}
+			// Wait for a replay that started after the last add()
+			final int cycles = warmer.cycles();
+			final long deadline = System.currentTimeMillis() + 30000;
+			while (warmer.cycles() < cycles + 2) {
+				Assert.assertTrue(System.currentTimeMillis() < deadline, "The warmer stopped replaying");
+				Thread.sleep(5);
+			}
+		} finally {
+			store.stopWarmer();
+		}
+
+		for (final Query q : queries) {
+			final List<Set<String>> expected = Lists.newArrayList();
+			for (final Set<String> tagSet : tagSets) {
+				if (q.match(tagSet)) {
+					expected.add(tagSet);
+				}
+			}
+			final Store.StoreIterable<Set<String>> found = store.find(q);
+			Assert.assertEquals(Lists.newArrayList(found), expected, q.toString());
+			// Every value tested should have been a match
+			Assert.assertEquals(found.counter(), expected.size(), q.toString());
+		}
+		Assert.assertTrue(store.checkIntegrity());
+	}
+}